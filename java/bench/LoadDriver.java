@@ -0,0 +1,358 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates many concurrent customers, managers and admins using the shop
+ * at once. Every simulated user runs on its own thread, a virtual thread
+ * when the JVM has them (Java 21+) and a platform thread otherwise, and
+ * loops: pick a menu operation from the mix of its role, run it through
+ * RetailOperations, think for a while. Throughput and p50/p95/p99 latency
+ * are reported per operation.
+ *
+ * Several client counts can be given; each is run in turn for the same
+ * duration so the level where throughput stops growing and latency climbs
+ * shows the saturation point.
+ *
+ * The mix includes writes (orders, product updates, supply requests and
+ * adding/removing users and products); use -readonly against data that
+ * must stay untouched.
+ *
+ * Usage: java LoadDriver dbname port user [-clients n[,n...]] [-duration seconds]
+ *        [-think ms] [-roles customers,managers,admins] [-mix op=weight,...] [-readonly]
+ */
+public class LoadDriver {
+
+   private static final String CUSTOMER = "customer", MANAGER = "manager", ADMIN = "admin";
+
+   // default operation weights per role, in menu order
+   private static final Object[][] DEFAULT_MIX = {
+      { "viewStores",          CUSTOMER, 30 },
+      { "viewProducts",        CUSTOMER, 40 },
+      { "placeOrder",          CUSTOMER, 20 },
+      { "viewRecentOrders",    CUSTOMER, 10 },
+      { "viewRecentOrders",    MANAGER,  15 },
+      { "viewRecentOrders",    ADMIN,    20 },
+      { "updateProduct",       MANAGER,  10 },
+      { "viewRecentUpdates",   MANAGER,  15 },
+      { "viewRecentUpdates",   ADMIN,    20 },
+      { "viewPopularProducts", MANAGER,  20 },
+      { "viewPopularProducts", ADMIN,    20 },
+      { "viewPopularCustomers", MANAGER, 20 },
+      { "viewPopularCustomers", ADMIN,   20 },
+      { "placeSupplyRequest",  MANAGER,  10 },
+      { "viewOrders",          MANAGER,  10 },
+      { "viewOrders",          ADMIN,     5 },
+      { "viewUsers",           ADMIN,     5 },
+      { "addUser",             ADMIN,     5 },
+      { "addProduct",          ADMIN,     5 },
+   };
+   private static final String[] WRITES = { "placeOrder", "updateProduct", "placeSupplyRequest", "addUser", "addProduct" };
+
+   // Reads every column of every row, as the menu printing them would.
+   private static final RowHandler CONSUME = new RowHandler() {
+      public boolean handleRow(ResultSet rs) throws SQLException {
+         int columns = rs.getMetaData().getColumnCount();
+         for (int i = 1; i <= columns; ++i)
+            rs.getString(i);
+         return true;
+      }
+   };
+
+   private final Retail esql;
+   private final RetailOperations ops;
+   private final long thinkMillis;
+   private final Map<String, Map<String, Integer>> mix;   // role -> operation -> weight
+   private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+   private final Map<Integer, List<String>> productsByStore = new ConcurrentHashMap<Integer, List<String>>();
+   private final AtomicLong unique = new AtomicLong(System.currentTimeMillis() % 1000000);
+   private List<Integer> storeIds;
+   private int warehouseId;
+   private volatile boolean stopping;
+
+   // Per operation latency, successes and failures.
+   private static class Stats {
+      final LatencyHistogram latency = new LatencyHistogram();
+      final AtomicLong errors = new AtomicLong();
+   }
+
+   LoadDriver(Retail esql, long thinkMillis, Map<String, Map<String, Integer>> mix) {
+      this.esql = esql;
+      this.ops = esql.getOperations();
+      this.thinkMillis = thinkMillis;
+      this.mix = mix;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java LoadDriver <dbname> <port> <user> [-clients n[,n...]] [-duration seconds]" +
+                            " [-think ms] [-roles customers,managers,admins] [-mix op=weight,...] [-readonly]");
+         return;
+      }
+      String clients = "100";
+      long duration = 60, think = 1000;
+      int[] roles = { 90, 8, 2 };
+      Map<String, Map<String, Integer>> mix = defaultMix();
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("-clients")) clients = args[++i];
+         else if (args[i].equals("-duration")) duration = Long.parseLong(args[++i]);
+         else if (args[i].equals("-think")) think = Long.parseLong(args[++i]);
+         else if (args[i].equals("-roles")) {
+            String[] r = args[++i].split(",");
+            for (int k = 0; k < 3; ++k) roles[k] = Integer.parseInt(r[k].trim());
+         }
+         else if (args[i].equals("-mix")) {
+            for (String entry : args[++i].split(",")) {
+               String[] kv = entry.split("=");
+               setWeight(mix, kv[0].trim(), Integer.parseInt(kv[1].trim()));
+            }
+         }
+         else if (args[i].equals("-readonly")) {
+            for (String op : WRITES) setWeight(mix, op, 0);
+         }
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         LoadDriver driver = new LoadDriver(esql, think, mix);
+         driver.loadFixtures();
+         System.out.println("Threads: " + (virtualThreads() != null ? "virtual" : "platform") +
+                            ", pool: " + esql.getPoolStats());
+         for (String level : clients.split(",")) {
+            int n = Integer.parseInt(level.trim());
+            driver.run(n, roles, duration);
+         }
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   // Runs n simulated users for duration seconds and prints what they achieved.
+   void run(int n, int[] roles, long duration) throws Exception {
+      stats.clear();
+      stopping = false;
+      int total = roles[0] + roles[1] + roles[2];
+      int managers = n * roles[1] / total, admins = n * roles[2] / total;
+      List<Principal> users = new ArrayList<Principal>();
+      users.addAll(principals("SELECT DISTINCT managerID FROM Store ORDER BY managerID LIMIT ?", managers));
+      users.addAll(principals("SELECT userID FROM Users WHERE type = 'admin' ORDER BY userID LIMIT ?", admins));
+      users.addAll(principals("SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID LIMIT ?",
+                              n - users.size()));
+      // there may be fewer users of a role than clients wanted: reuse them
+      List<Principal> clients = new ArrayList<Principal>();
+      for (int i = 0; clients.size() < n && !users.isEmpty(); ++i)
+         clients.add(users.get(i % users.size()));
+
+      ExecutorService executor = virtualThreads();
+      if (executor == null) executor = Executors.newCachedThreadPool();
+      long began = System.nanoTime();
+      for (int i = 0; i < clients.size(); ++i) {
+         final Principal user = clients.get(i);
+         final long clientSeed = 31L * i + began;
+         executor.submit(new Runnable() {
+            public void run() { simulate(user, new Random(clientSeed)); }
+         });
+      }
+      Thread.sleep(duration * 1000);
+      stopping = true;
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      report(clients.size(), (System.nanoTime() - began) / 1e9);
+   }//end run
+
+   // The life of one simulated user.
+   private void simulate(Principal user, Random random) {
+      Map<String, Integer> weights = mix.get(user.type);
+      if (weights == null) return;
+      int sum = 0;
+      for (int w : weights.values()) sum += w;
+      if (sum == 0) return;
+      try{
+         // users arrive spread over one think time rather than all at once
+         Thread.sleep((long) (random.nextDouble() * thinkMillis));
+         while (!stopping) {
+            String op = pick(weights, sum, random);
+            Stats s = stats.get(op);
+            if (s == null) {
+               stats.putIfAbsent(op, new Stats());
+               s = stats.get(op);
+            }
+            long began = System.nanoTime();
+            try{
+               execute(op, user, random);
+            }catch (Exception e){
+               s.errors.incrementAndGet();
+            }//end try
+            s.latency.record(System.nanoTime() - began);
+            if (thinkMillis > 0)
+               Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * thinkMillis));
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end simulate
+
+   // Runs one operation with inputs a user of this role would type.
+   private void execute(String op, Principal user, Random random) throws SQLException {
+      if (op.equals("viewStores")) ops.viewStores(user);
+      else if (op.equals("viewProducts")) ops.viewProducts(anyStore(random), CONSUME);
+      else if (op.equals("placeOrder")) {
+         List<StoreLocator.Match> nearby = ops.viewStores(user);
+         if (nearby.isEmpty()) return;
+         int store = nearby.get(random.nextInt(nearby.size())).store.storeId;
+         ops.placeOrder(user, store, anyProduct(store, random), 1 + random.nextInt(5));
+      }
+      else if (op.equals("viewRecentOrders")) ops.viewRecentOrders(user, CONSUME);
+      else if (op.equals("updateProduct")) {
+         int store = ownStore(user, random);
+         ops.updateProduct(user, store, anyProduct(store, random), 50 + random.nextInt(100), 1 + random.nextInt(20));
+      }
+      else if (op.equals("viewRecentUpdates")) ops.viewRecentUpdates(user, CONSUME);
+      else if (op.equals("viewPopularProducts")) ops.viewPopularProducts(user, CONSUME);
+      else if (op.equals("viewPopularCustomers")) ops.viewPopularCustomers(user, CONSUME);
+      else if (op.equals("placeSupplyRequest")) {
+         int store = ownStore(user, random);
+         ops.placeSupplyRequest(user, store, anyProduct(store, random), 1 + random.nextInt(100), warehouseId);
+      }
+      else if (op.equals("viewOrders")) ops.viewOrders(user, CONSUME);
+      else if (op.equals("viewUsers")) ops.viewUsers(user, CONSUME);
+      else if (op.equals("addUser")) {
+         int id = ops.addUser(user, "load" + unique.incrementAndGet(), "xyz", random.nextDouble() * 99,
+                              random.nextDouble() * 99, CUSTOMER);
+         ops.removeUser(user, id);
+      }
+      else if (op.equals("addProduct")) {
+         int store = anyStore(random);
+         String name = "load" + unique.incrementAndGet();
+         ops.addProduct(user, store, name, 1, 1.0);
+         ops.removeProduct(user, store, name);
+      }
+      else throw new IllegalArgumentException("Unknown operation " + op);
+   }//end execute
+
+   private void report(int clients, double seconds) {
+      System.out.println();
+      System.out.println(String.format("%d clients, %.0fs", clients, seconds));
+      System.out.println(String.format("%-22s %9s %9s %9s %9s %9s %7s",
+                                       "operation", "calls", "ops/s", "p50 ms", "p95 ms", "p99 ms", "errors"));
+      long calls = 0;
+      LatencyHistogram all = new LatencyHistogram();
+      for (String op : new TreeSet<String>(stats.keySet())) {
+         Stats s = stats.get(op);
+         calls += s.latency.getCount();
+         all.add(s.latency);
+         System.out.println(line(op, s.latency, seconds, s.errors.get()));
+      }
+      System.out.println(line("total", all, seconds, -1));
+      System.out.println(esql.getPoolStats());
+   }//end report
+
+   private static String line(String op, LatencyHistogram h, double seconds, long errors) {
+      return String.format("%-22s %9d %9.1f %9.2f %9.2f %9.2f %7s", op, h.getCount(), h.getCount() / seconds,
+                           h.getPercentileNanos(50) / 1e6, h.getPercentileNanos(95) / 1e6,
+                           h.getPercentileNanos(99) / 1e6, errors < 0 ? "" : String.valueOf(errors));
+   }//end line
+
+   private void loadFixtures() throws SQLException {
+      final List<Integer> ids = new ArrayList<Integer>();
+      esql.executeQueryAndStreamResult("SELECT storeID FROM Store", new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            ids.add(rs.getInt(1));
+            return true;
+         }
+      });
+      if (ids.isEmpty()) throw new IllegalStateException("Load the data first: Store is empty");
+      storeIds = ids;
+      List<List<String>> w = esql.executeQueryAndReturnResult("SELECT MIN(WarehouseID) FROM Warehouse");
+      warehouseId = w.get(0).get(0) == null ? 1 : Integer.parseInt(w.get(0).get(0));
+   }//end loadFixtures
+
+   private List<Principal> principals(String query, int limit) throws SQLException {
+      List<Principal> result = new ArrayList<Principal>();
+      if (limit <= 0) return result;
+      for (List<String> row : esql.executeQueryAndReturnResult(query, limit)) {
+         Principal p = esql.getAuthorizations().get(row.get(0));
+         if (p != null) result.add(p);
+      }
+      return result;
+   }//end principals
+
+   private int anyStore(Random random) {
+      return storeIds.get(random.nextInt(storeIds.size()));
+   }
+
+   private int ownStore(Principal user, Random random) {
+      if (user.isAdmin()) return anyStore(random);
+      List<Integer> own = new ArrayList<Integer>(user.getManagedStores());
+      return own.get(random.nextInt(own.size()));
+   }
+
+   // Product names are read once per store and shared by all clients.
+   private String anyProduct(int storeId, Random random) throws SQLException {
+      List<String> names = productsByStore.get(storeId);
+      if (names == null) {
+         final List<String> loaded = new ArrayList<String>();
+         esql.executeQueryAndStreamResult("SELECT productName FROM Product WHERE storeID = ?", new RowHandler() {
+            public boolean handleRow(ResultSet rs) throws SQLException {
+               loaded.add(rs.getString(1).trim());
+               return true;
+            }
+         }, storeId);
+         if (loaded.isEmpty()) loaded.add("none");
+         productsByStore.put(storeId, loaded);
+         names = loaded;
+      }
+      return names.get(random.nextInt(names.size()));
+   }//end anyProduct
+
+   private static String pick(Map<String, Integer> weights, int sum, Random random) {
+      int r = random.nextInt(sum);
+      for (Map.Entry<String, Integer> e : weights.entrySet()) {
+         r -= e.getValue();
+         if (r < 0) return e.getKey();
+      }
+      throw new IllegalStateException();
+   }//end pick
+
+   private static Map<String, Map<String, Integer>> defaultMix() {
+      Map<String, Map<String, Integer>> mix = new LinkedHashMap<String, Map<String, Integer>>();
+      for (String role : new String[] { CUSTOMER, MANAGER, ADMIN })
+         mix.put(role, new LinkedHashMap<String, Integer>());
+      for (Object[] entry : DEFAULT_MIX)
+         mix.get((String) entry[1]).put((String) entry[0], (Integer) entry[2]);
+      return mix;
+   }//end defaultMix
+
+   // Sets the weight of op for every role that may run it.
+   private static void setWeight(Map<String, Map<String, Integer>> mix, String op, int weight) {
+      boolean known = false;
+      for (Map<String, Integer> weights : mix.values()) {
+         if (weights.containsKey(op)) {
+            weights.put(op, weight);
+            known = true;
+         }
+      }
+      if (!known) throw new IllegalArgumentException("Unknown operation " + op);
+   }//end setWeight
+
+   // Executors.newVirtualThreadPerTaskExecutor() when running on Java 21+, else null.
+   private static ExecutorService virtualThreads() {
+      try{
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (Exception e){
+         return null;
+      }//end try
+   }//end virtualThreads
+}//end LoadDriver
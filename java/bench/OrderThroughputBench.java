@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures OrderService throughput with 1, 8 and 64 buyers hammering the
+ * same product of the same store, and checks that no units were oversold:
+ * the stock taken must equal the units recorded in Orders.
+ *
+ * The hot product is restocked before every round and the orders placed by
+ * the benchmark are left in the Orders relation; run it against a scratch
+ * database.
+ *
+ * Usage: java OrderThroughputBench dbname port user [seconds per round]
+ */
+public class OrderThroughputBench {
+
+   private static final int[] BUYERS = { 1, 8, 64 };
+   // few enough units that the bigger rounds run out and have to be refused
+   private static final int STOCK = 20000;
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java OrderThroughputBench <dbname> <port> <user> [seconds per round]");
+         return;
+      }
+      final long seconds = args.length > 3 ? Long.parseLong(args[3]) : 10;
+      // every buyer needs its own connection
+      if (System.getProperty("retail.pool.maxSize") == null)
+         System.setProperty("retail.pool.maxSize", String.valueOf(BUYERS[BUYERS.length - 1]));
+      Class.forName("org.postgresql.Driver").newInstance();
+      final Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         List<List<String>> hot = esql.executeQueryAndReturnResult(
+            "SELECT P.storeID, P.productName FROM Product P ORDER BY P.storeID, P.productName LIMIT 1");
+         List<List<String>> buyer = esql.executeQueryAndReturnResult(
+            "SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID LIMIT 1");
+         if (hot.isEmpty() || buyer.isEmpty()) {
+            System.err.println("Load the sample data first: no product or customer found");
+            return;
+         }
+         final int storeId = Integer.parseInt(hot.get(0).get(0));
+         final String productName = hot.get(0).get(1);
+         final int customerId = Integer.parseInt(buyer.get(0).get(0));
+         final OrderService orders = esql.getOrderService();
+         System.out.println("Hot product: store " + storeId + ", " + productName.trim());
+         System.out.println("buyers\torders/s\tplaced\trefused\tunits taken\torders recorded");
+
+         for (final int buyers : BUYERS) {
+            esql.executeUpdate("UPDATE Product SET numberOfUnits = ? WHERE storeID = ? AND productName = ?",
+                               STOCK, storeId, productName);
+            int ordersBefore = esql.count("SELECT 1 FROM Orders WHERE storeID = ? AND productName = ?",
+                                          storeId, productName);
+            final AtomicLong placed = new AtomicLong();
+            final AtomicLong refused = new AtomicLong();
+            final AtomicLong failed = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final long deadline[] = new long[1];
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < buyers; ++i) {
+               Thread t = new Thread(new Runnable() {
+                  public void run() {
+                     try{
+                        start.await();
+                        while (System.nanoTime() < deadline[0]) {
+                           try{
+                              if (orders.placeOrder(customerId, storeId, productName, 1).isPlaced())
+                                 placed.incrementAndGet();
+                              else
+                                 refused.incrementAndGet();
+                           }catch (Exception e){
+                              failed.incrementAndGet();
+                           }//end try
+                        }
+                     }catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                     }//end try
+                  }
+               }, "buyer-" + i);
+               threads.add(t);
+               t.start();
+            }
+            long began = System.nanoTime();
+            deadline[0] = began + seconds * 1000000000L;
+            start.countDown();
+            for (Thread t : threads) t.join();
+            double elapsed = (System.nanoTime() - began) / 1e9;
+
+            List<List<String>> left = esql.executeQueryAndReturnResult(
+               "SELECT numberOfUnits FROM Product WHERE storeID = ? AND productName = ?", storeId, productName);
+            int taken = STOCK - Integer.parseInt(left.get(0).get(0));
+            int recorded = esql.count("SELECT 1 FROM Orders WHERE storeID = ? AND productName = ?",
+                                      storeId, productName) - ordersBefore;
+            System.out.println(buyers + "\t" + String.format("%.0f", (placed.get() + refused.get()) / elapsed) +
+                               "\t" + placed.get() + "\t" + refused.get() + "\t" + taken + "\t" + recorded +
+                               (taken == recorded ? "" : "\tOVERSOLD") +
+                               (failed.get() == 0 ? "" : "\t" + failed.get() + " errors"));
+         }
+         System.out.println(esql.getPoolStats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+}//end OrderThroughputBench
@@ -0,0 +1,369 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Guards the query plans of the program against regressions. Every
+ * statement is run under EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) inside a
+ * transaction that is rolled back, and its plan is reduced to
+ *
+ *  - the shape: the tree of plan nodes with their relations and indexes,
+ *  - the estimated total cost, and
+ *  - the shared buffers hit or read.
+ *
+ * With -record these are written to the baseline file. Otherwise they are
+ * compared with it: the run fails when a statement gains a sequential scan
+ * on Orders or Product, or its estimated cost grows by more than the
+ * threshold. Shape changes and buffer growth are reported but do not fail.
+ *
+ * The statements come from a file written by running the program with
+ * -Dretail.sqlLog=file, which holds each statement with the parameters of
+ * its first execution, and from plain SQL files such as timeQuery.sql
+ * whose statements end with a semicolon. Run it against a database loaded
+ * with DataGenerator output, since plans over a tiny dataset say little.
+ *
+ * Usage: java PlanCheck dbname port user [-statements file] [-sql file]...
+ *        [-baseline file] [-record] [-threshold fraction]
+ */
+public class PlanCheck {
+
+   // relations where a new sequential scan fails the run
+   private static final String[] GUARDED = { "orders", "product" };
+
+   /**
+    * What is kept of one plan.
+    */
+   static class Plan {
+      final String shape;
+      final double cost;
+      final long buffers;
+      final TreeSet<String> seqScans = new TreeSet<String>();
+
+      Plan(String shape, double cost, long buffers) {
+         this.shape = shape;
+         this.cost = cost;
+         this.buffers = buffers;
+      }
+   }//end Plan
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java PlanCheck <dbname> <port> <user> [-statements file] [-sql file]..." +
+                            " [-baseline file] [-record] [-threshold fraction]");
+         return;
+      }
+      List<Object[]> statements = new ArrayList<Object[]>();
+      String baseline = "plans.tsv";
+      boolean record = false;
+      double threshold = 0.25;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("-statements")) readStatements(args[++i], statements);
+         else if (args[i].equals("-sql")) readSql(args[++i], statements);
+         else if (args[i].equals("-baseline")) baseline = args[++i];
+         else if (args[i].equals("-record")) record = true;
+         else if (args[i].equals("-threshold")) threshold = Double.parseDouble(args[++i]);
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+      if (statements.isEmpty()) {
+         System.err.println("No statements given");
+         System.exit(2);
+      }
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      Map<String, Plan> plans = new LinkedHashMap<String, Plan>();
+      Map<String, String> texts = new LinkedHashMap<String, String>();
+      try{
+         for (Object[] statement : statements) {
+            String sql = (String) statement[0];
+            Object[] params = new Object[statement.length - 1];
+            System.arraycopy(statement, 1, params, 0, params.length);
+            try{
+               plans.put(key(sql), explain(esql, sql, params));
+               texts.put(key(sql), sql);
+            }catch (SQLException e){
+               System.out.println("SKIPPED " + key(sql) + " " + oneLine(e.getMessage()) + "\n   " + oneLine(sql));
+            }//end try
+         }
+      }finally{
+         esql.cleanup();
+      }//end try
+
+      if (record) {
+         writeBaseline(baseline, plans, texts);
+         System.out.println("Recorded " + plans.size() + " plans in " + baseline);
+         return;
+      }
+      int failures = compare(readBaseline(baseline), plans, texts, threshold);
+      System.out.println(failures == 0 ? "PASSED" : "FAILED: " + failures + " regression(s)");
+      System.exit(failures == 0 ? 0 : 1);
+   }//end main
+
+   // Runs sql under EXPLAIN ANALYZE in a transaction that is rolled back.
+   static Plan explain(Retail esql, String sql, Object[] params) throws SQLException {
+      esql.beginTransaction();
+      try{
+         StringBuilder json = new StringBuilder();
+         for (List<String> row : esql.executeQueryAndReturnResult(
+                 "EXPLAIN (ANALYZE, BUFFERS, FORMAT JSON) " + sql, params))
+            json.append(row.get(0));
+         Object parsed = new Json(json.toString()).parse();
+         Map<?, ?> root = (Map<?, ?>) ((Map<?, ?>) ((List<?>) parsed).get(0)).get("Plan");
+         StringBuilder shape = new StringBuilder();
+         TreeSet<String> seqScans = new TreeSet<String>();
+         describe(root, shape, seqScans);
+         Plan plan = new Plan(shape.toString(), number(root, "Total Cost"),
+                              (long) (number(root, "Shared Hit Blocks") + number(root, "Shared Read Blocks")));
+         plan.seqScans.addAll(seqScans);
+         return plan;
+      }finally{
+         esql.rollback();
+      }//end try
+   }//end explain
+
+   // Appends "Node on relation using index(children...)" and collects sequential scans.
+   private static void describe(Map<?, ?> node, StringBuilder shape, TreeSet<String> seqScans) {
+      String type = (String) node.get("Node Type");
+      shape.append(type);
+      if (node.get("Relation Name") != null) shape.append(" on ").append(node.get("Relation Name"));
+      if (node.get("Index Name") != null) shape.append(" using ").append(node.get("Index Name"));
+      if ("Seq Scan".equals(type) && node.get("Relation Name") != null)
+         seqScans.add(((String) node.get("Relation Name")).toLowerCase());
+      List<?> children = (List<?>) node.get("Plans");
+      if (children == null) return;
+      shape.append('(');
+      for (int i = 0; i < children.size(); ++i) {
+         if (i > 0) shape.append(", ");
+         describe((Map<?, ?>) children.get(i), shape, seqScans);
+      }
+      shape.append(')');
+   }//end describe
+
+   // Reports every difference and returns the number of failing ones.
+   private static int compare(Map<String, Plan> baseline, Map<String, Plan> plans, Map<String, String> texts,
+                              double threshold) {
+      int failures = 0;
+      for (Map.Entry<String, Plan> e : plans.entrySet()) {
+         Plan now = e.getValue(), before = baseline.get(e.getKey());
+         String name = e.getKey() + " " + oneLine(texts.get(e.getKey()));
+         if (before == null) {
+            System.out.println("NEW     " + name);
+            continue;
+         }
+         List<String> problems = new ArrayList<String>(), notes = new ArrayList<String>();
+         for (String table : GUARDED)
+            if (now.seqScans.contains(table) && !before.seqScans.contains(table))
+               problems.add("new sequential scan on " + table);
+         if (now.cost > before.cost * (1 + threshold))
+            problems.add(String.format("cost %.1f -> %.1f", before.cost, now.cost));
+         if (!now.shape.equals(before.shape))
+            notes.add("plan " + before.shape + "\n      -> " + now.shape);
+         if (now.buffers > before.buffers * (1 + threshold) && now.buffers - before.buffers > 8)
+            notes.add("buffers " + before.buffers + " -> " + now.buffers);
+         if (!problems.isEmpty()) ++failures;
+         if (problems.isEmpty() && notes.isEmpty()) continue;
+         System.out.println((problems.isEmpty() ? "CHANGED " : "FAILED  ") + name);
+         for (String p : problems) System.out.println("      " + p);
+         for (String n : notes) System.out.println("      " + n);
+      }
+      for (String key : baseline.keySet())
+         if (!plans.containsKey(key))
+            System.out.println("GONE    " + key);
+      return failures;
+   }//end compare
+
+   // baseline line: key TAB cost TAB buffers TAB seq scans TAB shape TAB sql
+   private static void writeBaseline(String file, Map<String, Plan> plans, Map<String, String> texts)
+      throws IOException {
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try{
+         for (Map.Entry<String, Plan> e : plans.entrySet()) {
+            Plan p = e.getValue();
+            StringBuilder scans = new StringBuilder();
+            for (String t : p.seqScans) scans.append(scans.length() == 0 ? "" : ",").append(t);
+            out.write(e.getKey() + "\t" + p.cost + "\t" + p.buffers + "\t" + scans + "\t" + p.shape + "\t"
+                      + oneLine(texts.get(e.getKey())) + "\n");
+         }
+      }finally{
+         out.close();
+      }//end try
+   }//end writeBaseline
+
+   private static Map<String, Plan> readBaseline(String file) throws IOException {
+      Map<String, Plan> baseline = new LinkedHashMap<String, Plan>();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] f = line.split("\t", -1);
+            if (f.length < 5) continue;
+            Plan p = new Plan(f[4], Double.parseDouble(f[1]), Long.parseLong(f[2]));
+            for (String t : f[3].split(","))
+               if (!t.isEmpty()) p.seqScans.add(t);
+            baseline.put(f[0], p);
+         }
+      }finally{
+         in.close();
+      }//end try
+      return baseline;
+   }//end readBaseline
+
+   // Statements logged by SqlLog, with their parameters.
+   private static void readStatements(String file, List<Object[]> into) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         String line;
+         while ((line = in.readLine()) != null)
+            if (!line.trim().isEmpty()) into.add(SqlLog.parse(line));
+      }finally{
+         in.close();
+      }//end try
+   }//end readStatements
+
+   // Statements of a SQL script, split at semicolons; -- comments are dropped.
+   private static void readSql(String file, List<Object[]> into) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try{
+         StringBuilder statement = new StringBuilder();
+         String line;
+         while ((line = in.readLine()) != null) {
+            int comment = line.indexOf("--");
+            if (comment >= 0) line = line.substring(0, comment);
+            statement.append(line).append('\n');
+            int end;
+            while ((end = statement.indexOf(";")) >= 0) {
+               String sql = statement.substring(0, end).trim();
+               if (!sql.isEmpty()) into.add(new Object[] { sql });
+               statement.delete(0, end + 1);
+            }
+         }
+         if (!statement.toString().trim().isEmpty()) into.add(new Object[] { statement.toString().trim() });
+      }finally{
+         in.close();
+      }//end try
+   }//end readSql
+
+   // Statements are identified by their text with whitespace collapsed.
+   private static String key(String sql) {
+      return String.format("%08x", sql.trim().replaceAll("\\s+", " ").hashCode());
+   }//end key
+
+   private static String oneLine(String s) {
+      return s == null ? "" : s.trim().replaceAll("\\s+", " ");
+   }//end oneLine
+
+   private static double number(Map<?, ?> node, String field) {
+      Object value = node.get(field);
+      return value instanceof Number ? ((Number) value).doubleValue() : 0;
+   }//end number
+
+   /**
+    * Just enough of a JSON parser for EXPLAIN output: objects become
+    * LinkedHashMaps, arrays ArrayLists, numbers Doubles.
+    */
+   static class Json {
+      private final String text;
+      private int pos = 0;
+
+      Json(String text) {
+         this.text = text;
+      }
+
+      Object parse() {
+         Object value = value();
+         skipSpace();
+         if (pos != text.length()) throw error("trailing characters");
+         return value;
+      }
+
+      private Object value() {
+         skipSpace();
+         if (pos >= text.length()) throw error("unexpected end");
+         char c = text.charAt(pos);
+         if (c == '{') return object();
+         if (c == '[') return array();
+         if (c == '"') return string();
+         if (text.startsWith("true", pos)) { pos += 4; return Boolean.TRUE; }
+         if (text.startsWith("false", pos)) { pos += 5; return Boolean.FALSE; }
+         if (text.startsWith("null", pos)) { pos += 4; return null; }
+         int start = pos;
+         while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) ++pos;
+         if (start == pos) throw error("unexpected '" + c + "'");
+         return Double.valueOf(text.substring(start, pos));
+      }
+
+      private Map<String, Object> object() {
+         Map<String, Object> map = new LinkedHashMap<String, Object>();
+         ++pos;
+         skipSpace();
+         if (text.charAt(pos) == '}') { ++pos; return map; }
+         while (true) {
+            skipSpace();
+            String name = string();
+            skipSpace();
+            expect(':');
+            map.put(name, value());
+            skipSpace();
+            if (text.charAt(pos) == '}') { ++pos; return map; }
+            expect(',');
+         }
+      }
+
+      private List<Object> array() {
+         List<Object> list = new ArrayList<Object>();
+         ++pos;
+         skipSpace();
+         if (text.charAt(pos) == ']') { ++pos; return list; }
+         while (true) {
+            list.add(value());
+            skipSpace();
+            if (text.charAt(pos) == ']') { ++pos; return list; }
+            expect(',');
+         }
+      }
+
+      private String string() {
+         expect('"');
+         StringBuilder s = new StringBuilder();
+         while (text.charAt(pos) != '"') {
+            char c = text.charAt(pos++);
+            if (c != '\\') { s.append(c); continue; }
+            char e = text.charAt(pos++);
+            switch (e) {
+               case 'n': s.append('\n'); break;
+               case 't': s.append('\t'); break;
+               case 'r': s.append('\r'); break;
+               case 'b': s.append('\b'); break;
+               case 'f': s.append('\f'); break;
+               case 'u': s.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16)); pos += 4; break;
+               default: s.append(e);
+            }
+         }
+         ++pos;
+         return s.toString();
+      }
+
+      private void expect(char c) {
+         if (pos >= text.length() || text.charAt(pos) != c) throw error("expected '" + c + "'");
+         ++pos;
+      }
+
+      private void skipSpace() {
+         while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) ++pos;
+      }
+
+      private IllegalArgumentException error(String what) {
+         return new IllegalArgumentException("Bad JSON at " + pos + ": " + what);
+      }
+   }//end Json
+}//end PlanCheck
@@ -0,0 +1,259 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks the Retail execute methods and the operation behind every menu
+ * item against a running PostgreSQL database. Each benchmark is first run
+ * for a warm-up period, so the pool, statement caches and server caches
+ * are warm, then measured for a fixed time by a number of threads that call
+ * it back to back. Throughput and the latency distribution are reported per
+ * benchmark.
+ *
+ * Read-only benchmarks run by default. With -writes the benchmarks that
+ * place orders, update and restock products and add/remove users and
+ * products run as well; those change the data, so point them at a scratch
+ * database.
+ *
+ * Usage: java RetailBench dbname port user [-threads n] [-warmup seconds]
+ *        [-time seconds] [-writes] [-only name,name,...]
+ */
+public class RetailBench {
+
+   // One call of the code being measured.
+   private interface Benchmark {
+      void run() throws Exception;
+   }
+
+   // Reads every column of every row, as a client printing the rows would.
+   private static final RowHandler CONSUME = new RowHandler() {
+      public boolean handleRow(ResultSet rs) throws SQLException {
+         int columns = rs.getMetaData().getColumnCount();
+         for (int i = 1; i <= columns; ++i)
+            rs.getString(i);
+         return true;
+      }
+   };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java RetailBench <dbname> <port> <user> [-threads n] [-warmup seconds]" +
+                            " [-time seconds] [-writes] [-only name,name,...]");
+         return;
+      }
+      int threads = 1;
+      long warmup = 5, time = 10;
+      boolean writes = false;
+      List<String> only = null;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-warmup")) warmup = Long.parseLong(args[++i]);
+         else if (args[i].equals("-time")) time = Long.parseLong(args[++i]);
+         else if (args[i].equals("-writes")) writes = true;
+         else if (args[i].equals("-only")) only = Arrays.asList(args[++i].split(","));
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+      // every thread needs its own connection
+      if (System.getProperty("retail.pool.maxSize") == null)
+         System.setProperty("retail.pool.maxSize", String.valueOf(Math.max(10, threads)));
+      Class.forName("org.postgresql.Driver").newInstance();
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         Map<String, Benchmark> benchmarks = benchmarks(esql, writes);
+         System.out.println(String.format("%-36s %10s  %s", "benchmark", "ops/s", "latency"));
+         for (Map.Entry<String, Benchmark> b : benchmarks.entrySet()) {
+            if (only != null && !only.contains(b.getKey())) continue;
+            measure(b.getValue(), threads, warmup);
+            LatencyHistogram latency = new LatencyHistogram();
+            long calls = measure(b.getValue(), threads, time, latency);
+            System.out.println(String.format("%-36s %10.1f  %s", b.getKey(), calls / (double) time, latency));
+         }
+         System.out.println(esql.getPoolStats());
+         System.out.println(esql.getStatementCacheStats());
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   // Builds the benchmarks, using sample users, stores and products from the database.
+   private static Map<String, Benchmark> benchmarks(final Retail esql, boolean writes) throws SQLException {
+      final RetailOperations ops = esql.getOperations();
+      final Principal admin = firstUser(esql, "admin");
+      final Principal manager = firstManager(esql);
+      final Principal customer = firstUser(esql, "customer");
+
+      List<StoreLocator.Match> nearby = ops.viewStores(customer);
+      if (nearby.isEmpty())
+         throw new IllegalStateException("Customer " + customer.userId + " has no store nearby");
+      final int storeId = nearby.get(0).store.storeId;
+      final String productName = scalar(esql, "SELECT productName FROM Product WHERE storeID = ? ORDER BY productName LIMIT 1", storeId);
+      final int managedStore = manager.getManagedStores().iterator().next();
+      final String managedProduct = scalar(esql, "SELECT productName FROM Product WHERE storeID = ? ORDER BY productName LIMIT 1", managedStore);
+      final int warehouseId = Integer.parseInt(scalar(esql, "SELECT MIN(WarehouseID) FROM Warehouse"));
+
+      Map<String, Benchmark> b = new LinkedHashMap<String, Benchmark>();
+      // the data-access layer
+      b.put("executeQueryAndReturnResult", new Benchmark() {
+         public void run() throws Exception {
+            esql.executeQueryAndReturnResult("SELECT * FROM Product WHERE storeID = ? AND productName = ?", storeId, productName);
+         }
+      });
+      b.put("executeQueryAndStreamResult", new Benchmark() {
+         public void run() throws Exception {
+            esql.executeQueryAndStreamResult("SELECT * FROM Product WHERE storeID = ?", CONSUME, storeId);
+         }
+      });
+      b.put("exists", new Benchmark() {
+         public void run() throws Exception {
+            esql.exists("SELECT * FROM Product WHERE storeID = ? AND productName = ?", storeId, productName);
+         }
+      });
+      b.put("count", new Benchmark() {
+         public void run() throws Exception {
+            esql.count("SELECT * FROM Orders WHERE storeID = ?", storeId);
+         }
+      });
+      // the menu operations
+      b.put("viewStores", new Benchmark() {
+         public void run() throws Exception { ops.viewStores(customer); }
+      });
+      b.put("viewProducts", new Benchmark() {
+         public void run() throws Exception { ops.viewProducts(storeId, CONSUME); }
+      });
+      b.put("viewRecentOrders(customer)", new Benchmark() {
+         public void run() throws Exception { ops.viewRecentOrders(customer, CONSUME); }
+      });
+      b.put("viewRecentOrders(manager)", new Benchmark() {
+         public void run() throws Exception { ops.viewRecentOrders(manager, CONSUME); }
+      });
+      b.put("viewRecentOrders(admin)", new Benchmark() {
+         public void run() throws Exception { ops.viewRecentOrders(admin, CONSUME); }
+      });
+      b.put("viewRecentUpdates(manager)", new Benchmark() {
+         public void run() throws Exception { ops.viewRecentUpdates(manager, CONSUME); }
+      });
+      b.put("viewRecentUpdates(admin)", new Benchmark() {
+         public void run() throws Exception { ops.viewRecentUpdates(admin, CONSUME); }
+      });
+      b.put("viewPopularProducts(manager)", new Benchmark() {
+         public void run() throws Exception { ops.viewPopularProducts(manager, CONSUME); }
+      });
+      b.put("viewPopularProducts(admin)", new Benchmark() {
+         public void run() throws Exception { ops.viewPopularProducts(admin, CONSUME); }
+      });
+      b.put("viewPopularCustomers(manager)", new Benchmark() {
+         public void run() throws Exception { ops.viewPopularCustomers(manager, CONSUME); }
+      });
+      b.put("viewPopularCustomers(admin)", new Benchmark() {
+         public void run() throws Exception { ops.viewPopularCustomers(admin, CONSUME); }
+      });
+      b.put("viewOrders(manager)", new Benchmark() {
+         public void run() throws Exception { ops.viewOrders(manager, CONSUME); }
+      });
+      b.put("viewOrders(admin)", new Benchmark() {
+         public void run() throws Exception { ops.viewOrders(admin, CONSUME); }
+      });
+      b.put("viewUsers", new Benchmark() {
+         public void run() throws Exception { ops.viewUsers(admin, CONSUME); }
+      });
+      if (!writes) return b;
+
+      final AtomicLong unique = new AtomicLong(System.currentTimeMillis() % 1000000);
+      b.put("placeOrder", new Benchmark() {
+         public void run() throws Exception {
+            // keep the product in stock so every order is placed
+            if (!ops.placeOrder(customer, storeId, productName, 1).isPlaced())
+               ops.placeSupplyRequest(admin, storeId, productName, 100000, warehouseId);
+         }
+      });
+      b.put("updateProduct", new Benchmark() {
+         public void run() throws Exception { ops.updateProduct(manager, managedStore, managedProduct, 100000, 1.0); }
+      });
+      b.put("placeSupplyRequest", new Benchmark() {
+         public void run() throws Exception { ops.placeSupplyRequest(manager, managedStore, managedProduct, 1, warehouseId); }
+      });
+      b.put("addUser+removeUser", new Benchmark() {
+         public void run() throws Exception {
+            int id = ops.addUser(admin, "bench" + unique.incrementAndGet(), "bench", 0, 0, "customer");
+            ops.removeUser(admin, id);
+         }
+      });
+      b.put("addProduct+removeProduct", new Benchmark() {
+         public void run() throws Exception {
+            String name = "bench" + unique.incrementAndGet();
+            ops.addProduct(admin, managedStore, name, 1, 1.0);
+            ops.removeProduct(admin, managedStore, name);
+         }
+      });
+      return b;
+   }//end benchmarks
+
+   // Runs b from threads threads for seconds seconds and returns the number of calls.
+   private static long measure(final Benchmark b, int threads, long seconds, final LatencyHistogram... into)
+      throws InterruptedException {
+      final AtomicLong calls = new AtomicLong();
+      final AtomicLong failures = new AtomicLong();
+      final CountDownLatch start = new CountDownLatch(1);
+      final long[] deadline = new long[1];
+      final List<LatencyHistogram> perThread = new ArrayList<LatencyHistogram>();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < threads; ++i) {
+         final LatencyHistogram mine = new LatencyHistogram();
+         perThread.add(mine);
+         Thread t = new Thread(new Runnable() {
+            public void run() {
+               try{
+                  start.await();
+                  while (System.nanoTime() < deadline[0]) {
+                     long began = System.nanoTime();
+                     try{
+                        b.run();
+                     }catch (Exception e){
+                        if (failures.incrementAndGet() == 1)
+                           System.err.println(e.getMessage());
+                     }//end try
+                     mine.record(System.nanoTime() - began);
+                     calls.incrementAndGet();
+                  }
+               }catch (InterruptedException e){
+                  Thread.currentThread().interrupt();
+               }//end try
+            }
+         }, "bench-" + i);
+         workers.add(t);
+         t.start();
+      }
+      deadline[0] = System.nanoTime() + seconds * 1000000000L;
+      start.countDown();
+      for (Thread t : workers) t.join();
+      for (LatencyHistogram h : into)
+         for (LatencyHistogram mine : perThread)
+            h.add(mine);
+      if (failures.get() > 0)
+         System.err.println(failures.get() + " calls failed");
+      return calls.get();
+   }//end measure
+
+   private static Principal firstUser(Retail esql, String type) throws SQLException {
+      String id = scalar(esql, "SELECT MIN(userID) FROM Users WHERE type = ?", type);
+      if (id == null) throw new IllegalStateException("No " + type + " in Users");
+      return esql.getAuthorizations().get(id);
+   }//end firstUser
+
+   private static Principal firstManager(Retail esql) throws SQLException {
+      String id = scalar(esql, "SELECT MIN(U.userID) FROM Users U, Store S WHERE S.managerID = U.userID AND U.type = 'manager'");
+      if (id == null) throw new IllegalStateException("No manager owning a store in Users");
+      return esql.getAuthorizations().get(id);
+   }//end firstManager
+
+   private static String scalar(Retail esql, String query, Object... params) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(query, params);
+      return rows.isEmpty() ? null : rows.get(0).get(0);
+   }//end scalar
+}//end RetailBench
@@ -0,0 +1,12 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../src/Retail.java
+
+# run the commands of a file instead of the menu:
+#    batch.sh <command file> [<results file>]
+java -Dretail.batch.workers=${WORKERS:-8} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER -batch "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the benchmarks together with the program they measure
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../bench/RetailBench.java
+
+# run them; extra arguments are passed on, e.g. -threads 8 -writes
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar RetailBench $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the benchmark together with the program it measures
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../bench/OrderThroughputBench.java
+
+# run it; the optional argument is the number of seconds per round
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar OrderThroughputBench $USER"_DB" $PGPORT $USER $1
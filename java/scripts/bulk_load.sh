@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the loader
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../src/BulkLoader.java
+
+# load the CSVs from the client; arguments are passed on, e.g. -data /tmp/retail -threads 4 -truncate
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar BulkLoader $USER"_DB" $PGPORT $USER -data $DIR/../../data "$@"
@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the generator
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../src/DataGenerator.java
+
+# generate the CSVs; arguments are passed on, e.g. -orders 10000000 -out /tmp/retail
+java -cp $DIR/../classes DataGenerator "$@"
@@ -0,0 +1,8 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+# virtual threads need Java 21 or later; older JVMs fall back to platform threads
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../bench/LoadDriver.java
+
+# run it; arguments are passed on, e.g. -clients 100,1000,5000 -duration 60
+java -Dretail.pool.maxSize=${POOL_SIZE:-32} -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar LoadDriver $USER"_DB" $PGPORT $USER "$@"
@@ -0,0 +1,21 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../bench/RetailBench.java $DIR/../bench/PlanCheck.java
+CP=$DIR/../classes:$DIR/../lib/pg73jdbc3.jar
+PLANS=$DIR/../bench/plans
+mkdir -p $PLANS
+
+# capture the statements of every menu operation with sample parameters; the
+# caches and the store index are off so each operation reaches the database.
+# The write benchmarks change the data, use a scratch database.
+rm -f $PLANS/statements.log
+java -Dretail.sqlLog=$PLANS/statements.log -Dretail.storeIndex=false -Dretail.popularCustomers.exact=true \
+     -cp $CP RetailBench $USER"_DB" $PGPORT $USER -warmup 0 -time 1 -writes > /dev/null
+
+# compare their plans with the baseline; pass -record to write a new one
+java -cp $CP PlanCheck $USER"_DB" $PGPORT $USER -statements $PLANS/statements.log \
+     -sql $DIR/../../sql/src/timeQuery.sql -baseline $PLANS/baseline.tsv "$@"
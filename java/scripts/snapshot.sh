@@ -0,0 +1,11 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the snapshot tool
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../src/Snapshot.java
+
+# export or restore; e.g. snapshot.sh export /tmp/retail-snap, snapshot.sh restore /tmp/retail-snap -threads 8
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Snapshot $USER"_DB" $PGPORT $USER "$@"
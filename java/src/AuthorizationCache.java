@@ -0,0 +1,105 @@
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the Principal of every user seen by this process, keyed by userID.
+ * A principal is resolved with a single query joining Users to the stores
+ * the user manages, either at log in or on the first permission check, and
+ * stays cached until invalidate() is called for that user.
+ */
+public class AuthorizationCache {
+
+   // one row per managed store, or a single row with a NULL storeID
+   private static final String PRINCIPAL_COLUMNS =
+      "SELECT U.userID, U.name, U.type, U.latitude, U.longitude, S.storeID " +
+      "FROM Users U LEFT JOIN Store S ON S.managerID = U.userID ";
+
+   private final Retail esql;
+   private final ConcurrentMap<Integer, Principal> principals =
+      new ConcurrentHashMap<Integer, Principal>();
+
+   public AuthorizationCache(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Checks log in credentials and caches the matching principal.
+    *
+    * @return the principal, or null when no user has this name and password
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Principal login(String name, String password) throws SQLException {
+      List<List<String>> rows = esql.executeQueryAndReturnResult(
+         PRINCIPAL_COLUMNS + "WHERE U.name = ? AND U.password = ? ORDER BY U.userID", name, password);
+      Principal principal = toPrincipal(rows);
+      if (principal != null)
+         principals.put(principal.userId, principal);
+      return principal;
+   }//end login
+
+   /**
+    * Returns the cached principal of a user, loading it on a miss.
+    *
+    * @param userId the userID, as kept in Retail.uId
+    * @return the principal, or null when the user does not exist
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public Principal get(String userId) throws SQLException {
+      if (userId == null) return null;
+      Integer key;
+      try{
+         key = Integer.valueOf(userId.trim());
+      }catch (NumberFormatException e){
+         return null;
+      }//end try
+      Principal principal = principals.get(key);
+      if (principal != null) return principal;
+
+      principal = toPrincipal(esql.executeQueryAndReturnResult(PRINCIPAL_COLUMNS + "WHERE U.userID = ?", key));
+      if (principal != null)
+         principals.put(key, principal);
+      return principal;
+   }//end get
+
+   /**
+    * Drops the cached principal of a user whose row was added, changed or
+    * removed, so the next permission check reads it again.
+    */
+   public void invalidate(String userId) {
+      try{
+         principals.remove(Integer.valueOf(userId.trim()));
+      }catch (NumberFormatException e){
+         // no such user can be cached
+      }//end try
+   }//end invalidate
+
+   /**
+    * Drops the cached principal of every manager, so their stores are read
+    * again on the next permission check.
+    */
+   public void invalidateManagers() {
+      for (Principal principal : principals.values())
+         if (principal.isManager())
+            principals.remove(principal.userId, principal);
+   }//end invalidateManagers
+
+   // Builds the principal of the first user in rows; later users sharing
+   // the same name and password are ignored, as LogIn always did.
+   private static Principal toPrincipal(List<List<String>> rows) {
+      if (rows.isEmpty()) return null;
+      List<String> first = rows.get(0);
+      String userId = first.get(0);
+      Set<Integer> stores = new HashSet<Integer>();
+      for (List<String> row : rows) {
+         if (!userId.equals(row.get(0))) break;
+         if (row.get(5) != null)
+            stores.add(Integer.valueOf(row.get(5)));
+      }
+      return new Principal(Integer.parseInt(userId), first.get(1).trim(), first.get(2).trim(),
+                           Double.parseDouble(first.get(3)), Double.parseDouble(first.get(4)), stores);
+   }//end toPrincipal
+}//end AuthorizationCache
@@ -0,0 +1,426 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs menu operations from a command file instead of the keyboard, one
+ * command per line:
+ *
+ *    placeOrder customer=24 store=2 product=Pepsi units=5
+ *    updateProduct manager=20 store=2 product="Orange Juice" units=40 price=3
+ *
+ * The acting user is given by one of customer=, manager=, admin= or as=.
+ * Blank lines and lines starting with # are skipped.
+ *
+ * Commands are spread over worker lanes by the store they touch (or a user
+ * when they touch no store). Commands sharing a store or a user, acting or
+ * acted on, run in file order: a command whose store or users were last
+ * touched by a command of another lane waits until that one has finished
+ * before it is queued. Independent commands run side by side. Each lane takes
+ * the commands waiting for it in groups and runs a group in one
+ * transaction; when a group fails it is rolled back and its commands are
+ * run again one transaction each, so one bad command does not take its
+ * neighbours down. Every command gets a line in the results file:
+ *
+ *    line  status  detail
+ *
+ * with status OK, REFUSED (the operation declined, e.g. out of stock) or
+ * FAILED (an error), in the order the commands completed.
+ */
+public class BatchRunner {
+
+   private static final Command END = new Command(0, "", new LinkedHashMap<String, String>());
+
+   // Reads and discards rows, counting is done by the execute methods.
+   private static final RowHandler DISCARD = new RowHandler() {
+      public boolean handleRow(ResultSet rs) {
+         return true;
+      }
+   };
+
+   private final Retail esql;
+   private final RetailOperations ops;
+   private final int workers;
+   private final int groupSize;
+   private final AtomicLong ok = new AtomicLong();
+   private final AtomicLong refused = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   // commands finished per lane, guarded by itself
+   private long[] completed;
+   private Writer results;
+
+   /**
+    * One parsed line of the command file.
+    */
+   static class Command {
+      final int line;
+      final String op;
+      final Map<String, String> args;
+
+      Command(int line, String op, Map<String, String> args) {
+         this.line = line;
+         this.op = op;
+         this.args = args;
+      }
+
+      String get(String key) {
+         String value = args.get(key);
+         if (value == null)
+            throw new IllegalArgumentException(op + " needs " + key + "=");
+         return value;
+      }
+
+      int getInt(String key) {
+         return Integer.parseInt(get(key).trim());
+      }
+
+      double getDouble(String key) {
+         return Double.parseDouble(get(key).trim());
+      }
+
+      // the acting user
+      String user() {
+         for (String key : new String[] { "customer", "manager", "admin", "as" })
+            if (args.containsKey(key)) return args.get(key);
+         throw new IllegalArgumentException(op + " needs customer=, manager=, admin= or as=");
+      }
+
+      // every store and user the command touches; commands sharing any of
+      // them must run in file order. The first one picks the lane.
+      List<String> conflictKeys() {
+         List<String> keys = new ArrayList<String>();
+         if (args.containsKey("store")) keys.add("store:" + args.get("store").trim());
+         if (args.containsKey("user")) keys.add("user:" + args.get("user").trim());
+         for (String key : new String[] { "customer", "manager", "admin", "as" })
+            if (args.containsKey(key)) keys.add("user:" + args.get(key).trim());
+         if (keys.isEmpty()) user();   // reports the missing user
+         return keys;
+      }
+   }//end Command
+
+   /**
+    * What a command did: the detail written to the results file, and
+    * whether the operation declined.
+    */
+   static class Result {
+      final boolean refused;
+      final String detail;
+
+      private Result(boolean refused, String detail) {
+         this.refused = refused;
+         this.detail = detail;
+      }
+
+      static Result done(String detail) {
+         return new Result(false, detail);
+      }
+
+      static Result refused(String reason) {
+         return new Result(true, reason);
+      }
+   }//end Result
+
+   /**
+    * @param workers number of lanes run side by side
+    * @param groupSize most commands run in one transaction
+    */
+   public BatchRunner(Retail esql, int workers, int groupSize) {
+      this.esql = esql;
+      this.ops = esql.getOperations();
+      this.workers = Math.max(1, workers);
+      this.groupSize = Math.max(1, groupSize);
+   }//end BatchRunner
+
+   /**
+    * Runs every command of a file and writes one result line per command.
+    *
+    * @param commandFile the commands, one per line
+    * @param resultFile where the results are written
+    * @throws java.io.IOException when a file cannot be read or written
+    * @throws java.lang.InterruptedException when interrupted while waiting for the lanes
+    */
+   public void run(String commandFile, String resultFile) throws IOException, InterruptedException {
+      long began = System.currentTimeMillis();
+      results = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(resultFile), "UTF-8"));
+      List<BlockingQueue<Command>> lanes = new ArrayList<BlockingQueue<Command>>();
+      List<Thread> threads = new ArrayList<Thread>();
+      completed = new long[workers];
+      try{
+         for (int i = 0; i < workers; ++i) {
+            final int index = i;
+            final BlockingQueue<Command> lane = new ArrayBlockingQueue<Command>(groupSize * 4);
+            lanes.add(lane);
+            Thread t = new Thread(new Runnable() {
+               public void run() { drain(index, lane); }
+            }, "batch-" + i);
+            threads.add(t);
+            t.start();
+         }
+
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(commandFile), "UTF-8"));
+         // commands queued per lane, and the lane and position of the last
+         // command that touched each key
+         long[] queued = new long[workers];
+         Map<String, long[]> lastUse = new HashMap<String, long[]>();
+         try{
+            String text;
+            int line = 0;
+            while ((text = reader.readLine()) != null) {
+               ++line;
+               Command command;
+               try{
+                  command = parse(line, text);
+                  if (command == null) continue;
+                  lanes.get(dispatch(command, queued, lastUse)).put(command);
+               }catch (IllegalArgumentException e){
+                  record(line, "FAILED", e.getMessage());
+               }//end try
+            }
+         }finally{
+            reader.close();
+            for (BlockingQueue<Command> lane : lanes) lane.put(END);
+            for (Thread t : threads) t.join();
+         }//end try
+      }finally{
+         results.close();
+      }//end try
+      System.out.println(String.format("Batch done in %.1fs: %d ok, %d refused, %d failed",
+                                       (System.currentTimeMillis() - began) / 1000.0,
+                                       ok.get(), refused.get(), failed.get()));
+   }//end run
+
+   // Picks the lane of a command. A key last touched on another lane makes
+   // it wait until that lane has finished the command that touched it.
+   private int dispatch(Command command, long[] queued, Map<String, long[]> lastUse) throws InterruptedException {
+      List<String> keys = command.conflictKeys();
+      int lane = (keys.get(0).hashCode() & 0x7fffffff) % workers;
+      for (String key : keys) {
+         long[] last = lastUse.get(key);
+         if (last != null && last[0] != lane) awaitCompleted((int) last[0], last[1]);
+      }
+      long position = ++queued[lane];
+      for (String key : keys)
+         lastUse.put(key, new long[] { lane, position });
+      return lane;
+   }//end dispatch
+
+   private void awaitCompleted(int lane, long position) throws InterruptedException {
+      synchronized (completed) {
+         while (completed[lane] < position)
+            completed.wait();
+      }
+   }//end awaitCompleted
+
+   private void finished(int lane, int commands) {
+      synchronized (completed) {
+         completed[lane] += commands;
+         completed.notifyAll();
+      }
+   }//end finished
+
+   // Runs the commands of one lane, a group per transaction, until END.
+   private void drain(int index, BlockingQueue<Command> lane) {
+      try{
+         boolean done = false;
+         while (!done) {
+            List<Command> group = new ArrayList<Command>();
+            group.add(lane.take());
+            // whatever else is already waiting joins the group
+            while (group.size() < groupSize && lane.peek() != null)
+               group.add(lane.poll());
+            if (group.get(group.size() - 1) == END) {
+               group.remove(group.size() - 1);
+               done = true;
+            }
+            if (!group.isEmpty()) {
+               try{
+                  runGroup(group);
+               }finally{
+                  finished(index, group.size());
+               }//end try
+            }
+         }
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+      }//end try
+   }//end drain
+
+   // Runs a group in one transaction, falling back to one transaction per command.
+   private void runGroup(List<Command> group) {
+      if (group.size() > 1) {
+         List<Result> outcomes = new ArrayList<Result>();
+         try{
+            esql.beginTransaction();
+            for (Command c : group)
+               outcomes.add(execute(c));
+            esql.commit();
+            for (int i = 0; i < group.size(); ++i)
+               report(group.get(i), outcomes.get(i));
+            return;
+         }catch (Exception e){
+            esql.rollback();
+            // orders placed by the group were announced but are gone now
+            boolean ordered = false;
+            for (Command c : group) {
+               if (!c.op.equals("placeOrder")) continue;
+               ordered = true;
+               if (c.args.containsKey("customer"))
+                  forgetOrders(c.args.get("customer"));
+            }
+            if (ordered) esql.getPopularCustomers().invalidate();
+         }//end try
+      }
+      for (Command c : group) {
+         try{
+            esql.beginTransaction();
+            Result outcome = execute(c);
+            esql.commit();
+            report(c, outcome);
+         }catch (Exception e){
+            esql.rollback();
+            if (c.op.equals("placeOrder")) esql.getPopularCustomers().invalidate();
+            record(c.line, "FAILED", String.valueOf(e.getMessage()).trim());
+         }//end try
+      }
+   }//end runGroup
+
+   /**
+    * Runs one command.
+    *
+    * @return what was done, or why the operation was refused
+    */
+   Result execute(Command c) throws SQLException {
+      Principal user = null;
+      if (!c.op.equals("viewProducts")) {
+         user = esql.getAuthorizations().get(c.user());
+         if (user == null) throw new IllegalArgumentException("No user " + c.user());
+      }
+      if (c.op.equals("placeOrder"))
+         return placed(ops.placeOrder(user, c.getInt("store"), c.get("product"), c.getInt("units")));
+      if (c.op.equals("updateProduct"))
+         return ops.updateProduct(user, c.getInt("store"), c.get("product"), c.getInt("units"), c.getDouble("price"))
+            ? Result.done("updated") : Result.refused(NO_PRODUCT);
+      if (c.op.equals("placeSupplyRequest"))
+         return ops.placeSupplyRequest(user, c.getInt("store"), c.get("product"), c.getInt("units"),
+                                       c.getInt("warehouse")) ? Result.done("requested") : Result.refused(NO_PRODUCT);
+      if (c.op.equals("addUser"))
+         return Result.done("user " + ops.addUser(user, c.get("name"), c.get("password"), c.getDouble("latitude"),
+                                                  c.getDouble("longitude"), c.get("type")));
+      if (c.op.equals("addProduct")) {
+         ops.addProduct(user, c.getInt("store"), c.get("product"), c.getInt("units"), c.getDouble("price"));
+         return Result.done("added");
+      }
+      if (c.op.equals("removeUser"))
+         return removed(ops.removeUser(user, c.getInt("user")), "no such user");
+      if (c.op.equals("removeProduct"))
+         return removed(ops.removeProduct(user, c.getInt("store"), c.get("product")), NO_PRODUCT);
+      int rows;
+      if (c.op.equals("viewStores")) rows = ops.viewStores(user).size();
+      else if (c.op.equals("viewProducts")) rows = ops.viewProducts(c.getInt("store"), DISCARD);
+      else if (c.op.equals("viewRecentOrders")) rows = ops.viewRecentOrders(user, DISCARD);
+      else if (c.op.equals("viewRecentUpdates")) rows = ops.viewRecentUpdates(user, DISCARD);
+      else if (c.op.equals("viewPopularProducts")) rows = ops.viewPopularProducts(user, DISCARD);
+      else if (c.op.equals("viewPopularCustomers")) rows = ops.viewPopularCustomers(user, DISCARD);
+      else if (c.op.equals("viewOrders")) rows = ops.viewOrders(user, DISCARD);
+      else if (c.op.equals("viewUsers")) rows = ops.viewUsers(user, DISCARD);
+      else throw new IllegalArgumentException("Unknown command " + c.op);
+      return Result.done(rows + " row(s)");
+   }//end execute
+
+   private static final String NO_PRODUCT = "no such product in the store";
+
+   private static Result placed(OrderService.Result r) {
+      switch (r.status) {
+      case PLACED:             return Result.done("order " + r.orderNumber);
+      case INSUFFICIENT_STOCK: return Result.refused("not placed: not enough units left");
+      case INVALID_AMOUNT:     return Result.refused("not placed: units must be positive");
+      default:                 return Result.refused("not placed: unknown product or store not nearby");
+      }
+   }//end placed
+
+   private static Result removed(RemovalService.Outcome outcome, String notFound) {
+      switch (outcome) {
+      case REMOVED:            return Result.done("removed");
+      case PURGING:            return Result.done("being removed in the background");
+      case MANAGES_STORES:     return Result.refused("the user still manages stores; hand them over first");
+      default:                 return Result.refused(notFound);
+      }
+   }//end removed
+
+   private void forgetOrders(String customerId) {
+      try{
+         esql.getRecentOrders().invalidate(Integer.parseInt(customerId.trim()));
+      }catch (NumberFormatException e){
+         // never placed then.
+      }//end try
+   }//end forgetOrders
+
+   // Records a committed command.
+   private void report(Command c, Result outcome) {
+      record(c.line, outcome.refused ? "REFUSED" : "OK", outcome.detail);
+   }//end report
+
+   private void record(int line, String status, String detail) {
+      if (status.equals("OK")) ok.incrementAndGet();
+      else if (status.equals("REFUSED")) refused.incrementAndGet();
+      else failed.incrementAndGet();
+      synchronized (this) {
+         try{
+            results.write(line + "\t" + status + "\t" + detail.replace('\n', ' ') + "\n");
+         }catch (IOException e){
+            System.err.println(e.getMessage());
+         }//end try
+      }
+   }//end record
+
+   /**
+    * Splits a line into the operation and its key=value arguments; values
+    * may be double-quoted to hold spaces.
+    *
+    * @return the command, or null for blank and comment lines
+    */
+   static Command parse(int line, String text) {
+      List<String> words = new ArrayList<String>();
+      StringBuilder word = null;
+      boolean quoted = false;
+      for (int i = 0; i < text.length(); ++i) {
+         char c = text.charAt(i);
+         if (c == '"') {
+            quoted = !quoted;
+            if (word == null) word = new StringBuilder();
+         } else if (Character.isWhitespace(c) && !quoted) {
+            if (word != null) words.add(word.toString());
+            word = null;
+         } else {
+            if (word == null) word = new StringBuilder();
+            word.append(c);
+         }
+      }
+      if (quoted) throw new IllegalArgumentException("Unterminated quote");
+      if (word != null) words.add(word.toString());
+      if (words.isEmpty() || words.get(0).startsWith("#")) return null;
+
+      Map<String, String> args = new LinkedHashMap<String, String>();
+      for (String w : words.subList(1, words.size())) {
+         int eq = w.indexOf('=');
+         if (eq <= 0) throw new IllegalArgumentException("Expected key=value, got " + w);
+         args.put(w.substring(0, eq), w.substring(eq + 1));
+      }
+      return new Command(line, words.get(0), args);
+   }//end parse
+}//end BatchRunner
@@ -0,0 +1,506 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads the data/ CSV files, or those written by DataGenerator, from the
+ * client with COPY ... FROM STDIN, replacing the server-side paths of
+ * load_data.sql.
+ *
+ * Tables are loaded in foreign key order, one level at a time, and the
+ * tables of a level in parallel, each on its own connection and in its
+ * own transaction:
+ *
+ *    Users, Warehouse  <  Store  <  Product, OrderHeaders  <  Orders, ProductUpdates, ProductSupplyRequests
+ *
+ * The CSV header names the columns loaded. Files may be gzipped, as
+ * table.csv.gz; Snapshot exports are restored this way. Dates written month first, such
+ * as 3/13/1953 in stores.csv, are rewritten as ISO dates on the way, so
+ * the load does not depend on the server DateStyle. The files are read and
+ * sent in one stream, so a load is bounded by disk and network throughput
+ * rather than by round trips.
+ *
+ * The driver's CopyManager is looked up reflectively; drivers without one
+ * fall back to multi-row INSERTs of BATCH_ROWS rows per statement. User
+ * triggers of the loaded tables are disabled during the load, so the
+ * popularity triggers of Triggers.sql do not count every loaded order;
+ * afterwards the popularity tables are recounted at once, every key
+ * sequence is set past the largest loaded ID and the tables are analyzed.
+ *
+ * Usage: java BulkLoader dbname port user [-data dir] [-threads n] [-truncate]
+ */
+public class BulkLoader {
+
+   // rows per INSERT statement when COPY is not available
+   private static final int BATCH_ROWS = 500;
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   // table, CSV file, key column, the sequence Triggers.sql numbers it with, and level
+   static final Object[][] TABLES = {
+      { "Users",                 "users.csv",                 "userID",        "user_num",   0 },
+      { "Warehouse",             "warehouse.csv",             null,            null,         0 },
+      { "Store",                 "stores.csv",                null,            null,         1 },
+      { "Product",               "products.csv",              null,            null,         2 },
+      { "OrderHeaders",          "orderHeaders.csv",          "orderHeaderID", null,         2 },
+      { "Orders",                "orders.csv",                "orderNumber",   "order_num",  3 },
+      { "ProductUpdates",        "productUpdates.csv",        "updateNumber",  "update_num", 3 },
+      { "ProductSupplyRequests", "productSupplyRequests.csv", "requestNumber", "supply_num", 3 },
+   };
+   private static final int LEVELS = 4;
+
+   private final Retail esql;
+   private final File dataDir;
+   private final int threads;
+
+   /**
+    * @param esql the database loaded into
+    * @param dataDir the directory holding the CSV files
+    * @param threads the number of tables loaded at once
+    */
+   public BulkLoader(Retail esql, File dataDir, int threads) {
+      this.esql = esql;
+      this.dataDir = dataDir;
+      this.threads = Math.max(1, threads);
+   }//end BulkLoader
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 3) {
+         System.err.println("Usage: java BulkLoader dbname port user [-data dir] [-threads n] [-truncate]");
+         return;
+      }
+      File data = new File("data");
+      int threads = 4;
+      boolean truncate = false;
+      for (int i = 3; i < args.length; ++i) {
+         if (args[i].equals("-data")) data = new File(args[++i]);
+         else if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+         else if (args[i].equals("-truncate")) truncate = true;
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         BulkLoader loader = new BulkLoader(esql, data, threads);
+         if (truncate) loader.truncate();
+         long began = System.currentTimeMillis();
+         long rows = loader.load();
+         long millis = Math.max(1, System.currentTimeMillis() - began);
+         System.out.println("Loaded " + rows + " rows in " + millis + " ms (" + rows * 1000 / millis + " rows/s)");
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Empties every table loaded, and the tables referring to them.
+    */
+   public void truncate() throws SQLException {
+      StringBuilder sql = new StringBuilder("TRUNCATE ");
+      for (int i = 0; i < TABLES.length; ++i)
+         sql.append(i > 0 ? ", " : "").append(TABLES[i][0]);
+      esql.executeUpdate(sql.append(" CASCADE").toString());
+   }//end truncate
+
+   /**
+    * @return the CSV file of a table in the data directory, plain or gzipped, or null when there is none
+    */
+   File file(String name) {
+      File plain = new File(dataDir, name);
+      if (plain.isFile()) return plain;
+      File gzipped = new File(dataDir, name + ".gz");
+      return gzipped.isFile() ? gzipped : null;
+   }//end file
+
+   /**
+    * Loads every CSV file present in the data directory.
+    *
+    * @return the number of rows loaded
+    * @throws java.sql.SQLException when a table cannot be loaded; tables of
+    *         earlier levels stay loaded
+    */
+   public long load() throws SQLException, IOException {
+      setUserTriggers(false);
+      long rows = 0;
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         for (int level = 0; level < LEVELS; ++level) {
+            List<Future<Long>> loads = new ArrayList<Future<Long>>();
+            for (final Object[] table : TABLES) {
+               if (((Integer) table[4]).intValue() != level) continue;
+               final File file = file((String) table[1]);
+               if (file == null) {
+                  System.out.println(table[0] + ": no " + table[1] + " in " + dataDir + ", skipped");
+                  continue;
+               }
+               loads.add(pool.submit(new Callable<Long>() {
+                  public Long call() throws Exception {
+                     return loadTable((String) table[0], file);
+                  }
+               }));
+            }
+            for (Future<Long> load : loads)
+               rows += result(load);
+         }
+      }finally{
+         pool.shutdownNow();
+         setUserTriggers(true);
+      }//end try
+      finish();
+      return rows;
+   }//end load
+
+   // Waits for a table load, rethrowing its failure.
+   static long result(Future<Long> load) throws SQLException, IOException {
+      try{
+         return load.get().longValue();
+      }catch (InterruptedException e){
+         Thread.currentThread().interrupt();
+         throw new SQLException("Interrupted");
+      }catch (ExecutionException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof IOException) throw (IOException) cause;
+         throw new RuntimeException(cause);
+      }//end try
+   }//end result
+
+   // ALTER TABLE ... DISABLE/ENABLE TRIGGER USER; foreign keys stay checked.
+   private void setUserTriggers(boolean enabled) throws SQLException {
+      for (Object[] table : TABLES)
+         esql.executeUpdate("ALTER TABLE " + table[0] + (enabled ? " ENABLE" : " DISABLE") + " TRIGGER USER");
+   }//end setUserTriggers
+
+   /**
+    * Loads one CSV file into a table in a single transaction.
+    *
+    * @return the number of rows loaded
+    */
+   long loadTable(String table, File file) throws SQLException, IOException {
+      long began = System.currentTimeMillis();
+      Connection conn = esql.openConnection();
+      InputStream in = new FileInputStream(file);
+      if (file.getName().endsWith(".gz")) in = new GZIPInputStream(in, BUFFER_SIZE);
+      CsvReader csv = new CsvReader(new BufferedReader(new InputStreamReader(in, "UTF-8"), BUFFER_SIZE));
+      try{
+         String[] columns = csv.next();
+         if (columns == null) return 0;
+         boolean[] dates = dateColumns(conn, table, columns);
+         conn.setAutoCommit(false);
+         long rows;
+         Object copyApi = copyApi(conn);
+         if (copyApi != null) {
+            rows = copy(copyApi, "COPY " + table + " (" + join(columns) + ") FROM STDIN WITH (FORMAT csv)",
+                        new CopyReader(csv, dates));
+         } else {
+            rows = insert(conn, table, columns, csv, dates);
+         }
+         conn.commit();
+         long millis = Math.max(1, System.currentTimeMillis() - began);
+         System.out.println(table + ": " + rows + " rows in " + millis + " ms (" + rows * 1000 / millis + " rows/s" +
+                            (copyApi == null ? ", INSERT" : "") + ")");
+         return rows;
+      }finally{
+         csv.close();
+         conn.close();
+      }//end try
+   }//end loadTable
+
+   // The columns of date or timestamp type, whose values may need rewriting.
+   private static boolean[] dateColumns(Connection conn, String table, String[] columns) throws SQLException {
+      Set<String> dates = new HashSet<String>();
+      PreparedStatement stmt = conn.prepareStatement(
+         "SELECT column_name FROM information_schema.columns " +
+         "WHERE table_name = ? AND (data_type = 'date' OR data_type LIKE 'timestamp%')");
+      try{
+         stmt.setString(1, table.toLowerCase(Locale.ROOT));
+         ResultSet rs = stmt.executeQuery();
+         while (rs.next())
+            dates.add(rs.getString(1));
+         rs.close();
+      }finally{
+         stmt.close();
+      }//end try
+      boolean[] result = new boolean[columns.length];
+      for (int i = 0; i < columns.length; ++i)
+         result[i] = dates.contains(columns[i].trim().toLowerCase(Locale.ROOT));
+      return result;
+   }//end dateColumns
+
+   // The driver's CopyManager, or null when the driver has none.
+   static Object copyApi(Connection conn) {
+      try{
+         return conn.getClass().getMethod("getCopyAPI").invoke(conn);
+      }catch (Exception e){
+         return null;
+      }//end try
+   }//end copyApi
+
+   private static long copy(Object copyApi, String sql, Reader data) throws SQLException, IOException {
+      try{
+         Method copyIn = copyApi.getClass().getMethod("copyIn", String.class, Reader.class);
+         return ((Long) copyIn.invoke(copyApi, sql, data)).longValue();
+      }catch (InvocationTargetException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof IOException) throw (IOException) cause;
+         throw new SQLException(cause.toString());
+      }catch (ReflectiveOperationException e){
+         throw new SQLException("Cannot call CopyManager.copyIn: " + e);
+      }//end try
+   }//end copy
+
+   // Fallback for drivers without COPY support: BATCH_ROWS rows per INSERT.
+   private static long insert(Connection conn, String table, String[] columns, CsvReader csv, boolean[] dates)
+      throws SQLException, IOException {
+      StringBuilder row = new StringBuilder("(");
+      for (int i = 0; i < columns.length; ++i)
+         row.append(i > 0 ? ",?" : "?");
+      row.append(')');
+      String prefix = "INSERT INTO " + table + " (" + join(columns) + ") VALUES ";
+      PreparedStatement full = conn.prepareStatement(values(prefix, row, BATCH_ROWS));
+      try{
+         long rows = 0;
+         List<String[]> batch = new ArrayList<String[]>(BATCH_ROWS);
+         String[] record;
+         while (true) {
+            record = csv.next();
+            if (record != null) batch.add(record);
+            if (batch.size() == BATCH_ROWS || (record == null && !batch.isEmpty())) {
+               PreparedStatement stmt = batch.size() == BATCH_ROWS ? full
+                  : conn.prepareStatement(values(prefix, row, batch.size()));
+               try{
+                  int p = 0;
+                  for (String[] r : batch)
+                     for (int i = 0; i < columns.length; ++i) {
+                        String value = i < r.length ? r[i] : null;
+                        if (value != null && dates[i]) value = isoDate(value);
+                        if (value == null) stmt.setNull(++p, Types.OTHER);
+                        else stmt.setString(++p, value);
+                     }
+                  stmt.executeUpdate();
+               }finally{
+                  if (stmt != full) stmt.close();
+               }//end try
+               rows += batch.size();
+               batch.clear();
+            }
+            if (record == null) return rows;
+         }
+      }finally{
+         full.close();
+      }//end try
+   }//end insert
+
+   private static String values(String prefix, CharSequence row, int rows) {
+      StringBuilder sql = new StringBuilder(prefix.length() + rows * (row.length() + 1));
+      sql.append(prefix);
+      for (int i = 0; i < rows; ++i)
+         sql.append(i > 0 ? "," : "").append(row);
+      return sql.toString();
+   }//end values
+
+   /**
+    * Rewrites a month-first date such as 3/13/1953, optionally followed by a
+    * time, as 1953-03-13; other values are returned unchanged.
+    */
+   static String isoDate(String value) {
+      int space = value.indexOf(' ');
+      String date = space < 0 ? value : value.substring(0, space);
+      String[] parts = date.split("/");
+      if (parts.length != 3) return value;
+      try{
+         int month = Integer.parseInt(parts[0].trim());
+         int day = Integer.parseInt(parts[1].trim());
+         int year = Integer.parseInt(parts[2].trim());
+         if (month < 1 || month > 12 || day < 1 || day > 31) return value;
+         if (parts[2].trim().length() <= 2) year += year < 50 ? 2000 : 1900;
+         return String.format("%04d-%02d-%02d", year, month, day) + (space < 0 ? "" : value.substring(space));
+      }catch (NumberFormatException e){
+         return value;
+      }//end try
+   }//end isoDate
+
+   // Recounts the popularity tables, moves the key sequences past the loaded rows, analyzes
+   // and drops the in-memory order caches.
+   private void finish() throws SQLException {
+      esql.executeUpdate("TRUNCATE StoreProductPopularity");
+      esql.executeUpdate("INSERT INTO StoreProductPopularity(storeID, productName, orderCount) " +
+                         "SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName");
+      for (Object[] table : TABLES) {
+         if (table[2] == null) continue;
+         String name = ((String) table[0]).toLowerCase(Locale.ROOT);
+         String key = ((String) table[2]).toLowerCase(Locale.ROOT);
+         // both the serial sequence of create_tables.sql and the one of
+         // Triggers.sql, whichever exist; the next ID is one past the largest
+         esql.executeQuery(
+            "SELECT setval(S.seq::regclass, (SELECT COALESCE(MAX(" + key + "), 0) FROM " + name + ") + 1, false) " +
+            "FROM (VALUES (pg_get_serial_sequence('" + name + "', '" + key + "'))" +
+            (table[3] == null ? "" : ", ('" + table[3] + "')") + ") AS S(seq) " +
+            "WHERE S.seq IS NOT NULL AND to_regclass(S.seq) IS NOT NULL");
+      }
+      for (Object[] table : TABLES)
+         esql.executeUpdate("ANALYZE " + table[0]);
+      // the loaded orders never went through the OrderService
+      esql.getPopularCustomers().invalidate();
+      esql.getRecentOrders().invalidateAll();
+   }//end finish
+
+   private static String join(String[] columns) {
+      StringBuilder list = new StringBuilder();
+      for (int i = 0; i < columns.length; ++i)
+         list.append(i > 0 ? ", " : "").append(columns[i].trim());
+      return list.toString();
+   }//end join
+
+   /**
+    * Reads RFC 4180 records. An empty unquoted field is read as null, a
+    * quoted one as the empty string, as COPY reads them.
+    */
+   static class CsvReader {
+      private final Reader in;
+      private int peeked = -2;
+
+      CsvReader(Reader in) {
+         this.in = in;
+      }
+
+      /**
+       * @return the fields of the next record, or null at the end of the file;
+       *         blank lines are skipped
+       */
+      String[] next() throws IOException {
+         String[] record;
+         do {
+            record = record();
+         } while (record != null && record.length == 1 && record[0] == null);
+         return record;
+      }//end next
+
+      private String[] record() throws IOException {
+         int c = read();
+         if (c == -1) return null;
+         List<String> fields = new ArrayList<String>();
+         StringBuilder field = new StringBuilder();
+         boolean quoted = false;
+         while (true) {
+            if (c == '"' && field.length() == 0 && !quoted) {
+               quoted = true;
+               // quoted field: up to the closing quote, "" standing for "
+               while (true) {
+                  c = read();
+                  if (c == -1) throw new IOException("Unterminated quoted field");
+                  if (c == '"') {
+                     c = read();
+                     if (c != '"') break;
+                  }
+                  field.append((char) c);
+               }
+               continue;
+            }
+            if (c == ',' || c == '\n' || c == '\r' || c == -1) {
+               fields.add(field.length() == 0 && !quoted ? null : field.toString());
+               field.setLength(0);
+               quoted = false;
+               if (c == ',') {
+                  c = read();
+                  continue;
+               }
+               if (c == '\r') {
+                  c = read();
+                  if (c != '\n') peeked = c;
+               }
+               return fields.toArray(new String[fields.size()]);
+            }
+            field.append((char) c);
+            c = read();
+         }
+      }//end record
+
+      private int read() throws IOException {
+         if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+         }
+         return in.read();
+      }//end read
+
+      void close() throws IOException {
+         in.close();
+      }
+   }//end CsvReader
+
+   /**
+    * Serves the records of a CsvReader as COPY csv input, rewriting the
+    * date columns, a buffer of records at a time.
+    */
+   static class CopyReader extends Reader {
+      private final CsvReader csv;
+      private final boolean[] dates;
+      private final StringBuilder buffer = new StringBuilder();
+      private int position = 0;
+      private boolean done = false;
+
+      CopyReader(CsvReader csv, boolean[] dates) {
+         this.csv = csv;
+         this.dates = dates;
+      }
+
+      public int read(char[] chars, int offset, int length) throws IOException {
+         if (position == buffer.length()) {
+            if (done) return -1;
+            fill();
+            if (buffer.length() == 0) return -1;
+         }
+         int n = Math.min(length, buffer.length() - position);
+         buffer.getChars(position, position + n, chars, offset);
+         position += n;
+         return n;
+      }//end read
+
+      private void fill() throws IOException {
+         buffer.setLength(0);
+         position = 0;
+         while (buffer.length() < BUFFER_SIZE) {
+            String[] record = csv.next();
+            if (record == null) {
+               done = true;
+               return;
+            }
+            for (int i = 0; i < record.length; ++i) {
+               if (i > 0) buffer.append(',');
+               String value = record[i];
+               if (value == null) continue;
+               if (i < dates.length && dates[i]) value = isoDate(value);
+               buffer.append('"').append(value.replace("\"", "\"\"")).append('"');
+            }
+            buffer.append('\n');
+         }
+      }//end fill
+
+      public void close() {
+         // the CsvReader is closed by its owner
+      }
+   }//end CopyReader
+}//end BulkLoader
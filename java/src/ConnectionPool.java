@@ -0,0 +1,538 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small, self-contained pool of physical PostgreSQL connections.
+ *
+ * Callers borrow a connection, use it, and hand it back with release().
+ * The pool keeps between minSize and maxSize connections open, evicts
+ * connections that sit idle longer than idleTimeout (never going below
+ * minSize), validates a connection on borrow when it has been idle for
+ * longer than validationInterval, and makes borrowers wait at most
+ * borrowTimeout for a free connection. A connection held longer than
+ * leakThreshold is reported once on standard error. Only the borrow time
+ * is recorded by default; with leakTrace on, every borrow also captures
+ * its stack so the report can show the code that borrowed the connection.
+ *
+ * Idle connections are handed out most-recently-used first, so a single
+ * threaded caller keeps getting the same physical connection back.
+ *
+ * Each physical connection carries its own StatementCache, reached through
+ * prepare() without taking the pool lock, so the PreparedStatement for a
+ * given SQL text is built once per connection. See StatementCache for what
+ * that does and does not save with the bundled driver.
+ */
+public class ConnectionPool {
+
+   // connection settings
+   private final String url;
+   private final String user;
+   private final String passwd;
+
+   // sizing and timing settings, all times in milliseconds
+   private final int minSize;
+   private final int maxSize;
+   private final long idleTimeout;
+   private final long borrowTimeout;
+   private final long validationInterval;
+   private final long leakThreshold;
+   private final boolean leakTrace;
+   private final int statementCacheSize;
+   private final StatementCache.Counters cacheCounters = new StatementCache.Counters();
+
+   // idle connections, most recently used first
+   private final Deque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+   // connections currently handed out, keyed by identity
+   private final Map<Connection, PooledConnection> leased =
+      new IdentityHashMap<Connection, PooledConnection>();
+   // every open connection, so prepare() finds its cache without the lock
+   private final ConcurrentMap<Connection, PooledConnection> opened =
+      new ConcurrentHashMap<Connection, PooledConnection>();
+   // connections being opened or validated outside the lock
+   private int pending = 0;
+   private int waiting = 0;
+   private boolean closed = false;
+
+   // statistics, guarded by this
+   private long borrowCount = 0;
+   private long waitCount = 0;
+   private long totalWaitNanos = 0;
+   private long maxWaitNanos = 0;
+   private long timeoutCount = 0;
+   private long leakCount = 0;
+   private long evictionCount = 0;
+   private long validationFailures = 0;
+
+   private final Thread housekeeper;
+
+   /**
+    * Creates a pool and opens its first minSize connections.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param minSize number of connections kept open even when idle
+    * @param maxSize upper bound on open connections
+    * @param idleTimeout idle time after which a connection above minSize is closed
+    * @param borrowTimeout longest time borrow() waits for a free connection
+    * @param validationInterval idle time after which a connection is checked before reuse
+    * @param leakThreshold time after which a borrowed connection is reported as leaked, 0 disables
+    * @param leakTrace whether each borrow records its stack for the leak report
+    * @param statementCacheSize prepared statements kept open per connection, 0 disables caching
+    * @throws java.sql.SQLException when the first connections cannot be opened
+    */
+   public ConnectionPool(String url, String user, String passwd,
+                         int minSize, int maxSize,
+                         long idleTimeout, long borrowTimeout,
+                         long validationInterval, long leakThreshold,
+                         boolean leakTrace, int statementCacheSize) throws SQLException {
+      if (maxSize < 1 || minSize < 0 || minSize > maxSize)
+         throw new IllegalArgumentException("Invalid pool size " + minSize + ".." + maxSize);
+      this.url = url;
+      this.user = user;
+      this.passwd = passwd;
+      this.minSize = minSize;
+      this.maxSize = maxSize;
+      this.idleTimeout = idleTimeout;
+      this.borrowTimeout = borrowTimeout;
+      this.validationInterval = validationInterval;
+      this.leakThreshold = leakThreshold;
+      this.leakTrace = leakTrace;
+      this.statementCacheSize = statementCacheSize;
+
+      try{
+         for (int i = 0; i < minSize; ++i)
+            idle.addLast(open());
+      }catch (SQLException e){
+         closeAll(idle);
+         throw e;
+      }//end try
+
+      this.housekeeper = new Thread(new Runnable() {
+         public void run() { housekeep(); }
+      }, "retail-pool-housekeeper");
+      this.housekeeper.setDaemon(true);
+      this.housekeeper.start();
+   }//end ConnectionPool
+
+   /**
+    * Creates a pool whose settings come from the retail.pool.* system
+    * properties (minSize, maxSize, idleTimeoutMs, borrowTimeoutMs,
+    * validationIntervalMs, leakThresholdMs, leakTrace, statementCacheSize),
+    * falling back to defaults suited to a single interactive session.
+    */
+   public static ConnectionPool configure(String url, String user, String passwd) throws SQLException {
+      return new ConnectionPool(url, user, passwd,
+         Integer.getInteger("retail.pool.minSize", 1),
+         Integer.getInteger("retail.pool.maxSize", 10),
+         Long.getLong("retail.pool.idleTimeoutMs", 300000L),
+         Long.getLong("retail.pool.borrowTimeoutMs", 30000L),
+         Long.getLong("retail.pool.validationIntervalMs", 5000L),
+         Long.getLong("retail.pool.leakThresholdMs", 60000L),
+         Boolean.getBoolean("retail.pool.leakTrace"),
+         Integer.getInteger("retail.pool.statementCacheSize", 64));
+   }//end configure
+
+   /**
+    * Borrows a connection, opening a new one if none is idle and the pool
+    * is below maxSize, otherwise waiting up to borrowTimeout for one to be
+    * released.
+    *
+    * @return a connection in auto-commit mode
+    * @throws java.sql.SQLException on timeout or when a connection cannot be opened
+    */
+   public Connection borrow() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+      boolean waited = false;
+      while (true) {
+         PooledConnection pc = null;
+         boolean mustOpen = false;
+         synchronized (this) {
+            while (pc == null && !mustOpen) {
+               if (closed)
+                  throw new SQLException("Connection pool is closed");
+               if (!idle.isEmpty()) {
+                  pc = idle.pollFirst();
+                  ++pending;
+               } else if (leased.size() + pending < maxSize) {
+                  mustOpen = true;
+                  ++pending;
+               } else {
+                  long remaining = deadline - System.nanoTime();
+                  if (remaining <= 0) {
+                     ++timeoutCount;
+                     throw new SQLException("Timed out after " + borrowTimeout +
+                        " ms waiting for a database connection (" + leased.size() + " in use)");
+                  }
+                  waited = true;
+                  ++waiting;
+                  try{
+                     TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                  }catch (InterruptedException e){
+                     Thread.currentThread().interrupt();
+                     throw new SQLException("Interrupted while waiting for a database connection");
+                  }finally{
+                     --waiting;
+                  }//end try
+               }
+            }//end while
+         }//end synchronized
+
+         // opening and validating happen outside the lock; the slot stays
+         // reserved through the pending count until the connection is leased
+         boolean usable = false;
+         try{
+            if (mustOpen) {
+               pc = open();
+               usable = true;
+            } else {
+               usable = validate(pc);
+               if (!usable) closeQuietly(pc.connection);
+            }
+         }finally{
+            if (!usable) {
+               synchronized (this) {
+                  --pending;
+                  if (!mustOpen) ++validationFailures;
+                  notifyAll();
+               }
+            }
+         }//end try
+         if (!usable) continue;
+
+         long now = System.nanoTime();
+         synchronized (this) {
+            --pending;
+            if (closed) {
+               closeQuietly(pc.connection);
+               throw new SQLException("Connection pool is closed");
+            }
+            pc.borrowedAt = System.currentTimeMillis();
+            // filling in a stack trace on every borrow is costly, so only on request
+            pc.borrower = leakTrace && leakThreshold > 0 ? new Throwable("Connection borrowed here") : null;
+            pc.leakReported = false;
+            leased.put(pc.connection, pc);
+            ++borrowCount;
+            if (waited) {
+               long wait = now - start;
+               ++waitCount;
+               totalWaitNanos += wait;
+               if (wait > maxWaitNanos) maxWaitNanos = wait;
+            }
+         }
+         return pc.connection;
+      }//end while
+   }//end borrow
+
+   /**
+    * Returns a borrowed connection to the pool. An open transaction is
+    * rolled back and auto-commit is switched back on; a connection that
+    * cannot be reset is closed instead of being reused.
+    *
+    * @param conn a connection obtained from borrow()
+    */
+   public void release(Connection conn) {
+      if (conn == null) return;
+      PooledConnection pc;
+      synchronized (this) {
+         pc = leased.remove(conn);
+      }
+      if (pc == null) return;   // not ours, or released twice
+
+      boolean reusable = reset(pc.connection);
+      synchronized (this) {
+         if (reusable && !closed) {
+            pc.lastUsed = System.currentTimeMillis();
+            pc.borrower = null;
+            idle.addFirst(pc);
+         } else {
+            closeQuietly(pc.connection);
+         }
+         notifyAll();
+      }
+   }//end release
+
+   /**
+    * Returns a prepared statement for sql from the statement cache of a
+    * borrowed connection. The statement belongs to the cache: close its
+    * ResultSet, not the statement, unless isCached() says otherwise.
+    *
+    * @param conn a connection obtained from borrow()
+    * @param sql the SQL text with ? placeholders
+    * @return an open statement with cleared parameters
+    * @throws java.sql.SQLException when conn is not open in this pool or preparing fails
+    */
+   public PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+      PooledConnection pc = opened.get(conn);
+      if (pc == null)
+         throw new SQLException("Connection is not borrowed from this pool");
+      return pc.statements.prepare(sql);
+   }//end prepare
+
+   /**
+    * @return true when statements from prepare() are owned by a cache and must not be closed
+    */
+   public boolean isCached() {
+      return statementCacheSize > 0;
+   }//end isCached
+
+   /**
+    * Returns a borrowed connection that the caller knows to be broken. It
+    * is closed and its slot becomes free for a new connection.
+    */
+   public void invalidate(Connection conn) {
+      if (conn == null) return;
+      synchronized (this) {
+         if (leased.remove(conn) == null) return;
+         notifyAll();
+      }
+      closeQuietly(conn);
+   }//end invalidate
+
+   /**
+    * Opens a connection with the settings of the pool that the pool does
+    * not manage, for callers holding one for a long time such as a
+    * LISTENing thread. The caller closes it.
+    *
+    * @return a new connection in auto-commit mode
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openUnpooled() throws SQLException {
+      return DriverManager.getConnection(url, user, passwd);
+   }//end openUnpooled
+
+   /**
+    * Closes every idle connection and refuses further borrows. Borrowed
+    * connections are closed as they are released.
+    */
+   public void close() {
+      List<PooledConnection> toClose;
+      synchronized (this) {
+         if (closed) return;
+         closed = true;
+         toClose = new ArrayList<PooledConnection>(idle);
+         idle.clear();
+         notifyAll();
+      }
+      housekeeper.interrupt();
+      closeAll(toClose);
+   }//end close
+
+   /**
+    * @return a snapshot of the pool occupancy and wait-time statistics
+    */
+   public synchronized Stats getStats() {
+      return new Stats(leased.size() + idle.size(), leased.size(), idle.size(), waiting,
+                       borrowCount, waitCount, totalWaitNanos, maxWaitNanos,
+                       timeoutCount, leakCount, evictionCount, validationFailures);
+   }//end getStats
+
+   /**
+    * @return hit, miss and eviction counts of the per-connection statement caches
+    */
+   public StatementCache.Stats getStatementCacheStats() {
+      return cacheCounters.snapshot();
+   }//end getStatementCacheStats
+
+   /**
+    * Immutable snapshot of pool statistics.
+    */
+   public static class Stats {
+      public final int total;
+      public final int active;
+      public final int idle;
+      public final int waiting;
+      public final long borrows;
+      public final long waits;
+      public final long totalWaitNanos;
+      public final long maxWaitNanos;
+      public final long timeouts;
+      public final long leaks;
+      public final long evictions;
+      public final long validationFailures;
+
+      Stats(int total, int active, int idle, int waiting, long borrows, long waits,
+            long totalWaitNanos, long maxWaitNanos, long timeouts, long leaks,
+            long evictions, long validationFailures) {
+         this.total = total;
+         this.active = active;
+         this.idle = idle;
+         this.waiting = waiting;
+         this.borrows = borrows;
+         this.waits = waits;
+         this.totalWaitNanos = totalWaitNanos;
+         this.maxWaitNanos = maxWaitNanos;
+         this.timeouts = timeouts;
+         this.leaks = leaks;
+         this.evictions = evictions;
+         this.validationFailures = validationFailures;
+      }
+
+      /**
+       * @return average time a borrower had to wait, over the borrows that waited
+       */
+      public double averageWaitMillis() {
+         return waits == 0 ? 0.0 : totalWaitNanos / (double) waits / 1e6;
+      }
+
+      public String toString() {
+         return String.format(
+            "connections: %d total, %d active, %d idle, %d waiting; " +
+            "borrows: %d (%d waited, avg %.3f ms, max %.3f ms, %d timed out); " +
+            "leaks: %d, evictions: %d, failed validations: %d",
+            total, active, idle, waiting, borrows, waits, averageWaitMillis(),
+            maxWaitNanos / 1e6, timeouts, leaks, evictions, validationFailures);
+      }
+   }//end Stats
+
+   // A physical connection plus the bookkeeping the pool needs for it.
+   private static class PooledConnection {
+      final Connection connection;
+      final StatementCache statements;
+      long lastUsed = System.currentTimeMillis();
+      long borrowedAt;
+      Throwable borrower;
+      boolean leakReported;
+
+      PooledConnection(Connection connection, StatementCache statements) {
+         this.connection = connection;
+         this.statements = statements;
+      }
+   }//end PooledConnection
+
+   private PooledConnection open() throws SQLException {
+      Connection conn = DriverManager.getConnection(url, user, passwd);
+      PooledConnection pc = new PooledConnection(conn, new StatementCache(conn, statementCacheSize, cacheCounters));
+      opened.put(conn, pc);
+      return pc;
+   }//end open
+
+   // Checks a connection that has been idle for a while with a trivial query.
+   private boolean validate(PooledConnection pc) {
+      if (System.currentTimeMillis() - pc.lastUsed < validationInterval)
+         return true;
+      try{
+         Statement stmt = pc.connection.createStatement ();
+         try{
+            stmt.executeQuery ("SELECT 1").close ();
+         }finally{
+            stmt.close ();
+         }//end try
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end validate
+
+   // Puts a released connection back into a clean auto-commit state.
+   private boolean reset(Connection conn) {
+      try{
+         if (conn.isClosed ()) return false;
+         if (!conn.getAutoCommit ()) {
+            conn.rollback ();
+            conn.setAutoCommit (true);
+         }
+         return true;
+      }catch (SQLException e){
+         return false;
+      }//end try
+   }//end reset
+
+   // Background loop: evicts stale idle connections, tops the pool up to
+   // minSize and reports connections that have been held too long.
+   private void housekeep() {
+      long period = Math.max(1000L, Math.min(idleTimeout, leakThreshold > 0 ? leakThreshold : idleTimeout) / 2);
+      while (true) {
+         try{
+            Thread.sleep(period);
+         }catch (InterruptedException e){
+            return;
+         }//end try
+
+         List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+         List<PooledConnection> leaks = new ArrayList<PooledConnection>();
+         int missing;
+         long now = System.currentTimeMillis();
+         synchronized (this) {
+            if (closed) return;
+            // the oldest idle connections sit at the tail of the deque
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && leased.size() + idle.size() > minSize) {
+               PooledConnection pc = it.next();
+               if (now - pc.lastUsed < idleTimeout) break;
+               it.remove();
+               evicted.add(pc);
+            }
+            evictionCount += evicted.size();
+
+            if (leakThreshold > 0) {
+               for (PooledConnection pc : leased.values()) {
+                  if (!pc.leakReported && now - pc.borrowedAt > leakThreshold) {
+                     pc.leakReported = true;
+                     leaks.add(pc);
+                  }
+               }
+               leakCount += leaks.size();
+            }
+            missing = minSize - (leased.size() + idle.size() + pending);
+            if (missing > 0) pending += missing;
+         }
+         closeAll(evicted);
+
+         for (PooledConnection pc : leaks) {
+            System.err.println("Possible connection leak: connection held for " +
+                               (now - pc.borrowedAt) + " ms");
+            if (pc.borrower != null) pc.borrower.printStackTrace();
+         }
+
+         for (int i = 0; i < missing; ++i) {
+            PooledConnection pc = null;
+            try{
+               pc = open();
+            }catch (SQLException e){
+               // the next borrow will retry and surface the error
+            }finally{
+               synchronized (this) {
+                  --pending;
+                  if (pc != null && !closed) {
+                     idle.addLast(pc);
+                     notifyAll();
+                  } else if (pc != null) {
+                     closeQuietly(pc.connection);
+                  }
+               }
+            }//end try
+         }
+      }//end while
+   }//end housekeep
+
+   private void closeAll(Iterable<PooledConnection> connections) {
+      for (PooledConnection pc : connections)
+         closeQuietly(pc.connection);
+   }//end closeAll
+
+   // Closes a connection the pool is done with, its cached statements first.
+   private void closeQuietly(Connection conn) {
+      PooledConnection pc = opened.remove(conn);
+      if (pc != null) pc.statements.clear();
+      try{
+         conn.close ();
+      }catch (SQLException e){
+         // ignored.
+      }//end try
+   }//end closeQuietly
+}//end ConnectionPool
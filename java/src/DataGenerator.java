@@ -0,0 +1,403 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates the data/ CSV files at any scale, with the skew of a real
+ * shop rather than uniform noise:
+ *
+ *  - product popularity and customer activity follow Zipf distributions,
+ *  - stores and customers are clustered around a few city centres, and
+ *    customers shop at the stores of their own city,
+ *  - orders, product updates and supply requests are in time order.
+ *
+ * Every foreign key of create_tables.sql holds: each store stocks the whole
+ * catalog, so any (storeID, productName) pair an order names exists, and
+ * managers are real manager users. Rows are written as they are generated;
+ * memory use depends on the number of stores, never on the number of
+ * orders. A reset_sequences.sql is written next to the CSVs; it sets each
+ * key sequence of Triggers.sql so that its next value is the first key
+ * after the generated rows, 1 .. n.
+ *
+ * Usage: java DataGenerator [-orders n] [-users n] [-stores n] [-catalog n]
+ *        [-warehouses n] [-cities n] [-skew s] [-seed n] [-out dir]
+ */
+public class DataGenerator {
+
+   // the products of the sample data come first, and so are the most popular
+   private static final String[] SAMPLE_PRODUCTS = {
+      "7up", "Pepsi", "Lemonade", "Orange Juice", "Brisk",
+      "Donuts", "Egg", "Ice Cream", "Pudding", "Hot and Sour Soup" };
+
+   // the sample data starts here
+   private static final long START = 1473512460000L;    // 2016-09-10 13:01:00 UTC
+   private static final long SPAN = 365L * 24 * 3600 * 1000;
+   private static final double CITY_RADIUS = 3.0;       // standard deviation, in coordinate units
+
+   private final long orders;
+   private final int users;
+   private final int stores;
+   private final int catalog;
+   private final int warehouses;
+   private final int cities;
+   private final double skew;
+   private final long seed;
+   private final File out;
+
+   private final int managers;
+   private double[] cityLat;
+   private double[] cityLon;
+   private int[][] storesByCity;
+   private int[] storeManager;
+
+   public DataGenerator(long orders, int users, int stores, int catalog, int warehouses, int cities,
+                        double skew, long seed, File out) {
+      if (users < 3 || stores < 1 || catalog < 1 || warehouses < 1 || cities < 1)
+         throw new IllegalArgumentException("Need at least 3 users and one store, product, warehouse and city");
+      this.orders = orders;
+      this.users = users;
+      this.stores = stores;
+      this.catalog = catalog;
+      this.warehouses = warehouses;
+      this.cities = Math.min(cities, stores);
+      this.skew = skew;
+      this.seed = seed;
+      this.out = out;
+      // one manager per five stores, at least one, leaving a customer
+      this.managers = Math.max(1, Math.min(users - 2, stores / 5));
+   }//end DataGenerator
+
+   public static void main(String[] args) throws IOException {
+      long orders = 10000000L;
+      Integer users = null, stores = null, catalog = null;
+      int warehouses = 5, cities = 0;
+      double skew = 1.0;
+      long seed = 42;
+      File out = new File("generated");
+      for (int i = 0; i < args.length; ++i) {
+         String option = args[i];
+         if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+         String value = args[++i];
+         if (option.equals("-orders")) orders = Long.parseLong(value);
+         else if (option.equals("-users")) users = Integer.valueOf(value);
+         else if (option.equals("-stores")) stores = Integer.valueOf(value);
+         else if (option.equals("-catalog")) catalog = Integer.valueOf(value);
+         else if (option.equals("-warehouses")) warehouses = Integer.parseInt(value);
+         else if (option.equals("-cities")) cities = Integer.parseInt(value);
+         else if (option.equals("-skew")) skew = Double.parseDouble(value);
+         else if (option.equals("-seed")) seed = Long.parseLong(value);
+         else if (option.equals("-out")) out = new File(value);
+         else throw new IllegalArgumentException("Unknown option " + option);
+      }
+      // the other tables grow with the orders, in the proportions of the sample data
+      if (users == null) users = (int) Math.max(100, Math.min(Integer.MAX_VALUE, orders / 5));
+      if (stores == null) stores = (int) Math.max(20, Math.min(Integer.MAX_VALUE, orders / 2500));
+      if (catalog == null) catalog = Math.max(10, Math.min(1000, (int) (orders / 50000)));
+      if (cities == 0) cities = Math.max(1, stores / 50);
+
+      if (!out.isDirectory() && !out.mkdirs())
+         throw new IOException("Cannot create " + out);
+      long began = System.currentTimeMillis();
+      new DataGenerator(orders, users, stores, catalog, warehouses, cities, skew, seed, out).generate();
+      System.out.println("Generated " + orders + " orders, " + users + " users, " + stores + " stores, " +
+                         ((long) stores * catalog) + " products in " + out + " (" +
+                         (System.currentTimeMillis() - began) / 1000 + "s)");
+   }//end main
+
+   /**
+    * Writes every CSV file and reset_sequences.sql.
+    *
+    * @throws java.io.IOException when a file cannot be written
+    */
+   public void generate() throws IOException {
+      Random random = new Random(seed);
+      placeCities(random);
+      writeStores(random);
+      writeUsers(random);
+      writeProducts(random);
+      writeWarehouses(random);
+      long updates = Math.max(1, orders / 10);
+      long requests = Math.max(1, orders / 50);
+      writeOrders(random);
+      writeProductUpdates(random, updates);
+      writeSupplyRequests(random, requests);
+
+      Writer sql = open("reset_sequences.sql", null);
+      try{
+         sql.write("-- run after loading the generated CSVs and Triggers.sql\n");
+         sql.write("SELECT setval('user_num', " + (users + 1) + ", false);\n");
+         sql.write("SELECT setval('order_num', " + (orders + 1) + ", false);\n");
+         sql.write("SELECT setval('update_num', " + (updates + 1) + ", false);\n");
+         sql.write("SELECT setval('supply_num', " + (requests + 1) + ", false);\n");
+      }finally{
+         sql.close();
+      }//end try
+   }//end generate
+
+   // City centres, and the stores of each city; store s lies in city s % cities.
+   private void placeCities(Random random) {
+      cityLat = new double[cities];
+      cityLon = new double[cities];
+      for (int c = 0; c < cities; ++c) {
+         cityLat[c] = 5 + random.nextDouble() * 90;
+         cityLon[c] = 5 + random.nextDouble() * 90;
+      }
+      storesByCity = new int[cities][];
+      for (int c = 0; c < cities; ++c) {
+         storesByCity[c] = new int[(stores - c + cities - 1) / cities];
+         for (int i = 0; i < storesByCity[c].length; ++i)
+            storesByCity[c][i] = 1 + c + i * cities;
+      }
+      storeManager = new int[stores + 1];
+   }//end placeCities
+
+   // userID 1 is the admin, 2 .. managers + 1 the managers, the rest customers.
+   private void writeUsers(Random random) throws IOException {
+      Writer w = open("users.csv", "userID,name,password,latitude,longitude,type");
+      try{
+         for (int id = 1; id <= users; ++id) {
+            String type = id == 1 ? "admin" : id <= managers + 1 ? "manager" : "customer";
+            int city = cityOf(id);
+            w.write(id + ",User" + id + ",xyz," + coordinate(cityLat[city], random) + "," +
+                    coordinate(cityLon[city], random) + "," + type + "\r\n");
+         }
+      }finally{
+         w.close();
+      }//end try
+   }//end writeUsers
+
+   private void writeStores(Random random) throws IOException {
+      Writer w = open("stores.csv", "storeID,name,latitude,longitude,managerID,dateEstablished");
+      try{
+         for (int id = 1; id <= stores; ++id) {
+            int city = (id - 1) % cities;
+            storeManager[id] = 2 + (id - 1) % managers;
+            w.write(id + "," + word(random, 4) + "," + coordinate(cityLat[city], random) + "," +
+                    coordinate(cityLon[city], random) + "," + storeManager[id] + "," +
+                    (1 + random.nextInt(12)) + "/" + (1 + random.nextInt(28)) + "/" +
+                    (1950 + random.nextInt(66)) + "\r\n");
+         }
+      }finally{
+         w.close();
+      }//end try
+   }//end writeStores
+
+   // Every store stocks the whole catalog.
+   private void writeProducts(Random random) throws IOException {
+      Writer w = open("products.csv", "storeID,productName,numberOfUnits,pricePerUnit");
+      try{
+         for (int store = 1; store <= stores; ++store)
+            for (int p = 1; p <= catalog; ++p)
+               w.write(store + "," + productName(p) + "," + random.nextInt(101) + "," +
+                       (1 + random.nextInt(20)) + "\r\n");
+      }finally{
+         w.close();
+      }//end try
+   }//end writeProducts
+
+   private void writeWarehouses(Random random) throws IOException {
+      Writer w = open("warehouse.csv", "wareHouseID,area,latitude,longitude");
+      try{
+         for (int id = 1; id <= warehouses; ++id)
+            w.write(id + "," + (10000 + random.nextInt(20001)) + "," +
+                    format(random.nextDouble() * 99.99) + "," + format(random.nextDouble() * 99.99) + "\r\n");
+      }finally{
+         w.close();
+      }//end try
+   }//end writeWarehouses
+
+   // Zipf-popular products bought by Zipf-active customers at a store of their city.
+   private void writeOrders(Random random) throws IOException {
+      int customers = users - managers - 1;
+      ZipfSampler product = new ZipfSampler(catalog, skew, random);
+      ZipfSampler customer = new ZipfSampler(customers, skew, random);
+      Clock clock = new Clock(orders);
+      Writer w = open("orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime");
+      try{
+         for (long n = 1; n <= orders; ++n) {
+            int customerId = managers + 2 + scatter(customer.sample() - 1, customers);
+            int[] nearby = storesByCity[cityOf(customerId)];
+            int storeId = nearby[random.nextInt(nearby.length)];
+            w.write(n + "," + customerId + "," + storeId + "," + productName(product.sample()) + "," +
+                    (1 + random.nextInt(10)) + "," + clock.next(random) + "\r\n");
+         }
+      }finally{
+         w.close();
+      }//end try
+   }//end writeOrders
+
+   // Managers updating popular products of their own stores.
+   private void writeProductUpdates(Random random, long updates) throws IOException {
+      ZipfSampler product = new ZipfSampler(catalog, skew, random);
+      Clock clock = new Clock(updates);
+      Writer w = open("productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn");
+      try{
+         for (long n = 1; n <= updates; ++n) {
+            int storeId = 1 + random.nextInt(stores);
+            w.write(n + "," + storeManager[storeId] + "," + storeId + "," + productName(product.sample()) + "," +
+                    clock.next(random) + "\r\n");
+         }
+      }finally{
+         w.close();
+      }//end try
+   }//end writeProductUpdates
+
+   private void writeSupplyRequests(Random random, long requests) throws IOException {
+      ZipfSampler product = new ZipfSampler(catalog, skew, random);
+      Writer w = open("productSupplyRequests.csv",
+                      "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested");
+      try{
+         for (long n = 1; n <= requests; ++n) {
+            int storeId = 1 + random.nextInt(stores);
+            w.write(n + "," + storeManager[storeId] + "," + (1 + random.nextInt(warehouses)) + "," + storeId + "," +
+                    productName(product.sample()) + "," + (1 + random.nextInt(100)) + "\r\n");
+         }
+      }finally{
+         w.close();
+      }//end try
+   }//end writeSupplyRequests
+
+   // Users are spread over the cities round robin.
+   private int cityOf(int userId) {
+      return userId % cities;
+   }
+
+   // Maps a popularity rank to an index in [0, n) so the busiest customers
+   // are spread over the userIDs instead of being the lowest ones.
+   private static int scatter(int rank, int n) {
+      return (int) ((rank * 2654435761L) % n);
+   }
+
+   private static String productName(int rank) {
+      return rank <= SAMPLE_PRODUCTS.length ? SAMPLE_PRODUCTS[rank - 1] : "Product " + rank;
+   }
+
+   // A point near centre, kept inside the decimal(8,6) range of the schema.
+   private static String coordinate(double centre, Random random) {
+      double v = centre + random.nextGaussian() * CITY_RADIUS;
+      return format(Math.max(0, Math.min(99.99, v)));
+   }
+
+   private static String format(double v) {
+      return String.format(Locale.ROOT, "%.5f", v);
+   }
+
+   private static String word(Random random, int length) {
+      char[] c = new char[length];
+      for (int i = 0; i < length; ++i)
+         c[i] = (char) ('a' + random.nextInt(26));
+      return new String(c);
+   }
+
+   private Writer open(String name, String header) throws IOException {
+      Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(out, name)), "UTF-8"),
+                                    1 << 20);
+      if (header != null) w.write(header + "\r\n");
+      return w;
+   }//end open
+
+   /**
+    * Increasing timestamps spread over a year from the start of the sample
+    * data, formatted like the sample data.
+    */
+   private static class Clock {
+      private final double meanGap;
+      private final SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd ");
+      private long now = START;
+      private long dayStart = -1;
+      private String dayText;
+
+      Clock(long events) {
+         this.meanGap = SPAN / (double) Math.max(1, events);
+         day.setTimeZone(TimeZone.getTimeZone("UTC"));
+      }
+
+      // exponential gaps, rounded to whole seconds
+      String next(Random random) {
+         now += (long) (-Math.log(1 - random.nextDouble()) * meanGap);
+         long second = now / 1000;
+         long start = second - second % 86400;
+         if (start != dayStart) {
+            dayStart = start;
+            dayText = day.format(new Date(start * 1000));
+         }
+         int s = (int) (second - start);
+         return dayText + two(s / 3600) + ":" + two(s / 60 % 60) + ":" + two(s % 60);
+      }
+
+      private static String two(int v) {
+         return v < 10 ? "0" + v : String.valueOf(v);
+      }
+   }//end Clock
+
+   /**
+    * Draws ranks 1..n with probability proportional to 1 / rank^exponent in
+    * constant time and memory, using rejection-inversion sampling
+    * (Hormann and Derflinger, "Rejection-inversion to generate variates
+    * from monotone discrete distributions", 1996).
+    */
+   static class ZipfSampler {
+      private final int n;
+      private final double exponent;
+      private final Random random;
+      private final double hIntegralX1;
+      private final double hIntegralN;
+      private final double s;
+
+      ZipfSampler(int n, double exponent, Random random) {
+         if (n < 1 || exponent <= 0)
+            throw new IllegalArgumentException("Invalid Zipf parameters " + n + ", " + exponent);
+         this.n = n;
+         this.exponent = exponent;
+         this.random = random;
+         this.hIntegralX1 = hIntegral(1.5) - 1.0;
+         this.hIntegralN = hIntegral(n + 0.5);
+         this.s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+      }
+
+      int sample() {
+         while (true) {
+            double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            int k = (int) (x + 0.5);
+            if (k < 1) k = 1;
+            else if (k > n) k = n;
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }
+      }
+
+      private double hIntegral(double x) {
+         double logX = Math.log(x);
+         return helper2((1 - exponent) * logX) * logX;
+      }
+
+      private double h(double x) {
+         return Math.exp(-exponent * Math.log(x));
+      }
+
+      private double hIntegralInverse(double x) {
+         double t = x * (1 - exponent);
+         if (t < -1) t = -1;
+         return Math.exp(helper1(t) * x);
+      }
+
+      // log(1 + x) / x, accurate near 0
+      private static double helper1(double x) {
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1.0 / 3 - 0.25 * x));
+      }
+
+      // (exp(x) - 1) / x, accurate near 0
+      private static double helper2(double x) {
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+      }
+   }//end ZipfSampler
+}//end DataGenerator
@@ -0,0 +1,91 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Hands out the keys of one table from blocks drawn from a sequence, so
+ * inserts carry their key instead of having a trigger call nextval for
+ * every row.
+ *
+ * A block is blockSize values of the sequence taken in one round trip,
+ * nextval over generate_series. The sequences of Triggers.sql increment by
+ * one and also serve as column defaults, so keys stay unique across
+ * clients and across inserts that take the default, and an insert made
+ * outside the application uses up a single key. Under concurrent use the
+ * keys of a block need not be consecutive. Keys left in a block when the
+ * program exits are skipped, leaving gaps but never duplicates.
+ */
+public class IdAllocator {
+
+   private final Retail esql;
+   private final String sequence;
+   private final int blockSize;
+   // the keys of the current block, and the next one to hand out
+   private long[] block = new long[0];
+   private int next = 0;
+
+   /**
+    * Draws blocks of retail.idBlock keys (50).
+    *
+    * @param esql the database holding the sequence
+    * @param sequence the name of the sequence keys are drawn from
+    */
+   public IdAllocator(Retail esql, String sequence) {
+      this(esql, sequence, Integer.getInteger("retail.idBlock", 50));
+   }//end IdAllocator
+
+   /**
+    * @param esql the database holding the sequence
+    * @param sequence the name of the sequence keys are drawn from
+    * @param blockSize the number of keys drawn per round trip
+    */
+   public IdAllocator(Retail esql, String sequence, int blockSize) {
+      this.esql = esql;
+      this.sequence = sequence;
+      this.blockSize = Math.max(1, blockSize);
+   }//end IdAllocator
+
+   /**
+    * @return a key no other caller has been given
+    * @throws java.sql.SQLException when a new block cannot be drawn
+    */
+   public synchronized int next() throws SQLException {
+      if (next == block.length) draw(blockSize);
+      return (int) block[next++];
+   }//end next
+
+   /**
+    * Hands out n keys at once, drawing every key they need beyond the
+    * current block in one round trip.
+    *
+    * @return n keys no other caller has been given, not necessarily consecutive
+    * @throws java.sql.SQLException when new keys cannot be drawn
+    */
+   public synchronized int[] next(int n) throws SQLException {
+      int[] keys = new int[n];
+      int i = 0;
+      while (i < n && next < block.length)
+         keys[i++] = (int) block[next++];
+      if (i < n) {
+         // whole blocks, so what is left over becomes the current block
+         int missing = n - i;
+         draw((missing + blockSize - 1) / blockSize * blockSize);
+         while (i < n)
+            keys[i++] = (int) block[next++];
+      }
+      return keys;
+   }//end next
+
+   // Replaces the current block with count new keys.
+   private void draw(int count) throws SQLException {
+      final long[] keys = new long[count];
+      esql.executeQueryAndStreamResult("SELECT nextval(?::regclass) FROM generate_series(1, ?)", new RowHandler() {
+         int i = 0;
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            keys[i++] = rs.getLong(1);
+            return true;
+         }
+      }, sequence, count);
+      block = keys;
+      next = 0;
+   }//end draw
+}//end IdAllocator
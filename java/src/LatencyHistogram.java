@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, thread-safe histogram of latencies in nanoseconds. Values
+ * are bucketed log-linearly: every power of two is split into 32 equal
+ * buckets, so any recorded value is reported within about 3% while the
+ * histogram stays a few kilobytes regardless of how many values it holds.
+ * Recording is a couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+
+   private static final int SUB_BITS = 5;
+   private static final int SUB_COUNT = 1 << SUB_BITS;
+
+   private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   /**
+    * @param nanos one measured latency; negative values count as 0
+    */
+   public void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      counts.incrementAndGet(index(nanos));
+      total.incrementAndGet();
+      sum.addAndGet(nanos);
+      long m;
+      while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+         // retry until max is at least nanos
+      }
+   }//end record
+
+   /**
+    * Adds every value recorded by another histogram to this one.
+    */
+   public void add(LatencyHistogram other) {
+      for (int i = 0; i < counts.length(); ++i) {
+         long c = other.counts.get(i);
+         if (c != 0) counts.addAndGet(i, c);
+      }
+      total.addAndGet(other.total.get());
+      sum.addAndGet(other.sum.get());
+      long m, o = other.max.get();
+      while (o > (m = max.get()) && !max.compareAndSet(m, o)) {
+         // retry until max is at least o
+      }
+   }//end add
+
+   public long getCount() {
+      return total.get();
+   }
+
+   public long getMaxNanos() {
+      return max.get();
+   }
+
+   public double getMeanNanos() {
+      long n = total.get();
+      return n == 0 ? 0.0 : sum.get() / (double) n;
+   }
+
+   /**
+    * @param percentile between 0 and 100, e.g. 99.9
+    * @return the smallest latency that at least percentile % of the values do not exceed
+    */
+   public long getPercentileNanos(double percentile) {
+      long n = total.get();
+      if (n == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); ++i) {
+         seen += counts.get(i);
+         if (seen >= rank)
+            return Math.min(highestValue(i), max.get());
+      }
+      return max.get();
+   }//end getPercentileNanos
+
+   /**
+    * @return count, mean, p50, p95, p99 and max, in milliseconds
+    */
+   public String toString() {
+      return String.format("n=%d mean=%.3fms p50=%.3fms p95=%.3fms p99=%.3fms max=%.3fms",
+                           getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+                           getPercentileNanos(95) / 1e6, getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+   }//end toString
+
+   // Values below SUB_COUNT get a bucket each; above, a power of two [2^e, 2^(e+1))
+   // is split into SUB_COUNT buckets by the SUB_BITS bits after the leading one.
+   private static int index(long value) {
+      if (value < SUB_COUNT) return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int shift = exponent - SUB_BITS;
+      int sub = (int) (value >>> shift) - SUB_COUNT;
+      return (shift + 1) * SUB_COUNT + sub;
+   }//end index
+
+   // Largest value that falls into bucket i.
+   private static long highestValue(int i) {
+      if (i < SUB_COUNT) return i;
+      int shift = i / SUB_COUNT - 1;
+      long sub = i % SUB_COUNT;
+      return ((SUB_COUNT + sub + 1) << shift) - 1;
+   }//end highestValue
+}//end LatencyHistogram
@@ -0,0 +1,134 @@
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.TreeSet;
+
+/**
+ * Resolves the stores a manager may see for the manager listings, so they
+ * bind the storeIDs as one array parameter,
+ *
+ *    WHERE O.storeID = ANY (?::int[])
+ *
+ * instead of joining Store and Users again on every call. The storeIDs
+ * come from the manager's Principal, read once by the AuthorizationCache.
+ *
+ * The Store triggers of Triggers.sql send a store_managers notification
+ * whenever a store is added, removed, moved or handed to another manager.
+ * A background thread LISTENs on its own connection and drops the cached
+ * principals of the managers concerned, and the StoreLocator grid, so a
+ * call made more than one poll interval after the change reads the
+ * stores again. Drivers that
+ * do not deliver the notification payload make it drop every cached
+ * manager instead. The driver's notification API is reached by reflection,
+ * as BulkLoader reaches its COPY API, so the class compiles without the
+ * driver on the classpath.
+ */
+public class ManagerScope {
+
+   private static final String CHANNEL = "store_managers";
+
+   private final Retail esql;
+   private final long pollMillis;
+   private volatile Thread listener = null;
+
+   /**
+    * @param esql the database whose Store changes are listened to
+    * @param pollMillis how often the listening connection is checked for notifications
+    */
+   public ManagerScope(Retail esql, long pollMillis) {
+      this.esql = esql;
+      this.pollMillis = pollMillis;
+   }//end ManagerScope
+
+   /**
+    * @return the storeIDs managed by user as an int[] literal, e.g. {3,17}
+    */
+   public String storeIds(Principal user) {
+      StringBuilder literal = new StringBuilder("{");
+      for (Integer storeId : new TreeSet<Integer>(user.getManagedStores())) {
+         if (literal.length() > 1) literal.append(',');
+         literal.append(storeId);
+      }
+      return literal.append('}').toString();
+   }//end storeIds
+
+   /**
+    * Starts listening for Store changes on a connection of its own.
+    *
+    * @param conn a connection outside the pool, closed when listening stops
+    */
+   public synchronized void start(final Connection conn) {
+      if (listener != null) return;
+      listener = new Thread(new Runnable() {
+         public void run() { listen(conn); }
+      }, "retail-manager-scope");
+      listener.setDaemon(true);
+      listener.start();
+   }//end start
+
+   /**
+    * Stops listening and closes the listening connection.
+    */
+   public synchronized void stop() {
+      if (listener == null) return;
+      listener.interrupt();
+      listener = null;
+   }//end stop
+
+   private void listen(Connection conn) {
+      try{
+         Method getNotifications = conn.getClass().getMethod("getNotifications");
+         Statement stmt = conn.createStatement();
+         try{
+            stmt.execute("LISTEN " + CHANNEL);
+            while (!Thread.currentThread().isInterrupted()) {
+               Thread.sleep(pollMillis);
+               // notifications arrive with the reply to any statement
+               stmt.executeQuery("SELECT 1").close();
+               Object[] notifications = (Object[]) getNotifications.invoke(conn);
+               if (notifications != null)
+                  for (Object n : notifications)
+                     changed(n);
+            }
+         }finally{
+            stmt.close();
+         }//end try
+      }catch (InterruptedException e){
+         // stopped.
+      }catch (SQLException e){
+         System.err.println("Manager scope listener stopped: " + e.getMessage());
+      }catch (ReflectiveOperationException e){
+         System.err.println("Manager scope listener stopped: the driver cannot deliver notifications: " + e);
+      }finally{
+         try{
+            conn.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }//end try
+   }//end listen
+
+   // The payload is "old managerID,new managerID", either may be empty.
+   private void changed(Object n) {
+      esql.getStoreLocator().invalidate();
+      String payload = payload(n);
+      if (payload == null) {
+         esql.getAuthorizations().invalidateManagers();
+         return;
+      }
+      for (String managerId : payload.split(","))
+         if (!managerId.trim().isEmpty())
+            esql.getAuthorizations().invalidate(managerId);
+   }//end changed
+
+   // Drivers speaking the version 2 protocol have no getParameter().
+   private static String payload(Object n) {
+      try{
+         Object payload = n.getClass().getMethod("getParameter").invoke(n);
+         return payload instanceof String && !((String) payload).isEmpty() ? (String) payload : null;
+      }catch (Exception e){
+         return null;
+      }//end try
+   }//end payload
+}//end ManagerScope
@@ -0,0 +1,110 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * A read-only, forward-only ResultSet over rows held in memory, so rows
+ * answered from a cache can be handed to the same RowHandlers as rows read
+ * from the database. It supports what the handlers of this program use:
+ * next(), getString/getInt/getLong/getDouble/getObject by index or label,
+ * wasNull(), getMetaData() column counts and names, and close(). Any other
+ * method throws an SQLException.
+ */
+public class MemoryResultSet implements InvocationHandler {
+
+   private final String[] columns;
+   private final List<Object[]> rows;
+   private int row = -1;
+   private boolean lastNull = false;
+
+   private MemoryResultSet(String[] columns, List<Object[]> rows) {
+      this.columns = columns;
+      this.rows = rows;
+   }
+
+   /**
+    * @param columns the column labels
+    * @param rows the rows, each holding one value per column
+    * @return a result set positioned before the first row
+    */
+   public static ResultSet create(String[] columns, List<Object[]> rows) {
+      return (ResultSet) Proxy.newProxyInstance(MemoryResultSet.class.getClassLoader(),
+         new Class<?>[] { ResultSet.class }, new MemoryResultSet(columns, rows));
+   }//end create
+
+   /**
+    * Hands every row to a handler, as Retail.executeQueryAndStreamResult does.
+    *
+    * @return the number of rows handled
+    * @throws java.sql.SQLException when the handler fails
+    */
+   public static int stream(String[] columns, List<Object[]> rows, RowHandler handler) throws SQLException {
+      ResultSet rs = create(columns, rows);
+      int count = 0;
+      while (rs.next()) {
+         ++count;
+         if (!handler.handleRow(rs)) break;
+      }
+      return count;
+   }//end stream
+
+   public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.equals("next")) return ++row < rows.size();
+      if (name.equals("close")) return null;
+      if (name.equals("isClosed")) return false;
+      if (name.equals("wasNull")) return lastNull;
+      if (name.equals("getMetaData")) return metaData();
+      if (name.equals("findColumn")) return column((String) args[0]);
+      if (name.equals("hashCode")) return System.identityHashCode(proxy);
+      if (name.equals("equals")) return proxy == args[0];
+      if (name.equals("toString")) return "MemoryResultSet" + java.util.Arrays.toString(columns);
+      if (name.startsWith("get") && args != null && args.length == 1) {
+         int index = args[0] instanceof Integer ? (Integer) args[0] : column((String) args[0]);
+         return convert(value(index), method.getReturnType());
+      }
+      throw new SQLException("MemoryResultSet does not support " + name);
+   }//end invoke
+
+   private Object value(int index) throws SQLException {
+      if (row < 0 || row >= rows.size()) throw new SQLException("Not on a row");
+      if (index < 1 || index > columns.length) throw new SQLException("No column " + index);
+      Object value = rows.get(row)[index - 1];
+      lastNull = value == null;
+      return value;
+   }//end value
+
+   private int column(String label) throws SQLException {
+      for (int i = 0; i < columns.length; ++i)
+         if (columns[i].equalsIgnoreCase(label)) return i + 1;
+      throw new SQLException("No column " + label);
+   }//end column
+
+   private static Object convert(Object value, Class<?> type) throws SQLException {
+      if (type == String.class) return value == null ? null : value.toString();
+      if (type == Object.class) return value;
+      Number n = value == null ? Integer.valueOf(0)
+         : value instanceof Number ? (Number) value : Double.valueOf(value.toString().trim());
+      if (type == int.class) return n.intValue();
+      if (type == long.class) return n.longValue();
+      if (type == double.class) return n.doubleValue();
+      throw new SQLException("MemoryResultSet cannot return " + type.getName());
+   }//end convert
+
+   private ResultSetMetaData metaData() {
+      return (ResultSetMetaData) Proxy.newProxyInstance(MemoryResultSet.class.getClassLoader(),
+         new Class<?>[] { ResultSetMetaData.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+               String name = method.getName();
+               if (name.equals("getColumnCount")) return columns.length;
+               if (name.equals("getColumnName") || name.equals("getColumnLabel"))
+                  return columns[(Integer) args[0] - 1];
+               throw new SQLException("MemoryResultSet metadata does not support " + name);
+            }
+         });
+   }//end metaData
+}//end MemoryResultSet
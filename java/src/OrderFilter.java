@@ -0,0 +1,21 @@
+/**
+ * Narrows an order listing to one store, one customer and/or a time range.
+ * Null fields do not filter. Times are timestamps as PostgreSQL reads them,
+ * e.g. 2023-01-31 or 2023-01-31 18:00; from is inclusive, to exclusive.
+ */
+public class OrderFilter {
+
+   public static final OrderFilter NONE = new OrderFilter(null, null, null, null);
+
+   public final Integer storeId;
+   public final Integer customerId;
+   public final String from;
+   public final String to;
+
+   public OrderFilter(Integer storeId, Integer customerId, String from, String to) {
+      this.storeId = storeId;
+      this.customerId = customerId;
+      this.from = from;
+      this.to = to;
+   }//end OrderFilter
+}//end OrderFilter
@@ -0,0 +1,18 @@
+/**
+ * Callback told about every Orders row the OrderService records, see
+ * OrderService.addListener. Called on the thread that placed the order,
+ * after the row was written, so it must be quick and must not throw. When
+ * the caller has begun a transaction of its own the row is not committed
+ * yet and may still be rolled back.
+ */
+public interface OrderListener {
+
+   /**
+    * @param customerId the userID of the buyer
+    * @param storeId the storeID the product was bought from
+    * @param productName the product ordered
+    * @param units the number of units ordered
+    * @param orderTime Orders.orderTime of the new row, as read from the database
+    */
+   void orderPlaced(int customerId, int storeId, String productName, int units, String orderTime);
+}
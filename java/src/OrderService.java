@@ -0,0 +1,259 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Places single-product orders atomically. The stock decrement and the
+ * Orders insert are one statement: a conditional UPDATE of Product that
+ * only succeeds while enough units are left, feeding the INSERT INTO Orders
+ * through a data-modifying WITH clause. Two customers racing for the last
+ * units can therefore never both succeed, and a successful order costs a
+ * single round trip. Only a rejected order pays a second one, to tell the
+ * caller whether the product is missing or just short.
+ *
+ * A cart of several products is checked out as one OrderHeaders row plus
+ * one Orders row per product. The whole cart is validated with a single
+ * query, then the stock decrements and the order lines are each sent as
+ * one JDBC batch inside a single transaction, so a 20 item cart costs
+ * about as many round trips as one item.
+ *
+ * Every Orders row written is announced to the registered OrderListeners.
+ */
+public class OrderService {
+
+   /**
+    * What happened to an order.
+    */
+   public enum Status {
+      PLACED,              // stock taken and order recorded
+      NO_SUCH_PRODUCT,     // the store does not sell this product
+      INSUFFICIENT_STOCK,  // fewer units left than ordered
+      INVALID_AMOUNT       // the amount is not a positive number
+   }
+
+   /**
+    * Outcome of placeOrder; orderNumber and orderTime are only set when
+    * the order was placed.
+    */
+   public static class Result {
+      public final Status status;
+      public final int orderNumber;
+      public final String orderTime;
+
+      Result(Status status, int orderNumber, String orderTime) {
+         this.status = status;
+         this.orderNumber = orderNumber;
+         this.orderTime = orderTime;
+      }
+
+      Result(Status status) {
+         this(status, -1, null);
+      }
+
+      public boolean isPlaced() {
+         return status == Status.PLACED;
+      }
+   }//end Result
+
+   private static final String PLACE_ORDER =
+      "WITH taken AS (" +
+      "UPDATE Product SET numberOfUnits = numberOfUnits - ? " +
+      "WHERE storeID = ? AND productName = ? AND numberOfUnits >= ? " +
+      "RETURNING storeID, productName) " +
+      "INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered, orderTime) " +
+      "SELECT ?, ?, storeID, productName, ?, NOW() FROM taken " +
+      "RETURNING orderNumber, orderTime";
+
+   /**
+    * Outcome of checkout; productName names the item that was refused.
+    */
+   public static class CheckoutResult {
+      public final Status status;
+      public final int orderHeaderID;
+      public final String productName;
+
+      CheckoutResult(Status status, int orderHeaderID, String productName) {
+         this.status = status;
+         this.orderHeaderID = orderHeaderID;
+         this.productName = productName;
+      }
+
+      public boolean isPlaced() {
+         return status == Status.PLACED;
+      }
+   }//end CheckoutResult
+
+   private static final String CHECK_CART =
+      "SELECT productName, numberOfUnits FROM Product " +
+      "WHERE storeID = ? AND productName = ANY (?::bpchar[])";
+
+   private static final String INSERT_HEADER =
+      "INSERT INTO OrderHeaders(customerID, storeID, orderTime) VALUES (?, ?, NOW()) " +
+      "RETURNING orderHeaderID, orderTime";
+
+   private static final String TAKE_STOCK =
+      "UPDATE Product SET numberOfUnits = numberOfUnits - ? " +
+      "WHERE storeID = ? AND productName = ? AND numberOfUnits >= ?";
+
+   // NOW() is the transaction start time, the same as the header's
+   private static final String INSERT_LINE =
+      "INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered, orderTime, orderHeaderID) " +
+      "VALUES (?, ?, ?, ?, ?, NOW(), ?)";
+
+   private final Retail esql;
+   private final List<OrderListener> listeners = new CopyOnWriteArrayList<OrderListener>();
+
+   public OrderService(Retail esql) {
+      this.esql = esql;
+   }
+
+   /**
+    * Registers a listener told about every order placed from now on.
+    */
+   public void addListener(OrderListener listener) {
+      listeners.add(listener);
+   }
+
+   public void removeListener(OrderListener listener) {
+      listeners.remove(listener);
+   }
+
+   /**
+    * Takes units of a product from a store's stock and records the order.
+    *
+    * @param customerId the userID of the buyer
+    * @param storeId the storeID the product is bought from
+    * @param productName the product, as stored in Product.productName
+    * @param units the number of units ordered
+    * @return the outcome, with the new orderNumber when placed
+    * @throws java.sql.SQLException when failed to execute the statement
+    */
+   public Result placeOrder(int customerId, int storeId, String productName, int units) throws SQLException {
+      if (units <= 0)
+         return new Result(Status.INVALID_AMOUNT);
+      List<List<String>> placed = esql.executeQueryAndReturnResult(PLACE_ORDER,
+         units, storeId, productName, units, esql.getOrderIds().next(), customerId, units);
+      if (!placed.isEmpty()) {
+         fireOrderPlaced(customerId, storeId, productName, units, placed.get(0).get(1));
+         return new Result(Status.PLACED, Integer.parseInt(placed.get(0).get(0)), placed.get(0).get(1));
+      }
+
+      // rejected: find out why
+      boolean sold = esql.exists("SELECT 1 FROM Product WHERE storeID = ? AND productName = ?",
+                                 storeId, productName);
+      return new Result(sold ? Status.INSUFFICIENT_STOCK : Status.NO_SUCH_PRODUCT);
+   }//end placeOrder
+
+   /**
+    * Same as placeOrder(int, int, String, int) for values typed by the user.
+    */
+   public Result placeOrder(String customerId, String storeId, String productName, String units)
+      throws SQLException {
+      int store, amount;
+      try{
+         store = Integer.parseInt(storeId.trim());
+      }catch (NumberFormatException e){
+         return new Result(Status.NO_SUCH_PRODUCT);
+      }//end try
+      try{
+         amount = Integer.parseInt(units.trim());
+      }catch (NumberFormatException e){
+         return new Result(Status.INVALID_AMOUNT);
+      }//end try
+      return placeOrder(Integer.parseInt(customerId.trim()), store, productName, amount);
+   }//end placeOrder
+
+   /**
+    * Buys every product of a cart from one store, or none of them.
+    *
+    * @param customerId the userID of the buyer
+    * @param storeId the storeID the products are bought from
+    * @param items units ordered by product name
+    * @return the outcome, with the new orderHeaderID when placed
+    * @throws java.sql.SQLException when failed to execute the statements
+    */
+   public CheckoutResult checkout(int customerId, int storeId, Map<String, Integer> items) throws SQLException {
+      // sorted by name so concurrent checkouts lock Product rows in the same order
+      TreeMap<String, Integer> cart = new TreeMap<String, Integer>();
+      for (Map.Entry<String, Integer> item : items.entrySet()) {
+         String name = item.getKey().trim();
+         int units = item.getValue();
+         if (units <= 0)
+            return new CheckoutResult(Status.INVALID_AMOUNT, -1, name);
+         Integer before = cart.get(name);
+         cart.put(name, before == null ? units : before + units);
+      }
+      if (cart.isEmpty())
+         return new CheckoutResult(Status.INVALID_AMOUNT, -1, null);
+
+      // one query for the whole cart
+      final Map<String, Integer> stock = new HashMap<String, Integer>();
+      esql.executeQueryAndStreamResult(CHECK_CART, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            stock.put(rs.getString(1).trim(), rs.getInt(2));
+            return true;
+         }
+      }, storeId, toArrayLiteral(cart.keySet()));
+      for (Map.Entry<String, Integer> item : cart.entrySet()) {
+         Integer left = stock.get(item.getKey());
+         if (left == null)
+            return new CheckoutResult(Status.NO_SUCH_PRODUCT, -1, item.getKey());
+         if (left < item.getValue())
+            return new CheckoutResult(Status.INSUFFICIENT_STOCK, -1, item.getKey());
+      }
+
+      List<Object[]> takes = new ArrayList<Object[]>();
+      for (Map.Entry<String, Integer> item : cart.entrySet())
+         takes.add(new Object[] { item.getValue(), storeId, item.getKey(), item.getValue() });
+
+      esql.beginTransaction();
+      try{
+         List<String> header = esql.executeQueryAndReturnResult(INSERT_HEADER, customerId, storeId).get(0);
+         int headerId = Integer.parseInt(header.get(0));
+
+         // the stock may have been bought since it was checked
+         int[] taken = esql.executeBatch(TAKE_STOCK, takes);
+         int i = 0;
+         for (String name : cart.keySet()) {
+            if (taken[i++] == 0) {
+               esql.rollback();
+               return new CheckoutResult(Status.INSUFFICIENT_STOCK, -1, name);
+            }
+         }
+
+         int[] orderNumbers = esql.getOrderIds().next(cart.size());
+         List<Object[]> lines = new ArrayList<Object[]>();
+         i = 0;
+         for (Map.Entry<String, Integer> item : cart.entrySet())
+            lines.add(new Object[] { orderNumbers[i++], customerId, storeId, item.getKey(), item.getValue(), headerId });
+         esql.executeBatch(INSERT_LINE, lines);
+         esql.commit();
+         for (Map.Entry<String, Integer> item : cart.entrySet())
+            fireOrderPlaced(customerId, storeId, item.getKey(), item.getValue(), header.get(1));
+         return new CheckoutResult(Status.PLACED, headerId, null);
+      }finally{
+         // no-op once committed or rolled back
+         esql.rollback();
+      }//end try
+   }//end checkout
+
+   private void fireOrderPlaced(int customerId, int storeId, String productName, int units, String orderTime) {
+      for (OrderListener listener : listeners)
+         listener.orderPlaced(customerId, storeId, productName, units, orderTime);
+   }//end fireOrderPlaced
+
+   // Formats names as a PostgreSQL array literal, e.g. {"7up","Pepsi"}.
+   static String toArrayLiteral(Iterable<String> names) {
+      StringBuilder literal = new StringBuilder("{");
+      for (String name : names) {
+         if (literal.length() > 1) literal.append(',');
+         literal.append('"').append(name.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+      }
+      return literal.append('}').toString();
+   }//end toArrayLiteral
+}//end OrderService
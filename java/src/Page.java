@@ -0,0 +1,70 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * One page of a keyset-paginated listing. A page is read with
+ *
+ *    WHERE (sort key) < (key of the last row shown) ORDER BY sort key LIMIT n + 1
+ *
+ * so every page costs one index range scan of n + 1 rows, however deep the
+ * reader has scrolled. The extra row only tells whether another page
+ * follows and is not handed to the RowHandler.
+ */
+public class Page {
+
+   // the rows handed to the handler
+   public final int rows;
+   // true when another page follows
+   public final boolean more;
+   // sort key of the last row, to pass as "after" for the next page; null when empty
+   public final Object[] last;
+
+   Page(int rows, boolean more, Object[] last) {
+      this.rows = rows;
+      this.more = more;
+      this.last = last;
+   }
+
+   /**
+    * Hands the first size rows to a handler and remembers the key of the
+    * last one; query results are fed through it.
+    */
+   static class Collector implements RowHandler {
+      private final RowHandler sink;
+      private final int size;
+      private final String[] keyColumns;
+      private int rows = 0;
+      private boolean more = false;
+      private boolean stopped = false;
+      private Object[] last = null;
+
+      /**
+       * @param keyColumns the labels of the sort key columns
+       */
+      Collector(RowHandler sink, int size, String... keyColumns) {
+         this.sink = sink;
+         this.size = size;
+         this.keyColumns = keyColumns;
+      }
+
+      public boolean handleRow(ResultSet rs) throws SQLException {
+         if (rows == size) {
+            more = true;
+            return false;
+         }
+         ++rows;
+         last = new Object[keyColumns.length];
+         for (int i = 0; i < keyColumns.length; ++i)
+            last[i] = rs.getString(keyColumns[i]);
+         if (!sink.handleRow(rs)) {
+            stopped = true;
+            return false;
+         }
+         return true;
+      }
+
+      Page page() {
+         return new Page(rows, more && !stopped, last);
+      }
+   }//end Collector
+}//end Page
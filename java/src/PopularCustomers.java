@@ -0,0 +1,216 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the customers with the most orders per store in memory, so menu
+ * item 8 no longer groups the whole Orders relation. Each store has a
+ * SpaceSaving sketch of customerIDs; the sketches are seeded with one
+ * aggregate over Orders on first use and then fed by the OrderService
+ * with every order placed. Counts are estimates: never lower than the
+ * true count, and higher by at most the counter's error.
+ *
+ * Deleting orders does not reach the sketches, so code removing orders,
+ * or rolling back orders it placed, calls invalidate() and the next lookup
+ * seeds them again; BulkLoader does the same after a load. Orders placed
+ * by other processes never reach them either, so the sketches are also
+ * seeded again once they are older than the configured time to live,
+ * which bounds how far they drift. An order placed while the seed query
+ * runs may be counted twice; exact mode answers from Orders for when that
+ * matters.
+ */
+public class PopularCustomers implements OrderListener {
+
+   private static final String SEED =
+      "SELECT storeID, customerID, COUNT(*) FROM Orders GROUP BY storeID, customerID";
+
+   // the winners joined to their names, in the order given
+   private static final String NAMED =
+      "SELECT T.storeID, T.customerID, U.name, T.NumberofOrders " +
+      "FROM unnest(?::int[], ?::int[], ?::bigint[], ?::int[]) AS T(storeID, customerID, NumberofOrders, rank), " +
+      "Users U WHERE U.userID = T.customerID ORDER BY T.rank";
+
+   /**
+    * A customer's estimated number of orders in one store.
+    */
+   public static class Entry {
+      public final int storeId;
+      public final int customerId;
+      public final long orders;
+
+      Entry(int storeId, int customerId, long orders) {
+         this.storeId = storeId;
+         this.customerId = customerId;
+         this.orders = orders;
+      }
+   }//end Entry
+
+   private static final Comparator<Entry> MOST_ORDERS_FIRST = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+         return a.orders > b.orders ? -1 : a.orders < b.orders ? 1 : 0;
+      }
+   };
+
+   private final Retail esql;
+   private final int capacity;
+   private final long ttlMillis;
+   private volatile boolean exact;
+   private Map<Integer, SpaceSaving<Integer>> stores = null;
+   private long seededAt = 0;
+   // orders placed while the seed query runs, as {storeID, customerID}
+   private List<int[]> pending = null;
+   private long generation = 0;
+
+   /**
+    * @param esql the database the sketches are seeded from
+    * @param capacity counters per store
+    * @param ttlMillis age after which the sketches are seeded again, 0 to keep them until invalidated
+    * @param exact true to answer every lookup from Orders
+    */
+   public PopularCustomers(Retail esql, int capacity, long ttlMillis, boolean exact) {
+      this.esql = esql;
+      this.capacity = capacity;
+      this.ttlMillis = ttlMillis;
+      this.exact = exact;
+   }//end PopularCustomers
+
+   /**
+    * Switches between answers from the sketches and exact answers from
+    * Orders, e.g. to audit the estimates.
+    */
+   public void setExact(boolean exact) {
+      this.exact = exact;
+   }
+
+   public boolean isExact() {
+      return exact;
+   }
+
+   public synchronized void orderPlaced(int customerId, int storeId, String productName, int units,
+                                    String orderTime) {
+      if (stores != null)
+         sketch(stores, storeId).add(customerId, 1);
+      else if (pending != null)
+         pending.add(new int[] { storeId, customerId });
+      // before seeding starts the order will be read from Orders
+   }//end orderPlaced
+
+   /**
+    * Forgets the sketches; the next lookup seeds them from Orders again.
+    */
+   public synchronized void invalidate() {
+      stores = null;
+      pending = null;
+      ++generation;
+   }
+
+   /**
+    * @param storeIds the stores to look at, null for every store
+    * @param n number of entries wanted
+    * @return up to n customers with the most orders in one of the stores, most first
+    * @throws java.sql.SQLException when the sketches have to be seeded and that fails
+    */
+   public List<Entry> top(Collection<Integer> storeIds, int n) throws SQLException {
+      Map<Integer, SpaceSaving<Integer>> stores = current();
+      List<Entry> candidates = new ArrayList<Entry>();
+      synchronized (this) {
+         Collection<Integer> wanted = storeIds == null ? stores.keySet() : storeIds;
+         for (Integer storeId : wanted) {
+            SpaceSaving<Integer> s = stores.get(storeId);
+            if (s == null) continue;
+            for (SpaceSaving.Counter<Integer> c : s.top(n))
+               candidates.add(new Entry(storeId, c.item, c.getCount()));
+         }
+      }
+      Collections.sort(candidates, MOST_ORDERS_FIRST);
+      return candidates.size() > n ? candidates.subList(0, n) : candidates;
+   }//end top
+
+   /**
+    * Streams storeID, customerID, name and NumberofOrders of the top
+    * customers, the same columns as the exact query.
+    *
+    * @param storeIds the stores to look at, null for every store
+    * @param n number of rows wanted
+    * @return the number of rows
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int stream(Collection<Integer> storeIds, int n, RowHandler sink) throws SQLException {
+      List<Entry> top = top(storeIds, n);
+      if (top.isEmpty()) return 0;
+      StringBuilder storeList = new StringBuilder("{"), customerList = new StringBuilder("{");
+      StringBuilder orderList = new StringBuilder("{"), rankList = new StringBuilder("{");
+      for (int i = 0; i < top.size(); ++i) {
+         String sep = i == 0 ? "" : ",";
+         storeList.append(sep).append(top.get(i).storeId);
+         customerList.append(sep).append(top.get(i).customerId);
+         orderList.append(sep).append(top.get(i).orders);
+         rankList.append(sep).append(i);
+      }
+      return esql.executeQueryAndStreamResult(NAMED, sink, storeList.append('}').toString(),
+         customerList.append('}').toString(), orderList.append('}').toString(), rankList.append('}').toString());
+   }//end stream
+
+   /**
+    * Returns the sketches, seeding them first when needed. The seed query
+    * runs without holding the lock, so orders keep being placed meanwhile;
+    * they are queued and added afterwards, which may count an order the
+    * query already saw but never misses one.
+    */
+   private Map<Integer, SpaceSaving<Integer>> current() throws SQLException {
+      long seeding;
+      synchronized (this) {
+         if (stores != null && ttlMillis > 0 && System.currentTimeMillis() - seededAt > ttlMillis)
+            invalidate();
+         if (stores != null) return stores;
+         if (pending == null) pending = new ArrayList<int[]>();
+         seeding = generation;
+      }
+      long began = System.currentTimeMillis();
+      Map<Integer, SpaceSaving<Integer>> seeded = seed();
+      synchronized (this) {
+         // another lookup may have finished seeding first
+         if (stores != null) return stores;
+         if (generation != seeding || pending == null) return seeded;
+         for (int[] order : pending)
+            sketch(seeded, order[0]).add(order[1], 1);
+         pending = null;
+         stores = seeded;
+         seededAt = began;
+         return stores;
+      }
+   }//end current
+
+   // Builds the sketches from the orders recorded so far.
+   private Map<Integer, SpaceSaving<Integer>> seed() throws SQLException {
+      final Map<Integer, SpaceSaving<Integer>> seeded = new HashMap<Integer, SpaceSaving<Integer>>();
+      esql.executeQueryAndStreamResult(SEED, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            int storeId = rs.getInt(1);
+            SpaceSaving<Integer> s = seeded.get(storeId);
+            if (s == null) {
+               s = new SpaceSaving<Integer>(capacity);
+               seeded.put(storeId, s);
+            }
+            s.add(rs.getInt(2), rs.getLong(3));
+            return true;
+         }
+      });
+      return seeded;
+   }//end seed
+
+   private SpaceSaving<Integer> sketch(Map<Integer, SpaceSaving<Integer>> stores, int storeId) {
+      SpaceSaving<Integer> s = stores.get(storeId);
+      if (s == null) {
+         s = new SpaceSaving<Integer>(capacity);
+         stores.put(storeId, s);
+      }
+      return s;
+   }//end sketch
+}//end PopularCustomers
@@ -0,0 +1,60 @@
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The identity and role of a logged in user, resolved once from the Users
+ * and Store relations and then kept by the AuthorizationCache so menu
+ * actions can check permissions without a round trip.
+ */
+public class Principal {
+
+   public final int userId;
+   public final String name;
+   // 'customer', 'manager' or 'admin' as stored in Users.type, without padding
+   public final String type;
+   public final double latitude;
+   public final double longitude;
+   // storeIDs whose Store.managerID is this user
+   private final Set<Integer> managedStores;
+
+   public Principal(int userId, String name, String type, double latitude, double longitude,
+                    Set<Integer> managedStores) {
+      this.userId = userId;
+      this.name = name;
+      this.type = type;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.managedStores = Collections.unmodifiableSet(managedStores);
+   }//end Principal
+
+   public boolean isCustomer() {
+      return "customer".equals(type);
+   }
+
+   public boolean isManager() {
+      return "manager".equals(type);
+   }
+
+   public boolean isAdmin() {
+      return "admin".equals(type);
+   }
+
+   /**
+    * @return the storeIDs managed by this user, empty for non managers
+    */
+   public Set<Integer> getManagedStores() {
+      return managedStores;
+   }
+
+   /**
+    * @param storeId a storeID as typed by the user
+    * @return true when storeId is numeric and managed by this user
+    */
+   public boolean managesStore(String storeId) {
+      try{
+         return managedStores.contains(Integer.valueOf(storeId.trim()));
+      }catch (NumberFormatException e){
+         return false;
+      }//end try
+   }//end managesStore
+}//end Principal
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adds or updates many products at once from CSV records of
+ *
+ *    storeID,productName,numberOfUnits,pricePerUnit
+ *
+ * the layout of products.csv; a header line is skipped. Records are sent
+ * batchSize at a time, each batch as one statement that upserts the
+ * products with INSERT ... ON CONFLICT (storeID, productName) DO UPDATE
+ * and writes their ProductUpdates audit rows in the same multi-row insert.
+ * The batch is bound as array parameters, so the statement text, and its
+ * cached plan, is the same for every batch. The audit rows carry
+ * updateNumbers reserved for the whole batch in one IdAllocator call.
+ *
+ * Within a batch the last record of a product wins, since one statement
+ * cannot update a row twice. Records naming an unknown store, or, for a
+ * manager, a store they do not manage, are rejected and counted rather
+ * than failing the batch.
+ */
+public class ProductUpserter {
+
+   private static final String UPSERT =
+      "WITH input AS (" +
+      "SELECT T.* FROM unnest(?::int[], ?::bpchar[], ?::int[], ?::float8[], ?::int[]) " +
+      "AS T(storeID, productName, numberOfUnits, pricePerUnit, updateNumber) JOIN Store S ON S.storeID = T.storeID), " +
+      "upserted AS (" +
+      "INSERT INTO Product AS P (storeID, productName, numberOfUnits, pricePerUnit) " +
+      "SELECT storeID, productName, numberOfUnits, pricePerUnit FROM input " +
+      "ON CONFLICT (storeID, productName) DO UPDATE " +
+      "SET numberOfUnits = EXCLUDED.numberOfUnits, pricePerUnit = EXCLUDED.pricePerUnit " +
+      "RETURNING P.storeID, P.productName) " +
+      "INSERT INTO ProductUpdates(updateNumber, managerID, storeID, productName, updatedOn) " +
+      "SELECT I.updateNumber, ?, U.storeID, U.productName, NOW() FROM upserted U " +
+      "JOIN input I ON I.storeID = U.storeID AND I.productName = U.productName";
+
+   /**
+    * Outcome of an upsert.
+    */
+   public static class Result {
+      // products added or updated
+      public final long rows;
+      // records refused: malformed, unknown store or not the manager's store
+      public final long rejected;
+      public final long millis;
+
+      Result(long rows, long rejected, long millis) {
+         this.rows = rows;
+         this.rejected = rejected;
+         this.millis = millis;
+      }
+
+      public long rowsPerSecond() {
+         return rows * 1000 / Math.max(1, millis);
+      }
+
+      public String toString() {
+         return rows + " product(s) upserted, " + rejected + " rejected, in " + millis + " ms (" +
+                rowsPerSecond() + " rows/s)";
+      }
+   }//end Result
+
+   private final Retail esql;
+   private final int batchSize;
+
+   /**
+    * @param esql the database written to
+    * @param batchSize records per statement
+    */
+   public ProductUpserter(Retail esql, int batchSize) {
+      this.esql = esql;
+      this.batchSize = Math.max(1, batchSize);
+   }//end ProductUpserter
+
+   /**
+    * Upserts every record read from in. Each batch commits on its own, so
+    * a failure leaves the earlier batches applied.
+    *
+    * @param user an admin, or a manager upserting products of their stores
+    * @param in CSV records; not closed
+    * @throws java.sql.SQLException when a batch fails
+    * @throws java.io.IOException when in cannot be read
+    */
+   public Result upsert(Principal user, Reader in) throws SQLException, IOException {
+      if (!user.isAdmin() && !user.isManager()) throw new SecurityException("Unauthorised user");
+      long began = System.currentTimeMillis();
+      long rows = 0, rejected = 0;
+      BulkLoader.CsvReader csv = new BulkLoader.CsvReader(in);
+      // (storeID, productName) -> record, the last one of a product winning
+      Map<String, String[]> batch = new LinkedHashMap<String, String[]>();
+      int read = 0;
+      String[] record;
+      boolean first = true;
+      while ((record = csv.next()) != null) {
+         if (first && record.length > 0 && record[0] != null && record[0].trim().equalsIgnoreCase("storeID")) {
+            first = false;
+            continue;
+         }
+         first = false;
+         String[] product = parse(record);
+         if (product == null || (!user.isAdmin() && !user.managesStore(product[0]))) {
+            ++rejected;
+            continue;
+         }
+         batch.put(product[0] + '\t' + product[1], product);
+         if (++read == batchSize) {
+            int upserted = send(user, batch.values());
+            rows += upserted;
+            rejected += batch.size() - upserted;
+            batch.clear();
+            read = 0;
+         }
+      }
+      if (read > 0) {
+         int upserted = send(user, batch.values());
+         rows += upserted;
+         rejected += batch.size() - upserted;
+      }
+      return new Result(rows, rejected, System.currentTimeMillis() - began);
+   }//end upsert
+
+   // The record checked and trimmed, with the storeID in canonical form so
+   // "007" and "7" name the same product, or null when it is malformed.
+   private static String[] parse(String[] record) {
+      if (record.length < 4) return null;
+      String[] product = new String[4];
+      for (int i = 0; i < 4; ++i) {
+         if (record[i] == null || record[i].trim().isEmpty()) return null;
+         product[i] = record[i].trim();
+      }
+      try{
+         product[0] = String.valueOf(Integer.parseInt(product[0]));
+         Integer.parseInt(product[2]);
+         Double.parseDouble(product[3]);
+      }catch (NumberFormatException e){
+         return null;
+      }//end try
+      return product[1].length() <= 30 ? product : null;
+   }//end parse
+
+   // Sends one batch; returns the number of products written.
+   private int send(Principal user, Iterable<String[]> batch) throws SQLException {
+      List<String> stores = new ArrayList<String>(), names = new ArrayList<String>(),
+                   units = new ArrayList<String>(), prices = new ArrayList<String>(),
+                   updates = new ArrayList<String>();
+      for (String[] product : batch) {
+         stores.add(product[0]);
+         names.add(product[1]);
+         units.add(product[2]);
+         prices.add(product[3]);
+      }
+      for (int updateNumber : esql.getUpdateIds().next(stores.size()))
+         updates.add(String.valueOf(updateNumber));
+      return esql.executeUpdate(UPSERT,
+         OrderService.toArrayLiteral(stores), OrderService.toArrayLiteral(names),
+         OrderService.toArrayLiteral(units), OrderService.toArrayLiteral(prices),
+         OrderService.toArrayLiteral(updates), user.userId);
+   }//end send
+}//end ProductUpserter
@@ -0,0 +1,172 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the last few orders of recently active customers in memory, so
+ * "View 5 recent orders" is answered without a query once a customer's
+ * orders are cached. Each customer has a fixed-size ring buffer holding
+ * the store name, product, units and time of an order. A buffer is loaded
+ * with one query on the customer's first lookup, appended to by the
+ * OrderService with every order placed, and evicted when the cache is
+ * full and the customer is the least recently used one.
+ *
+ * Orders are only appended to buffers already loaded; an order placed
+ * while the customer's buffer is loading makes that load uncached, so the
+ * next lookup reads it again. Code that deletes orders, or rolls back a
+ * transaction that placed some, calls invalidate().
+ */
+public class RecentOrdersCache implements OrderListener {
+
+   // column labels of the customer query this cache replaces
+   private static final String[] COLUMNS = { "id", "sname", "productname", "number", "date" };
+
+   private static final String LOAD =
+      "SELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime " +
+      "FROM Orders O, Store S WHERE O.storeID = S.storeID AND O.customerID = ? " +
+      "ORDER BY O.orderTime DESC LIMIT ?";
+
+   /**
+    * The last orders of one customer, oldest overwritten first.
+    */
+   static class Ring {
+      private final Object[][] orders;
+      private int next = 0;
+      private int size = 0;
+
+      Ring(int capacity) {
+         orders = new Object[capacity][];
+      }
+
+      void add(Object[] order) {
+         orders[next] = order;
+         next = (next + 1) % orders.length;
+         if (size < orders.length) ++size;
+      }
+
+      // newest first
+      List<Object[]> newest(int n) {
+         List<Object[]> result = new ArrayList<Object[]>(Math.min(n, size));
+         for (int i = 1; i <= Math.min(n, size); ++i)
+            result.add(orders[(next - i + orders.length) % orders.length]);
+         return result;
+      }
+   }//end Ring
+
+   private final Retail esql;
+   private final int ordersPerCustomer;
+   private final LinkedHashMap<Integer, Ring> rings;
+   // customers being loaded, true once an order arrived meanwhile
+   private final Map<Integer, Boolean> loading = new HashMap<Integer, Boolean>();
+
+   /**
+    * @param esql the database the orders are loaded from
+    * @param customers most customers kept
+    * @param ordersPerCustomer orders kept per customer, the most a lookup can return
+    */
+   public RecentOrdersCache(Retail esql, final int customers, int ordersPerCustomer) {
+      this.esql = esql;
+      this.ordersPerCustomer = Math.max(1, ordersPerCustomer);
+      this.rings = new LinkedHashMap<Integer, Ring>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<Integer, Ring> eldest) {
+            return size() > customers;
+         }
+      };
+   }//end RecentOrdersCache
+
+   /**
+    * Streams the newest orders of a customer with the columns ID, SName,
+    * productName, Number and Date, newest first.
+    *
+    * @param customerId the userID of the customer
+    * @param n most orders returned
+    * @return the number of rows
+    * @throws java.sql.SQLException when the orders have to be loaded and that fails
+    */
+   public int stream(int customerId, int n, RowHandler sink) throws SQLException {
+      List<Object[]> orders;
+      synchronized (this) {
+         Ring ring = rings.get(customerId);
+         orders = ring == null ? null : ring.newest(n);
+      }
+      if (orders == null) orders = load(customerId).newest(n);
+      return MemoryResultSet.stream(COLUMNS, orders, sink);
+   }//end stream
+
+   public void orderPlaced(int customerId, int storeId, String productName, int units, String orderTime) {
+      synchronized (this) {
+         if (loading.containsKey(customerId)) loading.put(customerId, Boolean.TRUE);
+         if (!rings.containsKey(customerId)) return;
+      }
+      String storeName;
+      try{
+         StoreLocator.StoreLocation store = esql.getStoreLocator().getStore(storeId);
+         storeName = store == null ? null : store.name;
+      }catch (SQLException e){
+         storeName = null;
+      }//end try
+      synchronized (this) {
+         Ring ring = rings.get(customerId);
+         if (ring == null) return;
+         // without the store name the buffer is reloaded instead
+         if (storeName == null)
+            rings.remove(customerId);
+         else
+            ring.add(new Object[] { storeId, storeName, productName.trim(), units, orderTime });
+      }
+   }//end orderPlaced
+
+   /**
+    * Forgets the orders of one customer.
+    */
+   public synchronized void invalidate(int customerId) {
+      rings.remove(customerId);
+      if (loading.containsKey(customerId)) loading.put(customerId, Boolean.TRUE);
+   }//end invalidate
+
+   /**
+    * Forgets the orders of every customer.
+    */
+   public synchronized void invalidateAll() {
+      rings.clear();
+      for (Map.Entry<Integer, Boolean> load : loading.entrySet())
+         load.setValue(Boolean.TRUE);
+   }//end invalidateAll
+
+   // Reads the newest orders of a customer and caches them unless an order came in meanwhile.
+   private Ring load(int customerId) throws SQLException {
+      synchronized (this) {
+         if (!loading.containsKey(customerId)) loading.put(customerId, Boolean.FALSE);
+      }
+      final List<Object[]> newestFirst = new ArrayList<Object[]>();
+      boolean loaded = false;
+      try{
+         esql.executeQueryAndStreamResult(LOAD, new RowHandler() {
+            public boolean handleRow(ResultSet rs) throws SQLException {
+               newestFirst.add(new Object[] { rs.getInt(1), rs.getString(2).trim(), rs.getString(3).trim(),
+                                              rs.getInt(4), rs.getString(5) });
+               return true;
+            }
+         }, customerId, ordersPerCustomer);
+         loaded = true;
+      }finally{
+         synchronized (this) {
+            Boolean changed = loading.remove(customerId);
+            if (loaded && Boolean.FALSE.equals(changed) && !rings.containsKey(customerId))
+               rings.put(customerId, toRing(newestFirst));
+         }
+      }//end try
+      return toRing(newestFirst);
+   }//end load
+
+   private Ring toRing(List<Object[]> newestFirst) {
+      Ring ring = new Ring(ordersPerCustomer);
+      for (int i = newestFirst.size() - 1; i >= 0; --i)
+         ring.add(newestFirst.get(i));
+      return ring;
+   }//end toRing
+}//end RecentOrdersCache
@@ -0,0 +1,198 @@
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Removes users and products together with every row referring to them.
+ *
+ * A removal is one statement whose data-modifying WITH clauses delete the
+ * referencing rows alongside the parent row, so it commits or fails as a
+ * whole, in the caller's transaction when one is in progress. Each delete
+ * is answered by an index of create_indexes.sql. Removing a product also
+ * deletes the OrderHeaders of carts left without any order; the foreign
+ * key from Orders is checked at the end of the statement, after the
+ * orders of those carts are gone.
+ *
+ * A removal that would delete more than purgeThreshold orders is done in
+ * the background instead: the orders are deleted purgeChunk rows per
+ * transaction, pausing between chunks, so no transaction holds its locks
+ * or writes WAL for long; the remaining rows and the parent row are then
+ * removed by the same single statement. Removals requested inside a
+ * transaction never go to the background, since they must roll back with
+ * it.
+ */
+public class RemovalService {
+
+   public enum Outcome {
+      REMOVED,             // removed with everything referring to it
+      PURGING,             // being removed in the background
+      NOT_FOUND,           // nothing to remove
+      MANAGES_STORES       // a user still managing stores; hand them over first
+   }
+
+   private static final String REMOVE_USER =
+      "WITH orders AS (DELETE FROM Orders WHERE customerID = ?), " +
+      "headers AS (DELETE FROM OrderHeaders WHERE customerID = ?), " +
+      "updates AS (DELETE FROM ProductUpdates WHERE managerID = ?), " +
+      "requests AS (DELETE FROM ProductSupplyRequests WHERE managerID = ?) " +
+      "DELETE FROM Users WHERE userID = ?";
+
+   // the WITH clauses all see the rows as they were before the statement,
+   // so a header is emptied when no order outside the product refers to it
+   private static final String REMOVE_PRODUCT =
+      "WITH orders AS (DELETE FROM Orders WHERE storeID = ? AND productName = ? RETURNING orderHeaderID), " +
+      "headers AS (DELETE FROM OrderHeaders H WHERE H.orderHeaderID IN (SELECT orderHeaderID FROM orders) " +
+      "AND NOT EXISTS (SELECT 1 FROM Orders O WHERE O.orderHeaderID = H.orderHeaderID " +
+      "AND NOT (O.storeID = ? AND O.productName = ?))), " +
+      "requests AS (DELETE FROM ProductSupplyRequests WHERE storeID = ? AND productName = ?), " +
+      "updates AS (DELETE FROM ProductUpdates WHERE storeID = ? AND productName = ?) " +
+      "DELETE FROM Product WHERE storeID = ? AND productName = ?";
+
+   private static final String PURGE_USER_ORDERS =
+      "DELETE FROM Orders WHERE orderNumber IN " +
+      "(SELECT orderNumber FROM Orders WHERE customerID = ? LIMIT ?)";
+
+   // deletes one chunk of orders and the headers it empties; the row count
+   // is that of the orders
+   private static final String PURGE_PRODUCT_ORDERS =
+      "WITH chunk AS (SELECT orderNumber, orderHeaderID FROM Orders WHERE storeID = ? AND productName = ? LIMIT ?), " +
+      "headers AS (DELETE FROM OrderHeaders H WHERE H.orderHeaderID IN (SELECT orderHeaderID FROM chunk) " +
+      "AND NOT EXISTS (SELECT 1 FROM Orders O WHERE O.orderHeaderID = H.orderHeaderID " +
+      "AND O.orderNumber NOT IN (SELECT orderNumber FROM chunk))) " +
+      "DELETE FROM Orders WHERE orderNumber IN (SELECT orderNumber FROM chunk)";
+
+   private final Retail esql;
+   private final int purgeThreshold;
+   private final int purgeChunk;
+   private final long pauseMillis;
+   // the removals running in the background, so each is started once
+   private final ConcurrentMap<String, Boolean> purging = new ConcurrentHashMap<String, Boolean>();
+   private ExecutorService purger = null;
+
+   /**
+    * @param esql the database removed from
+    * @param purgeThreshold the number of orders above which a removal is purged in the background
+    * @param purgeChunk orders deleted per background transaction
+    * @param pauseMillis pause between background chunks
+    */
+   public RemovalService(Retail esql, int purgeThreshold, int purgeChunk, long pauseMillis) {
+      this.esql = esql;
+      this.purgeThreshold = purgeThreshold;
+      this.purgeChunk = Math.max(1, purgeChunk);
+      this.pauseMillis = pauseMillis;
+   }//end RemovalService
+
+   /**
+    * Removes a user with their orders, checkouts, product updates and
+    * supply requests. Users managing stores are refused.
+    */
+   public Outcome removeUser(final int userId) throws SQLException {
+      if (esql.exists("SELECT 1 FROM Store WHERE managerID = ?", userId))
+         return Outcome.MANAGES_STORES;
+      if (!esql.exists("SELECT 1 FROM Users WHERE userID = ?", userId))
+         return Outcome.NOT_FOUND;
+      if (large("SELECT 1 FROM Orders WHERE customerID = ?", userId)) {
+         return purge("user:" + userId, new Purge() {
+            public int chunk() throws SQLException {
+               return esql.executeUpdate(PURGE_USER_ORDERS, userId, purgeChunk);
+            }
+            public Outcome finish() throws SQLException {
+               return removeUserNow(userId);
+            }
+         });
+      }
+      return removeUserNow(userId);
+   }//end removeUser
+
+   /**
+    * Removes a product of a store with its orders, updates and supply
+    * requests, and the checkouts left without any order.
+    */
+   public Outcome removeProduct(final int storeId, final String productName) throws SQLException {
+      if (large("SELECT 1 FROM Orders WHERE storeID = ? AND productName = ?", storeId, productName)) {
+         return purge("product:" + storeId + ":" + productName.trim(), new Purge() {
+            public int chunk() throws SQLException {
+               return esql.executeUpdate(PURGE_PRODUCT_ORDERS, storeId, productName, purgeChunk);
+            }
+            public Outcome finish() throws SQLException {
+               return removeProductNow(storeId, productName);
+            }
+         });
+      }
+      return removeProductNow(storeId, productName);
+   }//end removeProduct
+
+   /**
+    * Stops the background removals; a stopped removal has deleted whole
+    * chunks only and is finished by removing the same row again.
+    */
+   public synchronized void stop() {
+      if (purger != null) purger.shutdownNow();
+      purger = null;
+   }//end stop
+
+   private Outcome removeUserNow(int userId) throws SQLException {
+      int removed = esql.executeUpdate(REMOVE_USER, userId, userId, userId, userId, userId);
+      esql.getPopularCustomers().invalidate();
+      esql.getRecentOrders().invalidate(userId);
+      // the removed user must not keep its cached role
+      esql.getAuthorizations().invalidate(String.valueOf(userId));
+      return removed == 0 ? Outcome.NOT_FOUND : Outcome.REMOVED;
+   }//end removeUserNow
+
+   private Outcome removeProductNow(int storeId, String productName) throws SQLException {
+      int removed = esql.executeUpdate(REMOVE_PRODUCT, storeId, productName, storeId, productName,
+                                       storeId, productName, storeId, productName, storeId, productName);
+      esql.getPopularCustomers().invalidate();
+      esql.getRecentOrders().invalidateAll();
+      return removed == 0 ? Outcome.NOT_FOUND : Outcome.REMOVED;
+   }//end removeProductNow
+
+   // True when the removal would delete more than purgeThreshold orders and may run in the background.
+   private boolean large(String orders, Object... params) throws SQLException {
+      if (purgeThreshold <= 0 || esql.isInTransaction()) return false;
+      Object[] limited = new Object[params.length + 1];
+      System.arraycopy(params, 0, limited, 0, params.length);
+      limited[params.length] = purgeThreshold + 1;
+      // stops counting past the threshold
+      return esql.executeQuery("SELECT 1 FROM (" + orders + " LIMIT ?) T", limited) > purgeThreshold;
+   }//end large
+
+   // One background removal: chunks of orders, then the rest at once.
+   private interface Purge {
+      int chunk() throws SQLException;
+      Outcome finish() throws SQLException;
+   }//end Purge
+
+   private synchronized Outcome purge(final String key, final Purge purge) {
+      if (purging.putIfAbsent(key, Boolean.TRUE) != null) return Outcome.PURGING;
+      if (purger == null)
+         purger = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "retail-purge");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      purger.execute(new Runnable() {
+         public void run() {
+            try{
+               while (purge.chunk() == purgeChunk && !Thread.currentThread().isInterrupted())
+                  if (pauseMillis > 0) Thread.sleep(pauseMillis);
+               if (!Thread.currentThread().isInterrupted())
+                  purge.finish();
+            }catch (InterruptedException e){
+               // stopped.
+            }catch (SQLException e){
+               System.err.println("Removing " + key + " failed: " + e.getMessage());
+            }finally{
+               purging.remove(key);
+            }//end try
+         }
+      });
+      return Outcome.PURGING;
+   }//end purge
+}//end RemovalService
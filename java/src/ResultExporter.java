@@ -0,0 +1,151 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Writes the rows it is handed to a file as CSV or JSON Lines, straight
+ * from the ResultSet: nothing is kept per row, so an export fed by
+ * Retail.executeQueryAndStreamResult runs in constant memory however
+ * many rows it holds.
+ *
+ * CSV follows RFC 4180: a header line of column labels, fields quoted only
+ * when they contain a comma, quote or line break, and SQL NULL written as
+ * an empty field. JSON Lines writes one object per row keyed by column
+ * label, with numeric and boolean columns unquoted and NULL as null.
+ */
+public class ResultExporter implements RowHandler {
+
+   public enum Format { CSV, JSONL }
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   private final Writer out;
+   private final Format format;
+   private String[] labels = null;
+   // true for the columns written without quotes in JSON Lines
+   private boolean[] bare = null;
+
+   /**
+    * @param out where the rows are written; closed by close()
+    */
+   public ResultExporter(Writer out, Format format) {
+      this.out = out;
+      this.format = format;
+   }
+
+   /**
+    * Opens an export to a file, choosing the format from its extension:
+    * .json and .jsonl give JSON Lines, anything else CSV.
+    *
+    * @throws java.io.IOException when the file cannot be created
+    */
+   public static ResultExporter open(String file) throws IOException {
+      String name = file.toLowerCase();
+      Format format = name.endsWith(".json") || name.endsWith(".jsonl") ? Format.JSONL : Format.CSV;
+      return new ResultExporter(new BufferedWriter(
+         new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), BUFFER_SIZE), format);
+   }//end open
+
+   public boolean handleRow(ResultSet rs) throws SQLException {
+      try{
+         if (labels == null) start(rs.getMetaData());
+         if (format == Format.CSV) writeCsv(rs);
+         else writeJson(rs);
+      }catch (IOException e){
+         throw new SQLException("Cannot write the export: " + e.getMessage());
+      }//end try
+      return true;
+   }//end handleRow
+
+   /**
+    * Flushes and closes the file.
+    */
+   public void close() throws IOException {
+      out.close();
+   }//end close
+
+   private void start(ResultSetMetaData rsmd) throws SQLException, IOException {
+      labels = new String[rsmd.getColumnCount()];
+      bare = new boolean[labels.length];
+      for (int i = 0; i < labels.length; ++i) {
+         labels[i] = rsmd.getColumnLabel(i + 1);
+         switch (rsmd.getColumnType(i + 1)) {
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE:
+            case Types.NUMERIC: case Types.DECIMAL:
+            case Types.BIT: case Types.BOOLEAN:
+               bare[i] = true;
+         }
+      }
+      if (format == Format.CSV) {
+         for (int i = 0; i < labels.length; ++i) {
+            if (i > 0) out.write(',');
+            csvField(labels[i]);
+         }
+         out.write("\r\n");
+      }
+   }//end start
+
+   private void writeCsv(ResultSet rs) throws SQLException, IOException {
+      for (int i = 0; i < labels.length; ++i) {
+         if (i > 0) out.write(',');
+         String value = rs.getString(i + 1);
+         if (value != null) csvField(value);
+      }
+      out.write("\r\n");
+   }//end writeCsv
+
+   private void csvField(String value) throws IOException {
+      boolean quote = false;
+      for (int i = 0; i < value.length() && !quote; ++i) {
+         char c = value.charAt(i);
+         quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+      }
+      if (!quote) {
+         out.write(value);
+         return;
+      }
+      out.write('"');
+      out.write(value.replace("\"", "\"\""));
+      out.write('"');
+   }//end csvField
+
+   private void writeJson(ResultSet rs) throws SQLException, IOException {
+      out.write('{');
+      for (int i = 0; i < labels.length; ++i) {
+         if (i > 0) out.write(',');
+         jsonString(labels[i]);
+         out.write(':');
+         String value = rs.getString(i + 1);
+         if (value == null) out.write("null");
+         else if (!bare[i] || value.equals("NaN") || value.endsWith("Infinity")) jsonString(value);
+         else if (value.equals("t") || value.equals("f")) out.write(value.equals("t") ? "true" : "false");
+         else out.write(value);
+      }
+      out.write("}\n");
+   }//end writeJson
+
+   private void jsonString(String s) throws IOException {
+      out.write('"');
+      for (int i = 0; i < s.length(); ++i) {
+         char c = s.charAt(i);
+         switch (c) {
+            case '"': out.write("\\\""); break;
+            case '\\': out.write("\\\\"); break;
+            case '\n': out.write("\\n"); break;
+            case '\r': out.write("\\r"); break;
+            case '\t': out.write("\\t"); break;
+            default:
+               if (c < 0x20) out.write(String.format("\\u%04x", (int) c));
+               else out.write(c);
+         }
+      }
+      out.write('"');
+   }//end jsonString
+}//end ResultExporter
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints the rows it is handed as an aligned table. Output goes through one
+ * large buffer and is written out when the buffer fills or on finish(),
+ * rather than one System.out.print per cell.
+ *
+ * The column widths are taken from the header and the first sampleRows
+ * rows, which are held back until the sample is complete. Later values
+ * wider than their column are printed in full and push the rest of their
+ * line to the right.
+ */
+public class ResultRenderer implements RowHandler {
+
+   private static final int BUFFER_SIZE = 1 << 16;
+   private static final String SEPARATOR = "  ";
+
+   private final Writer out;
+   private final int sampleRows;
+   private final StringBuilder line = new StringBuilder();
+   private List<String[]> sample = new ArrayList<String[]>();
+   private String[] header = null;
+   private int[] widths = null;
+
+   /**
+    * Renders to standard out, sizing the columns from the first
+    * retail.render.sample rows (100).
+    */
+   public ResultRenderer() {
+      this(new OutputStreamWriter(System.out), Integer.getInteger("retail.render.sample", 100));
+   }
+
+   /**
+    * @param out where the table is written; flushed but not closed by finish()
+    * @param sampleRows the number of leading rows the column widths are taken from
+    */
+   public ResultRenderer(Writer out, int sampleRows) {
+      this.out = out;
+      this.sampleRows = Math.max(1, sampleRows);
+   }
+
+   public boolean handleRow(ResultSet rs) throws SQLException {
+      if (header == null) {
+         ResultSetMetaData rsmd = rs.getMetaData();
+         header = new String[rsmd.getColumnCount()];
+         for (int i = 0; i < header.length; ++i)
+            header[i] = rsmd.getColumnLabel(i + 1);
+      }
+      String[] row = new String[header.length];
+      for (int i = 0; i < row.length; ++i)
+         row[i] = rs.getString(i + 1);
+      try{
+         if (sample != null) {
+            sample.add(row);
+            if (sample.size() == sampleRows) flushSample();
+         } else {
+            write(row);
+         }
+      }catch (IOException e){
+         throw new SQLException("Cannot write the result: " + e.getMessage());
+      }//end try
+      return true;
+   }//end handleRow
+
+   /**
+    * Writes any rows still held back and flushes the buffer. The renderer
+    * may be handed rows again afterwards; they continue the same table.
+    */
+   public void finish() throws IOException {
+      if (sample != null && header != null) flushSample();
+      out.write(line.toString());
+      line.setLength(0);
+      out.flush();
+   }//end finish
+
+   // Fixes the column widths from the sample and writes it under the header.
+   private void flushSample() throws IOException {
+      widths = new int[header.length];
+      for (int i = 0; i < header.length; ++i)
+         widths[i] = header[i].length();
+      for (String[] row : sample)
+         for (int i = 0; i < row.length; ++i)
+            widths[i] = Math.max(widths[i], String.valueOf(row[i]).length());
+      write(header);
+      for (String[] row : sample)
+         write(row);
+      sample = null;
+   }//end flushSample
+
+   private void write(String[] row) throws IOException {
+      for (int i = 0; i < row.length; ++i) {
+         String value = String.valueOf(row[i]);
+         line.append(value);
+         if (i + 1 < row.length) {
+            for (int pad = value.length(); pad < widths[i]; ++pad)
+               line.append(' ');
+            line.append(SEPARATOR);
+         }
+      }
+      line.append('\n');
+      if (line.length() >= BUFFER_SIZE) {
+         out.write(line.toString());
+         line.setLength(0);
+      }
+   }//end write
+}//end ResultRenderer
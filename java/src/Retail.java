@@ -14,15 +14,25 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.FileInputStream;
+import java.io.Reader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.Math;
 
 /**
@@ -33,8 +43,70 @@ import java.lang.Math;
 
 public class Retail {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // reference to the pool of physical database connections.
+   private ConnectionPool _pool = null;
+
+   // roles and managed stores of the users seen by this session
+   private final AuthorizationCache _authorizations = new AuthorizationCache(this);
+
+   // connection of the transaction the current thread has begun, if any
+   private final ThreadLocal<Connection> _transaction = new ThreadLocal<Connection> ();
+
+   // rows fetched per round trip by executeQueryAndStreamResult, 0 fetches all at once
+   private int _fetchSize = Integer.getInteger("retail.fetchSize", 0);
+
+   // numbers the cursors declared by executeQueryAndStreamResult
+   private final AtomicInteger _cursors = new AtomicInteger ();
+
+   // grid index over Store coordinates for the "stores near me" lookups;
+   // -Dretail.storeIndex=false sends them to the stores_within SQL function
+   private final StoreLocator _stores = new StoreLocator(this,
+      Double.parseDouble(System.getProperty("retail.storeIndex.cellSize", String.valueOf(NEARBY_RADIUS))),
+      Long.getLong("retail.storeIndex.ttlSeconds", 300) * 1000,
+      !"false".equals(System.getProperty("retail.storeIndex")));
+
+   // atomic stock decrement + order insert used by placeOrder
+   private final OrderService _orders = new OrderService(this);
+
+   // per-store heavy hitters behind "popular customers", fed by _orders and
+   // seeded again every retail.popularCustomers.ttlSeconds to take in the
+   // orders of other clients; -Dretail.popularCustomers.exact=true answers
+   // from Orders instead
+   private final PopularCustomers _popularCustomers = new PopularCustomers(this,
+      Integer.getInteger("retail.popularCustomers.capacity", 100),
+      Long.getLong("retail.popularCustomers.ttlSeconds", 300) * 1000,
+      Boolean.getBoolean("retail.popularCustomers.exact"));
+
+   // last orders of recently active customers, fed by _orders
+   private final RecentOrdersCache _recentOrders = new RecentOrdersCache(this,
+      Integer.getInteger("retail.recentOrders.customers", 10000),
+      Integer.getInteger("retail.recentOrders.perCustomer", 5));
+
+   // the menu operations without console input
+   private final RetailOperations _operations = new RetailOperations(this);
+
+   // keys of new rows, reserved in blocks from the sequences of Triggers.sql
+   private final IdAllocator _orderIds = new IdAllocator(this, "order_num");
+   private final IdAllocator _updateIds = new IdAllocator(this, "update_num");
+   private final IdAllocator _userIds = new IdAllocator(this, "user_num");
+   private final IdAllocator _supplyIds = new IdAllocator(this, "supply_num");
+
+   // cascade removal of users and products; removals of more than
+   // retail.purge.threshold orders are deleted in the background in chunks
+   private final RemovalService _removals = new RemovalService(this,
+      Integer.getInteger("retail.purge.threshold", 10000),
+      Integer.getInteger("retail.purge.chunk", 5000),
+      Long.getLong("retail.purge.pauseMs", 50));
+
+   // storeIDs of managers, kept current by LISTENing for Store changes
+   private final ManagerScope _managerScope = new ManagerScope(this,
+      Long.getLong("retail.managerScope.pollMs", 1000));
+
+   // distinct statements run, with sample parameters; set by -Dretail.sqlLog
+   private SqlLog _sqlLog = null;
+
+   // a store is "in your area" when it is closer than this
+   public static final double NEARBY_RADIUS = 30;
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -52,14 +124,21 @@ public class Retail {
     */
    public Retail(String dbname, String dbport, String user, String passwd) throws SQLException {
 
+      this._orders.addListener(this._popularCustomers);
+      this._orders.addListener(this._recentOrders);
       System.out.print("Connecting to database...");
       try{
-         // constructs the connection URL
-         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+         // constructs the connection URL; string parameters are sent untyped
+         // so the server infers integer/char columns just as it does for
+         // quoted literals, and indexes on those columns stay usable
+         String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + "?stringtype=unspecified";
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         this._sqlLog = SqlLog.open(System.getProperty("retail.sqlLog"));
+
+         // open the connection pool, sized by the retail.pool.* properties
+         this._pool = ConnectionPool.configure(url, user, passwd);
+         this._managerScope.start(this._pool.openUnpooled());
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -69,7 +148,7 @@ public class Retail {
    }//end Retail
 
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
-   public double calculateDistance (double lat1, double long1, double lat2, double long2){
+   public static double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
       double t2 = (long1 - long2) * (long1 - long2);
       return Math.sqrt(t1 + t2); 
@@ -82,14 +161,44 @@ public class Retail {
     * @throws java.sql.SQLException when update failed
     */
    public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+      Connection conn = acquire ();
+      try{
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try{
+            // issues the update instruction
+            trace (sql, NO_PARAMS);
+            stmt.executeUpdate (sql);
+         }finally{
+            // close the instruction
+            stmt.close ();
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
+   }//end executeUpdate
 
-      // close the instruction
-      stmt.close ();
+   /**
+    * Method to execute a parameterized update SQL statement. The statement
+    * is prepared once per pooled connection and reused from its cache.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows affected
+    * @throws java.sql.SQLException when update failed
+    */
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      Connection conn = acquire ();
+      try{
+         PreparedStatement stmt = prepare (conn, sql, params);
+         try{
+            return stmt.executeUpdate ();
+         }finally{
+            done (stmt);
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
    }//end executeUpdate
 
    /**
@@ -102,38 +211,188 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and output them to standard out.
-      boolean outputHeader = true;
-      while (rs.next()){
-		 if(outputHeader){
-			for(int i = 1; i <= numCol; i++){
-			System.out.print(rsmd.getColumnName(i) + "\t");
-			}
-			System.out.println();
-			outputHeader = false;
-		 }
-         for (int i=1; i<=numCol; ++i)
-            System.out.print (rs.getString (i) + "\t");
-         System.out.println ();
-         ++rowCount;
-      }//end while
-      stmt.close ();
-      return rowCount;
-   }//end executeQuery
+      Connection conn = acquire ();
+      try{
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try{
+            // issues the query instruction
+            trace (query, NO_PARAMS);
+            return printResult (stmt.executeQuery (query));
+         }finally{
+            stmt.close ();
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a parameterized query and output the results to
+    * standard out.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      ResultRenderer table = new ResultRenderer ();
+      try{
+         return executeQueryAndStreamResult (query, table, params);
+      }finally{
+         finish (table);
+      }//end try
+   }//end executeQueryAndPrintResult
+
+   /**
+    * Method to execute a parameterized query and hand its rows one at a
+    * time to a callback. When a fetch size is set the rows are read through
+    * a cursor declared on the server, fetchSize rows per FETCH, so large
+    * results are never held in memory as a whole; the query must then be a
+    * plain SELECT, as DECLARE accepts no data-modifying statement.
+    *
+    * @param query the input query string with ? placeholders
+    * @param handler the callback receiving each row; returning false stops the scan
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows handed to the callback
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStreamResult (String query, RowHandler handler, Object... params) throws SQLException {
+      int fetchSize = this._fetchSize;
+      if (fetchSize <= 0)
+         return streamAll (query, handler, params);
+      Connection conn = acquire ();
+      try{
+         // the bundled driver cannot fetch in batches itself (its setFetchSize
+         // is not implemented), so the cursor is declared and read explicitly;
+         // it lives in a transaction, opened here unless the caller has begun one
+         boolean own = conn.getAutoCommit ();
+         if (own) conn.setAutoCommit (false);
+         String cursor = "retail_stream_" + this._cursors.incrementAndGet ();
+         trace (query, params);
+         PreparedStatement declare = conn.prepareStatement ("DECLARE " + cursor + " NO SCROLL CURSOR FOR " + query);
+         try{
+            bind (declare, params);
+            declare.execute ();
+         }finally{
+            declare.close ();
+         }//end try
+         Statement fetch = conn.createStatement ();
+         try{
+            int rowCount = 0;
+            boolean more = true;
+            while (more){
+               ResultSet rs = fetch.executeQuery ("FETCH FORWARD " + fetchSize + " FROM " + cursor);
+               int fetched = 0;
+               try{
+                  while (more && rs.next ()){
+                     ++fetched;
+                     ++rowCount;
+                     more = handler.handleRow (rs);
+                  }//end while
+               }finally{
+                  rs.close ();
+               }//end try
+               if (fetched < fetchSize) more = false;
+            }//end while
+            fetch.execute ("CLOSE " + cursor);
+            if (own) conn.commit ();
+            return rowCount;
+         }finally{
+            fetch.close ();
+         }//end try
+      }finally{
+         // rolls back and restores auto-commit when the cursor's own transaction failed
+         release (conn);
+      }//end try
+   }//end executeQueryAndStreamResult
+
+   // Streams the rows of a query read as one result.
+   private int streamAll (String query, RowHandler handler, Object[] params) throws SQLException {
+      Connection conn = acquire ();
+      try{
+         PreparedStatement stmt = prepare (conn, query, params);
+         try{
+            ResultSet rs = stmt.executeQuery ();
+            int rowCount = 0;
+            try{
+               while (rs.next ()){
+                  ++rowCount;
+                  if (!handler.handleRow (rs)) break;
+               }//end while
+            }finally{
+               rs.close ();
+            }//end try
+            return rowCount;
+         }finally{
+            done (stmt);
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
+   }//end streamAll
+
+   /**
+    * Method to check whether a parameterized query returns any row. The
+    * query is wrapped in EXISTS so the server stops at the first match and
+    * a single boolean travels back.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return true when the query has at least one row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      return Boolean.TRUE.equals (executeScalar ("SELECT EXISTS (" + query + ")", params));
+   }//end exists
+
+   /**
+    * Method to count the rows of a parameterized query on the server. Only
+    * the COUNT(*) result travels back, not the rows.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows the query returns
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int count (String query, Object... params) throws SQLException {
+      return ((Number) executeScalar ("SELECT COUNT(*) FROM (" + query + ") AS counted", params)).intValue ();
+   }//end count
+
+   /**
+    * Method to set how many rows executeQueryAndStreamResult fetches per
+    * round trip.
+    *
+    * @param fetchSize rows per fetch, 0 to read the whole result at once
+    */
+   public void setFetchSize (int fetchSize){
+      this._fetchSize = fetchSize;
+   }//end setFetchSize
+
+   public int getFetchSize (){
+      return this._fetchSize;
+   }//end getFetchSize
+
+   // Runs a parameterized query returning one row and returns its first column.
+   private Object executeScalar (String query, Object[] params) throws SQLException {
+      Connection conn = acquire ();
+      try{
+         PreparedStatement stmt = prepare (conn, query, params);
+         try{
+            ResultSet rs = stmt.executeQuery ();
+            try{
+               return rs.next () ? rs.getObject (1) : null;
+            }finally{
+               rs.close ();
+            }//end try
+         }finally{
+            done (stmt);
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
+   }//end executeScalar
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
@@ -145,31 +404,43 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
-
-      /*
-       ** obtains the metadata object for the returned result set.  The metadata
-       ** contains row and column info.
-       */
-      ResultSetMetaData rsmd = rs.getMetaData ();
-      int numCol = rsmd.getColumnCount ();
-      int rowCount = 0;
-
-      // iterates through the result set and saves the data returned by the query.
-      boolean outputHeader = false;
-      List<List<String>> result  = new ArrayList<List<String>>();
-      while (rs.next()){
-        List<String> record = new ArrayList<String>();
-		for (int i=1; i<=numCol; ++i)
-			record.add(rs.getString (i));
-        result.add(record);
-      }//end while
-      stmt.close ();
-      return result;
+      Connection conn = acquire ();
+      try{
+         // creates a statement object
+         Statement stmt = conn.createStatement ();
+         try{
+            // issues the query instruction
+            trace (query, NO_PARAMS);
+            return collectResult (stmt.executeQuery (query));
+         }finally{
+            stmt.close ();
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
+   }//end executeQueryAndReturnResult
+
+   /**
+    * Method to execute a parameterized query and return the results as a
+    * list of records.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the query result as a list of records
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      Connection conn = acquire ();
+      try{
+         PreparedStatement stmt = prepare (conn, query, params);
+         try{
+            return collectResult (stmt.executeQuery ());
+         }finally{
+            done (stmt);
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
    }//end executeQueryAndReturnResult
 
    /**
@@ -181,51 +452,417 @@ public class Retail {
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+       Connection conn = acquire ();
+       try{
+          // creates a statement object
+          Statement stmt = conn.createStatement ();
+          try{
+             // issues the query instruction
+             trace (query, NO_PARAMS);
+             return countRows (stmt.executeQuery (query));
+          }finally{
+             stmt.close ();
+          }//end try
+       }finally{
+          release (conn);
+       }//end try
+   }
 
-       // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+   /**
+    * Method to execute a parameterized query and return the number of
+    * results. Prefer exists() when only a non-zero result matters.
+    *
+    * @param query the input query string with ? placeholders
+    * @param params the values bound to the placeholders, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQuery (String query, Object... params) throws SQLException {
+      // the rows are counted by the server rather than fetched
+      return count (query, params);
+   }//end executeQuery
 
-       int rowCount = 0;
+   // Fetches sql from the statement cache of conn and binds params to it.
+   private PreparedStatement prepare (Connection conn, String sql, Object[] params) throws SQLException {
+      trace (sql, params);
+      PreparedStatement stmt = this._pool.prepare (conn, sql);
+      bind (stmt, params);
+      return stmt;
+   }//end prepare
+
+   private static final Object[] NO_PARAMS = new Object[0];
+
+   // Hands a statement about to run to the SQL log, when there is one.
+   private void trace (String sql, Object[] params) {
+      if (this._sqlLog != null)
+         this._sqlLog.record (sql, params);
+   }//end trace
+
+   // Binds params to the placeholders of stmt, in order.
+   private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else
+            stmt.setObject (i + 1, params[i]);
+      }
+   }//end bind
 
-       // iterates through the result set and count nuber of results.
-       while (rs.next()){
-          rowCount++;
-       }//end while
-       stmt.close ();
-       return rowCount;
-   }
+   /**
+    * Method to execute one parameterized statement for many rows of
+    * parameters, sent to the server as a single JDBC batch.
+    *
+    * @param sql the input SQL string with ? placeholders
+    * @param rows the parameters of each execution, in order
+    * @return the number of rows affected by each execution
+    * @throws java.sql.SQLException when the batch failed
+    */
+   public int[] executeBatch (String sql, List<Object[]> rows) throws SQLException {
+      if (rows.isEmpty ()) return new int[0];
+      trace (sql, rows.get (0));
+      Connection conn = acquire ();
+      try{
+         PreparedStatement stmt = this._pool.prepare (conn, sql);
+         try{
+            for (Object[] params : rows) {
+               bind (stmt, params);
+               stmt.addBatch ();
+            }
+            return stmt.executeBatch ();
+         }finally{
+            stmt.clearBatch ();
+            done (stmt);
+         }//end try
+      }finally{
+         release (conn);
+      }//end try
+   }//end executeBatch
 
    /**
-    * Method to fetch the last value from sequence. This
-    * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * Method to start a transaction on the current thread. Every execute
+    * method called by this thread runs in it until commit() or rollback().
     *
-    * @param sequence name of the DB sequence
-    * @return current value of a sequence
-    * @throws java.sql.SQLException when failed to execute the query
+    * @throws java.sql.SQLException when a transaction is already in progress
+    */
+   public void beginTransaction () throws SQLException {
+      if (this._transaction.get () != null)
+         throw new SQLException ("A transaction is already in progress");
+      Connection conn = this._pool.borrow ();
+      try{
+         conn.setAutoCommit (false);
+      }catch (SQLException e){
+         this._pool.invalidate (conn);
+         throw e;
+      }//end try
+      this._transaction.set (conn);
+   }//end beginTransaction
+
+   /**
+    * Method to tell whether the current thread has begun a transaction.
+    *
+    * @return true between beginTransaction and commit or rollback
     */
-   public int getCurrSeqVal(String sequence) throws SQLException {
-	Statement stmt = this._connection.createStatement ();
+   public boolean isInTransaction () {
+      return this._transaction.get () != null;
+   }//end isInTransaction
 
-	ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-	if (rs.next())
-		return rs.getInt(1);
-	return -1;
-   }
+   /**
+    * Method to commit the transaction of the current thread.
+    *
+    * @throws java.sql.SQLException when no transaction is in progress or the commit failed
+    */
+   public void commit () throws SQLException {
+      Connection conn = this._transaction.get ();
+      if (conn == null)
+         throw new SQLException ("No transaction in progress");
+      try{
+         conn.commit ();
+      }finally{
+         // a failed commit is rolled back when the pool resets the connection
+         this._transaction.remove ();
+         this._pool.release (conn);
+      }//end try
+   }//end commit
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to roll back the transaction of the current thread, if any.
     */
-   public void cleanup(){
+   public void rollback (){
+      Connection conn = this._transaction.get ();
+      if (conn == null) return;
       try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
+         conn.rollback ();
       }catch (SQLException e){
-         // ignored.
+         // ignored, the pool resets the connection anyway.
+      }finally{
+         this._transaction.remove ();
+         this._pool.release (conn);
+      }//end try
+   }//end rollback
+
+   // Returns the connection of the current transaction, or borrows one.
+   private Connection acquire () throws SQLException {
+      Connection conn = this._transaction.get ();
+      return conn != null ? conn : this._pool.borrow ();
+   }//end acquire
+
+   // Gives a connection back unless it belongs to the current transaction.
+   private void release (Connection conn) {
+      if (conn != this._transaction.get ())
+         this._pool.release (conn);
+   }//end release
+
+   // Cached statements stay open for the next caller; uncached ones are closed.
+   private void done (PreparedStatement stmt) throws SQLException {
+      if (!this._pool.isCached ())
+         stmt.close ();
+   }//end done
+
+   // Prints every row of rs to standard out, headed by the column names.
+   private static int printResult (ResultSet rs) throws SQLException {
+      ResultRenderer table = new ResultRenderer ();
+      try{
+         int rowCount = 0;
+
+         // iterates through the result set and output them to standard out.
+         while (rs.next()){
+            table.handleRow (rs);
+            ++rowCount;
+         }//end while
+         return rowCount;
+      }finally{
+         rs.close ();
+         finish (table);
+      }//end try
+   }//end printResult
+
+   // Writes out what a renderer still holds; a closed standard out is not an error of the query.
+   private static void finish (ResultRenderer table) {
+      try{
+         table.finish ();
+      }catch (IOException e){
+         System.err.println (e.getMessage ());
+      }//end try
+   }//end finish
+
+   // Reads one page of a listing, starting after the given sort key.
+   private interface PageSource {
+      Page read(Object[] after, int size, RowHandler sink) throws SQLException;
+   }//end PageSource
+
+   /**
+    * Method to print a listing page by page, letting the user move to the
+    * next or previous page. Only the sort keys of the pages already shown
+    * are kept, so going back re-reads the page by its starting key.
+    */
+   private static void browse(PageSource source) throws IOException, SQLException {
+      int size = Integer.getInteger("retail.pageSize", 20);
+      // starting keys of the pages before the current one
+      Deque<Object[]> starts = new ArrayDeque<Object[]>();
+      Object[] after = null;
+      while (true) {
+         ResultRenderer table = new ResultRenderer();
+         Page page = source.read(after, size, table);
+         table.finish();
+         if (page.rows == 0 && after == null) {
+            System.out.println("Nothing to show.");
+            return;
+         }
+         System.out.print((page.more ? "n: next page, " : "") + (starts.isEmpty() ? "" : "p: previous page, ") + "q: quit\n");
+         String choice = in.readLine();
+         if (choice == null) return;
+         choice = choice.trim();
+         if (choice.equals("n") && page.more) {
+            starts.push(after == null ? new Object[0] : after);
+            after = page.last;
+         } else if (choice.equals("p") && !starts.isEmpty()) {
+            Object[] previous = starts.pop();
+            after = previous.length == 0 ? null : previous;
+         } else if (choice.equals("q")) {
+            return;
+         }
+      }
+   }//end browse
+
+   // Copies every row of rs into a list of records.
+   private static List<List<String>> collectResult (ResultSet rs) throws SQLException {
+      try{
+         /*
+          ** obtains the metadata object for the returned result set.  The metadata
+          ** contains row and column info.
+          */
+         ResultSetMetaData rsmd = rs.getMetaData ();
+         int numCol = rsmd.getColumnCount ();
+
+         // iterates through the result set and saves the data returned by the query.
+         List<List<String>> result  = new ArrayList<List<String>>();
+         while (rs.next()){
+            List<String> record = new ArrayList<String>();
+            for (int i=1; i<=numCol; ++i)
+               record.add(rs.getString (i));
+            result.add(record);
+         }//end while
+         return result;
+      }finally{
+         rs.close ();
       }//end try
+   }//end collectResult
+
+   // Counts the rows of rs.
+   private static int countRows (ResultSet rs) throws SQLException {
+      try{
+         int rowCount = 0;
+
+         // iterates through the result set and count nuber of results.
+         while (rs.next()){
+            rowCount++;
+         }//end while
+         return rowCount;
+      }finally{
+         rs.close ();
+      }//end try
+   }//end countRows
+
+   /**
+    * Method to look up the cached role and managed stores of a user.
+    *
+    * @return the authorization cache of this Retail instance
+    */
+   public AuthorizationCache getAuthorizations(){
+      return this._authorizations;
+   }//end getAuthorizations
+
+   /**
+    * Method to look up stores by position without scanning the Store relation.
+    *
+    * @return the store index of this Retail instance
+    */
+   public StoreLocator getStoreLocator(){
+      return this._stores;
+   }//end getStoreLocator
+
+   /**
+    * Method to number new Orders rows without a round trip per row.
+    *
+    * @return the orderNumber allocator
+    */
+   public IdAllocator getOrderIds(){
+      return this._orderIds;
+   }//end getOrderIds
+
+   /**
+    * @return the ProductUpdates.updateNumber allocator
+    */
+   public IdAllocator getUpdateIds(){
+      return this._updateIds;
+   }//end getUpdateIds
+
+   /**
+    * @return the Users.userID allocator
+    */
+   public IdAllocator getUserIds(){
+      return this._userIds;
+   }//end getUserIds
+
+   /**
+    * @return the ProductSupplyRequests.requestNumber allocator
+    */
+   public IdAllocator getSupplyIds(){
+      return this._supplyIds;
+   }//end getSupplyIds
+
+   /**
+    * Method to remove users and products with the rows referring to them.
+    *
+    * @return the removal service of this Retail instance
+    */
+   public RemovalService getRemovals(){
+      return this._removals;
+   }//end getRemovals
+
+   /**
+    * Method to place orders without overselling.
+    *
+    * @return the order service of this Retail instance
+    */
+   public OrderService getOrderService(){
+      return this._orders;
+   }//end getOrderService
+
+   /**
+    * Method to find the customers with the most orders without grouping Orders.
+    *
+    * @return the popular customers tracker of this Retail instance
+    */
+   public PopularCustomers getPopularCustomers(){
+      return this._popularCustomers;
+   }//end getPopularCustomers
+
+   /**
+    * Method to show a customer's latest orders without querying Orders.
+    *
+    * @return the recent orders cache of this Retail instance
+    */
+   public RecentOrdersCache getRecentOrders(){
+      return this._recentOrders;
+   }//end getRecentOrders
+
+   /**
+    * Method to bind the stores of a manager without joining Store and Users.
+    *
+    * @return the manager scope resolver of this Retail instance
+    */
+   public ManagerScope getManagerScope(){
+      return this._managerScope;
+   }//end getManagerScope
+
+   /**
+    * Method to run menu operations without reading from the console.
+    *
+    * @return the operations of this Retail instance
+    */
+   public RetailOperations getOperations(){
+      return this._operations;
+   }//end getOperations
+
+   /**
+    * Method to open a connection of its own, for work that should not hold
+    * a pooled one, such as bulk loading.
+    *
+    * @return a new connection in auto-commit mode; the caller closes it
+    * @throws java.sql.SQLException when the connection cannot be opened
+    */
+   public Connection openConnection() throws SQLException {
+      return this._pool.openUnpooled ();
+   }//end openConnection
+
+   /**
+    * Method to report how busy the connection pool is.
+    *
+    * @return pool occupancy and wait-time statistics
+    */
+   public ConnectionPool.Stats getPoolStats(){
+      return this._pool.getStats ();
+   }//end getPoolStats
+
+   /**
+    * Method to report how often parameterized statements were reused.
+    *
+    * @return prepared statement cache hit, miss and eviction counts
+    */
+   public StatementCache.Stats getStatementCacheStats(){
+      return this._pool.getStatementCacheStats ();
+   }//end getStatementCacheStats
+
+   /**
+    * Method to close the pooled physical connections if they are open.
+    */
+   public void cleanup(){
+      this._managerScope.stop();
+      this._removals.stop();
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -236,12 +873,17 @@ public class Retail {
   
 	public static String uId;
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean batch = args.length >= 5 && args[3].equals ("-batch");
+      if (args.length != 3 && !batch) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [-batch <command file> [<results file>]]");
+         return;
+      }//end if
+      if (batch) {
+         runBatch (args);
          return;
       }//end if
       Greeting();
@@ -292,6 +934,9 @@ public class Retail {
 		System.out.println("13. Add A New Product (Admin only)");
 		System.out.println("14. Remove A User (Admin only)");
 		System.out.println("15. Remove A Product (Admin only)");
+		System.out.println("16. Place a Multi-Item Order");
+		System.out.println("17. Export Orders (Admin And Manager Only)");
+		System.out.println("18. Upsert Products from File (Admin And Manager Only)");
                 System.out.println(".........................");
                 System.out.println("20. Log out");
                 switch (readChoice()){
@@ -310,6 +955,9 @@ public class Retail {
 		   case 13: addProducts(esql); break;
 		   case 14: removeUsers(esql); break;
 		   case 15: removeProducts(esql); break;
+		   case 16: placeCartOrder(esql); break;
+		   case 17: exportOrders(esql); break;
+		   case 18: upsertProducts(esql); break;
 
 
 
@@ -335,6 +983,32 @@ public class Retail {
       }//end try
    }//end main
 
+   /**
+    * Runs the commands of a file through a BatchRunner instead of the menu.
+    * Lanes and group size come from the retail.batch.workers and
+    * retail.batch.groupSize properties.
+    *
+    * @param args dbname, port, user, -batch, command file and optional results file
+    */
+   private static void runBatch (String[] args) {
+      Retail esql = null;
+      try{
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         int workers = Integer.getInteger ("retail.batch.workers", 8);
+         // each lane holds a connection for its transactions
+         if (System.getProperty ("retail.pool.maxSize") == null)
+            System.setProperty ("retail.pool.maxSize", String.valueOf (Math.max (10, workers + 2)));
+         esql = new Retail (args[0], args[1], args[2], "");
+         String results = args.length > 5 ? args[5] : args[4] + ".results";
+         new BatchRunner (esql, workers, Integer.getInteger ("retail.batch.groupSize", 50)).run (args[4], results);
+         System.out.println ("Results written to " + results);
+      }catch (Exception e){
+         System.err.println (e.getMessage ());
+      }finally{
+         if (esql != null) esql.cleanup ();
+      }//end try
+   }//end runBatch
+
    public static void Greeting(){
       System.out.println(
          "\n\n*******************************************************\n" +
@@ -378,9 +1052,9 @@ public class Retail {
          
          String type="Customer";
 
-String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+         String query = "INSERT INTO USERS (userID, name, password, latitude, longitude, type) VALUES (?,?,?,?,?,?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, esql.getUserIds().next(), name, password, latitude, longitude, type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -399,18 +1073,11 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 	 
-	//Store user and password
-
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-	 
-	int userNum = esql.executeQuery(query);
-	 if (userNum > 0){
-		 //These extra operations are to extract userId to be used through out the whole program
-		  String query2 = String.format("SELECT userId FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-                List<List<String>> userInfo = esql.executeQueryAndReturnResult(query2);
-		List<String>  info = userInfo.get(0);
+	//Check user and password, and cache the user's role and stores for the session
+	Principal user = esql.getAuthorizations().login(name, password);
+	 if (user != null){
 		 //uId is global varible that contains the current's userId
-		  uId = info.get(0);	
+		  uId = String.valueOf(user.userId);
 		return name;
 	}
          return null;
@@ -424,10 +1091,17 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
 
    public static void viewStores(Retail esql) {
 	 try{
-	String query = String.format("SELECT s.storeID, s.name, calculate_distance(u.latitude, u.longitude, s.latitude, s.latitude) as dist FROM Users u, store s WHERE u.userId='%s' and calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) < 30",uId);
-
-	int q = esql.executeQueryAndPrintResult(query);
-	System.out.println("total row(s): " + q);
+	Principal user = esql.getAuthorizations().get(uId);
+	if (user == null){
+		System.out.println("Unauthorised user, return to main menu!");
+		return;
+	}
+	List<StoreLocator.Match> stores = esql.getOperations().viewStores(user);
+	if (!stores.isEmpty())
+		System.out.println("storeid\tname\tdist\t");
+	for (StoreLocator.Match m : stores)
+		System.out.println(m.store.storeId + "\t" + m.store.name + "\t" + m.distance + "\t");
+	System.out.println("total row(s): " + stores.size());
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return;
@@ -438,8 +1112,9 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
 	 try{
 	System.out.println("\tEnter store ID number: ");
 	String id = in.readLine();
-	String query = String.format("SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P WHERE P.storeID = '%s'", id);
-	int q = esql.executeQueryAndPrintResult(query);		
+	ResultRenderer table = new ResultRenderer();
+	esql.getOperations().viewProducts(Integer.parseInt(id.trim()), table);
+	table.finish();
          }catch(Exception e){
 		System.err.println (e.getMessage ());
 	return;
@@ -450,92 +1125,144 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
         //Get Store ID
 	System.out.println("\tEnter store ID number in your area:  \n\t");
         String storeId = in.readLine();
-	String query1 = String.format("SELECT * FROM STORE WHERE storeID = '%s' AND storeID IN", storeId);
-        String query2 = String.format("(SELECT s.storeID  FROM Users u, store s WHERE u.userId='%s' and calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) < 30)",uId);
-	query1 = query1 + query2;
-	int q = esql.executeQuery(query1);
+	Principal user = esql.getAuthorizations().get(uId);
+	if (user == null){
+		System.out.println("Unauthorised user, return to main menu!");
+		return;
+	}
+	StoreLocator stores = esql.getStoreLocator();
+	boolean found = stores.isWithin(storeId, user.latitude, user.longitude, NEARBY_RADIUS);
 	//If user pick a store not in his/her area, make he/she pick again!
-	while( q == 0)
+	while(!found)
 	{
 		System.out.println("\tYour selected store is not in your area, select another store in you area: \n\t");
 		storeId = in.readLine();
-		query1 = String.format("SELECT * FROM STORE WHERE storeID = '%s' AND storeID IN", storeId);
-        	query2 = String.format("(SELECT s.storeID  FROM Users u, store s WHERE u.userId='%s' and calculate_distance(u.latitude, u.longitude, s.latitude, s.longitude) < 30)",uId);
-        	query1 = query1 + query2;
-        	q = esql.executeQuery(query1);
+        	found = stores.isWithin(storeId, user.latitude, user.longitude, NEARBY_RADIUS);
 	}
-	//Get ProductName
+	//Get ProductName and numberOfUnits
 	System.out.println("\tEnter product's name: \n\t");
 	String productName = in.readLine();
-	query1 = String.format("SELECT * FROM Product P WHERE P.storeID = '%s' AND P.productName = '%s'", storeId, productName);
-	q = esql.executeQuery(query1);
-	//If product does not exist, make he/she pick again!
-	while(q == 0)
-	{
-		System.out.println("\tYour selected product does not exist, pick another product: \n\t");
-		productName = in.readLine();
-		q = esql.executeQuery(query1);
-	}
-	//Get numberOfUnits
 	System.out.println("\tEnter the amount: \n\t");
 	String amount = in.readLine();
-	query1 = String.format("SELECT * FROM Product P WHERE P.storeID = '%s' AND P.productName = '%s' AND P.numberOfUnits >= '%s'", storeId, productName, amount);
-	//query2 = String.format("SELECT * FROM Product P WHERE P.storeID = '%s' AND P.productName = '%s' AND P.numberOfUnits >= '%s'", storeId, productName, amount);
-	q = esql.executeQuery(query1);
-	//q = esql.executeQueryAndPrintResult(query2);
-	//If amount exceed in-stock amount, make he/she enter a new amount
-	while(q == 0)
-	{	
-		System.out.println("\tYour selected amount exceeded our in-stock amount, please enter a new amount: \n\t");
-		amount = in.readLine();
-		query1 = String.format("SELECT * FROM Product P WHERE P.storeID = '%s' AND P.productName = '%s' AND P.numberOfUnits >= '%s'", storeId, productName, amount);
-		q = esql.executeQuery(query1);
+	//Take the stock and record the order in one statement; nothing is
+	//written unless enough units are left
+	OrderService.Result result = esql.getOrderService().placeOrder(uId, storeId, productName, amount);
+	while(!result.isPlaced())
+	{
+		switch (result.status){
+		//If product does not exist, make he/she pick again!
+		case NO_SUCH_PRODUCT:
+			System.out.println("\tYour selected product does not exist, pick another product: \n\t");
+			productName = in.readLine();
+			break;
+		//If amount exceed in-stock amount, make he/she enter a new amount
+		case INSUFFICIENT_STOCK:
+			System.out.println("\tYour selected amount exceeded our in-stock amount, please enter a new amount: \n\t");
+			amount = in.readLine();
+			break;
+		default:
+			System.out.println("\tPlease enter a positive whole number of units: \n\t");
+			amount = in.readLine();
+			break;
+		}
+		result = esql.getOrderService().placeOrder(uId, storeId, productName, amount);
 	}
-	System.out.println("\tCompleting your orders... Succeed!");
-	//Input order into order relation
-	query2 = String.format("INSERT INTO Orders(customerID,storeID,productName,unitsOrdered,orderTime) VALUES('%s','%s','%s','%s',NOW())",uId,storeId,productName,amount);
-	esql.executeUpdate(query2);
-	//Update products relationn
-	 query2 = String.format("UPDATE Product SET numberOfUnits = numberOfUnits - '%s' WHERE storeID = '%s' AND productName = '%s'", amount, storeId, productName);
-	 esql.executeUpdate(query2);
+	System.out.println("\tCompleting your orders... Succeed! Order number: " + result.orderNumber);
          }catch(Exception e){
                 System.err.println (e.getMessage ());
         return;
         }
 	
+}
+   public static void placeCartOrder(Retail esql) {
+	try{
+	Principal user = esql.getAuthorizations().get(uId);
+	if (user == null){
+		System.out.println("Unauthorised user, return to main menu!");
+		return;
+	}
+	//Get Store ID
+	System.out.println("\tEnter store ID number in your area:  \n\t");
+	String storeId = in.readLine();
+	StoreLocator stores = esql.getStoreLocator();
+	//If user pick a store not in his/her area, make he/she pick again!
+	while(!stores.isWithin(storeId, user.latitude, user.longitude, NEARBY_RADIUS))
+	{
+		System.out.println("\tYour selected store is not in your area, select another store in you area: \n\t");
+		storeId = in.readLine();
+	}
+	//Fill the cart until an empty product name
+	Map<String, Integer> cart = new LinkedHashMap<String, Integer>();
+	while(true)
+	{
+		System.out.println("\tEnter product's name (leave empty to check out): \n\t");
+		String productName = in.readLine().trim();
+		if (productName.isEmpty()) break;
+		Integer before = cart.get(productName);
+		cart.put(productName, readAmount() + (before == null ? 0 : before));
+	}
+	//Check out the whole cart; fix the refused item until it goes through
+	OrderService orders = esql.getOrderService();
+	int store = Integer.parseInt(storeId.trim());
+	while(!cart.isEmpty())
+	{
+		OrderService.CheckoutResult result = orders.checkout(user.userId, store, cart);
+		if (result.isPlaced()){
+			System.out.println("\tCompleting your orders... Succeed! Order number: " + result.orderHeaderID);
+			return;
+		}
+		if (result.status == OrderService.Status.NO_SUCH_PRODUCT){
+			System.out.println("\t" + result.productName + " does not exist, it was removed from your cart");
+			cart.remove(result.productName);
+		}else{
+			System.out.println("\tThe amount of " + result.productName + " exceeded our in-stock amount, please enter a new amount (0 to remove it): \n\t");
+			int amount = readAmount();
+			if (amount == 0)
+				cart.remove(result.productName);
+			else
+				cart.put(result.productName, amount);
+		}
+	}
+	System.out.println("\tYour cart is empty, nothing was ordered");
+	}catch(Exception e){
+		System.err.println (e.getMessage ());
+	return;
+	}
+}
+
+   // Reads a number of units, asking again until it is a whole number >= 0.
+   private static int readAmount() throws IOException {
+	System.out.println("\tEnter the amount: \n\t");
+	while(true)
+	{
+		try{
+			int amount = Integer.parseInt(in.readLine().trim());
+			if (amount >= 0) return amount;
+		}catch (NumberFormatException e){
+			// asked again below
+		}
+		System.out.println("\tPlease enter a positive whole number of units: \n\t");
+	}
 }
    public static void viewRecentOrders(Retail esql) {
    try{
       //Check if user is a customer
-       String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'customer'",uId );
-       int q = esql.executeQuery(query);
-       //If user is a customer, show 5 most recent orders
-       if( q == 1){
-       		System.out.println("View 5 most recent orders: ");
-       		query = String.format("SELECT O.storeID as ID, S.name as SName,O.productName, O.unitsOrdered as Number, O.orderTime as Date FROM Orders O,Store S WHERE O.storeID = S.storeID AND customerID = '%s' ORDER BY orderTime DESC LIMIT 5", uId);
-       		q = esql.executeQueryAndPrintResult(query);
-       		return;
+       Principal user = esql.getAuthorizations().get(uId);
+       if (user == null){
+		System.out.println("Unauthorised user, return to main menu!");
+		return;
        }
-	
-	//Check If user is a manager, show most 5 recent orders of his/her stores
-       query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'manager'",uId );
-       q = esql.executeQuery(query);
-       //If user is an admin, show 5 most recent orders from her stores
-       if( q == 1){ // Confirm that user is a manager
+       //Customers see their own orders, managers the orders of their
+       //stores and admins every order
+       if( user.isCustomer())
+       		System.out.println("View 5 most recent orders: ");
+       else if( user.isManager())
        		System.out.println("Hello manager!");
-		query = String.format("SELECT DISTINCT O.orderNumber as orderID, U.name as customer_name, O.storeID, O.productName, O.orderTime as date FROM Orders O, Users U WHERE O.customerID = U.userID AND O.storeID IN (SELECT S.storeID FROM  Store S, Users U WHERE S.managerID = U.userID AND U.userID = '%s') ORDER by O.orderTime DESC LIMIT 5", uId);
-		q = esql.executeQueryAndPrintResult(query);
-       		return;
-       }
-	//Check if user is an admin, show most 5 recent orders from orders relation
-       query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-       q = esql.executeQuery(query);
-	if( q == 1){ // Confirm that user is an admin
+       else if( user.isAdmin())
                 System.out.println("Hello admin!");
-                query = "SELECT DISTINCT O.orderNumber as orderID, U.name as customer_name, O.storeID, O.productName, O.orderTime as date FROM Orders O, Users U WHERE O.customerID = U.userID ORDER by O.orderTime DESC LIMIT 5";
-                q = esql.executeQueryAndPrintResult(query);
-                return;
-       }
+       ResultRenderer table = new ResultRenderer();
+       esql.getOperations().viewRecentOrders(user, table);
+       table.finish();
 
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -545,45 +1272,44 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
    public static void updateProduct(Retail esql){               
   try{
         //Check if a user is a customer or an admin or a manager
-        String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'customer'",uId );
-        int q = esql.executeQuery(query);
-	if( q == 1){ //User is a customer, return to main menu
+        Principal user = esql.getAuthorizations().get(uId);
+        String query;
+        boolean found;
+	if( user == null || user.isCustomer()){ //User is a customer, return to main menu
 		System.out.println("Unauthorised user, return to main menu!");
 		return;
 	}
 	//User is either an admin or a manager
 	//Check if a user is an admin
-	query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-	q = esql.executeQuery(query);
-	if(q == 1 ){
+	if(user.isAdmin()){
 	//Functionality of admin
 	//Admin should be able to update any product
 	System.out.println("Welcome admin, select a storeID: ");
 	String storeId = in.readLine();
-	query = String.format("SELECT * from Store S WHERE S.storeID = '%s'", storeId);
-        q = esql.executeQuery(query);
+	query = "SELECT * from Store S WHERE S.storeID = ?";
+        found = esql.exists(query, storeId);
 	//Check if a selected store exists, if not, keep looping until store
-	while( q == 0)
+	while(!found)
 {
 	System.out.println("Selected Store does not exists, select a valid storeID: ");
 	storeId = in.readLine();
 
-	query = String.format("SELECT * from Store S WHERE S.storeID = '%s'", storeId);
-        q = esql.executeQuery(query);	
+	query = "SELECT * from Store S WHERE S.storeID = ?";
+        found = esql.exists(query, storeId);	
 }	
 //Get product information
 	System.out.println("Select the product that you want to update: ");
         String productName = in.readLine();
-	query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
+	query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
        //Check if the selected product exist
-        q = esql.executeQuery(query);
+        found = esql.exists(query, storeId, productName);
        //If not exists, keep looping until get a valid product name
-	 while(q == 0)
+	 while(!found)
  {
         System.out.println("Your selected product does not exists, select another product: ");
         productName = in.readLine();
-        query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
-        q = esql.executeQuery(query);
+        query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+        found = esql.exists(query, storeId, productName);
 }
 
 	System.out.println("\tEnter a new number of available unit: ");
@@ -593,44 +1319,33 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
         String pricePerUnit = in.readLine();
 
         System.out.println(" Successful!");
-	//Update the new information into the product relation
-	query = String.format("UPDATE Product SET numberOfUnits = '%s', pricePerUnit = '%s' WHERE storeID = '%s' AND productName = '%s'", numberOfUnits, pricePerUnit, storeId, productName);
-        esql.executeUpdate(query);
-	//Update the new update information into the ProductUpdates relation
-	query = String.format("INSERT INTO ProductUpdates( managerID,storeID,productName,updatedOn) VALUES('%s','%s','%s',NOW())", uId, storeId, productName );
-        esql.executeUpdate(query);
+	//Update the product and record the update in ProductUpdates
+	esql.getOperations().updateProduct(user, Integer.parseInt(storeId.trim()), productName,
+		Integer.parseInt(numberOfUnits.trim()), Double.parseDouble(pricePerUnit.trim()));
 	}//End functionality of admin
 	else{ //Start functionality of the manager
 	System.out.println("Enter a store ID: ");
 	String storeId = in.readLine();
 	//Check if the this manager manages the store
-	query = String.format("SELECT * FROM STORE WHERE storeID = '%s' AND managerID = '%s'", storeId,uId);
-	//q = esql.executeQueryAndPrintResult(query);
-	q = esql.executeQuery(query);
 	//Keep looping until the user enter a valid storeId
-	while( q == 0)
+	while( !user.managesStore(storeId))
 {
 	System.out.println("Sorry you'are not managing this store, select another store: ");
 	storeId = in.readLine();	
-	query = String.format("SELECT * FROM STORE WHERE storeID = '%s' AND managerID = '%s'", storeId,uId);
- 
-       //q = esql.executeQueryAndPrintResult(query);
-        q = esql.executeQuery(query);
-
 }
 	System.out.println("You are managing this store!");
 	System.out.println("Select the product that you want to update: ");
 	String productName = in.readLine();
 	//Check if the product exists in the store;
-	query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
+	query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
 	//q = esql.executeQueryAndPrintResult(query);
-	q = esql.executeQuery(query);
-	while(q == 0) //Product is not inside the store, loop until get the valid product
+	found = esql.exists(query, storeId, productName);
+	while(!found) //Product is not inside the store, loop until get the valid product
 {
 	System.out.println("Your selected product does not exists, select another product: ");
 	productName = in.readLine();
-	query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
-	q = esql.executeQuery(query);	
+	query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+	found = esql.exists(query, storeId, productName);	
 }	
 	//Get the numberOfUnits and pricePerUnit 
 	System.out.println("\tEnter a new number of available unit: ");
@@ -640,12 +1355,9 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
 	String pricePerUnit = in.readLine();
 
 	System.out.println(" Successful!");
-	//Update the new information into the product relation
-	query = String.format("UPDATE Product SET numberOfUnits = '%s', pricePerUnit = '%s' WHERE storeID = '%s' AND productName = '%s'", numberOfUnits, pricePerUnit, storeId, productName);
-	esql.executeUpdate(query);
-	//Update the new update information into the ProductUpdates relation
-	query = String.format("INSERT INTO ProductUpdates( managerID,storeID,productName,updatedOn) VALUES('%s','%s','%s',NOW())", uId, storeId, productName );
-	esql.executeUpdate(query);
+	//Update the product and record the update in ProductUpdates
+	esql.getOperations().updateProduct(user, Integer.parseInt(storeId.trim()), productName,
+		Integer.parseInt(numberOfUnits.trim()), Double.parseDouble(pricePerUnit.trim()));
 	}//End functionality of manager
       }catch(Exception e){
                 System.err.println (e.getMessage ());
@@ -655,25 +1367,15 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
    public static void viewRecentUpdates(Retail esql) {
       try{
         //Check if a user is a customer or an admin or a manager
-        String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'customer'",uId );
-        int q = esql.executeQuery(query);
-	if( q == 1){ //User is a customer, return to main menu
+        Principal user = esql.getAuthorizations().get(uId);
+	if( user == null || user.isCustomer()){ //User is a customer, return to main menu
 		System.out.println("Unauthorised user, return to main menu!");
 		return;
 	}
 	//User is either an admin or a manager
-	//Check if a user is an admin
-	query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-	q = esql.executeQuery(query);
-	if(q == 1 ){
-	//Functionality of admin
-	 query = String.format("SELECT * FROM ProductUpdates ORDER BY updatedOn desc LIMIT 5");
-	 q = esql.executeQueryAndPrintResult(query);
-	}
-	else{
-      query = String.format("SELECT updateNumber, storeID, productName, updatedOn from ProductUpdates where storeID IN (SELECT S.storeID FROM  Store S, Users U WHERE S.managerID = U.userID AND U.userID = '%s') order by updatedOn DESC LIMIT 5", uId);
-      q = esql.executeQueryAndPrintResult(query);
-      }
+	ResultRenderer table = new ResultRenderer();
+	esql.getOperations().viewRecentUpdates(user, table);
+	table.finish();
       }
        catch(Exception e) {
          System.err.println (e.getMessage ());
@@ -683,25 +1385,15 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
    public static void viewPopularProducts(Retail esql) {
        try{
         //Check if a user is a customer or an admin or a manager
-        String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'customer'",uId );
-        int q = esql.executeQuery(query);
-	if( q == 1){ //User is a customer, return to main menu
+        Principal user = esql.getAuthorizations().get(uId);
+	if( user == null || user.isCustomer()){ //User is a customer, return to main menu
 		System.out.println("Unauthorised user, return to main menu!");
 		return;
 	}
 	//User is either an admin or a manager
-	//Check if a user is an admin
-	query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-	q = esql.executeQuery(query);
-	if(q == 1 ){
-	//Functionality of admin
-	  query = String.format("SELECT O.productName, Count(*) as countOfOrders from Orders O  GROUP BY O.productName Order By countOfOrders desc limit 5 ");
-      q = esql.executeQueryAndPrintResult(query);
-	}
-	else{ //Functionality of manager
-   query = String.format("SELECT O.productName, Count(*) as countOfOrders from Orders O WHERE O.storeID IN(SELECT S.storeID FROM  Store S, Users U WHERE S.managerID = U.userID AND U.userID = '%s') GROUP BY O.productName Order By countOfOrders desc limit 5 ", uId);
-      q = esql.executeQueryAndPrintResult(query);
-   }
+	ResultRenderer table = new ResultRenderer();
+	esql.getOperations().viewPopularProducts(user, table);
+	table.finish();
    }
     catch(Exception e) {
          System.err.println (e.getMessage ());
@@ -713,26 +1405,15 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
    public static void viewPopularCustomers(Retail esql) {
       try{
         //Check if a user is a customer or an admin or a manager
-        String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'customer'",uId );
-        int q = esql.executeQuery(query);
-	if( q == 1){ //User is a customer, return to main menu
+        Principal user = esql.getAuthorizations().get(uId);
+	if( user == null || user.isCustomer()){ //User is a customer, return to main menu
 		System.out.println("Unauthorised user, return to main menu!");
 		return;
 	}
 	//User is either an admin or a manager
-	//Check if a user is an admin
-	query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-	q = esql.executeQuery(query);
-	if(q == 1 ){
-	//Functionality of admin
-	 query = String.format("Select O.storeID , O.customerID, U.name , Count(*) as NumberofOrders From Orders O, Users U where U.userID = O.customerID GROUP BY O.storeID, O.customerID, U.name ORDER BY COUNT(*) desc LIMIT 5");
- 	q = esql.executeQueryAndPrintResult(query);
-	}
-	else{ //Functionality of manager
-   
-   	query = String.format("Select O.storeID , O.customerID, U.name , Count(*) as NumberofOrders From Orders O, Users U where U.userID = O.customerID AND O.storeID IN (SELECT S.storeID FROM  Store S, Users U WHERE S.managerID = U.userID AND U.userID = '%s') GROUP BY O.storeID, O.customerID, U.name ORDER BY COUNT(*) desc LIMIT 5", uId);
-   q = esql.executeQueryAndPrintResult(query);
-   }
+	ResultRenderer table = new ResultRenderer();
+	esql.getOperations().viewPopularCustomers(user, table);
+	table.finish();
    }
     catch(Exception e) {
          System.err.println (e.getMessage ());
@@ -745,45 +1426,44 @@ String query = String.format("INSERT INTO USERS (name, password, latitude, longi
     public static void placeProductSupplyRequests(Retail esql) {
       
 try{
-	String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'customer'",uId );
-	int q = esql.executeQuery(query);
-        if(q == 1 ){
+	Principal user = esql.getAuthorizations().get(uId);
+	String query;
+	boolean found;
+        if(user == null || user.isCustomer()){
 		System.out.println("Unauthorised user, return to main menu!");
 		return;
 	}
        //User is either an admin or a manager
 	//Check if a user is an admin
-	 query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-         q = esql.executeQuery(query);
-	if(q == 1 ){
+	if(user.isAdmin()){
 	//Functionality of admin
 	//Admin should be able to update any product
 	System.out.println("Welcome admin, select a storeID: ");
 	String storeId = in.readLine();
-	query = String.format("SELECT * from Store S WHERE S.storeID = '%s'", storeId);
-        q = esql.executeQuery(query);
+	query = "SELECT * from Store S WHERE S.storeID = ?";
+        found = esql.exists(query, storeId);
 	//Check if a selected store exists, if not, keep looping until store
-	while( q == 0)
+	while(!found)
 {
 	System.out.println("Selected Store does not exists, select a valid storeID: ");
 	storeId = in.readLine();
 
-	query = String.format("SELECT * from Store S WHERE S.storeID = '%s'", storeId);
-        q = esql.executeQuery(query);	
+	query = "SELECT * from Store S WHERE S.storeID = ?";
+        found = esql.exists(query, storeId);	
 }	
 //Get product information
 	System.out.println("Select the product that you want to update: ");
         String productName = in.readLine();
-	query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
+	query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
        //Check if the selected product exist
-        q = esql.executeQuery(query);
+        found = esql.exists(query, storeId, productName);
        //If not exists, keep looping until get a valid product name
-	 while(q == 0)
+	 while(!found)
  {
         System.out.println("Your selected product does not exists, select another product: ");
         productName = in.readLine();
-        query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
-        q = esql.executeQuery(query);
+        query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+        found = esql.exists(query, storeId, productName);
 }
 
 	System.out.println("\tEnter how many you want to order:  ");
@@ -793,14 +1473,9 @@ try{
         String warehouseID = in.readLine();
 
         System.out.println(" Successful!");
-	//Update the new information into the product relation
-   	query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + '%s' WHERE storeID = '%s' AND productName = '%s'", numberOfUnits, storeId, productName);        
-	esql.executeUpdate(query);
-	//Update the new update information into the ProductUpdates relation
-	query = String.format("INSERT INTO ProductUpdates( managerID,storeID,productName,updatedOn) VALUES('%s','%s','%s',NOW())", uId, storeId, productName );
-        esql.executeUpdate(query);
-	query = String.format("INSERT INTO ProductSupplyRequests( managerID,warehouseID,storeID,productName,unitsRequested) VALUES('%s','%s','%s','%s','%s')", uId, warehouseID,storeId, productName, numberOfUnits );
-        esql.executeUpdate(query);
+	//Restock the product and record the update and the supply request
+	esql.getOperations().placeSupplyRequest(user, Integer.parseInt(storeId.trim()), productName,
+		Integer.parseInt(numberOfUnits.trim()), Integer.parseInt(warehouseID.trim()));
 
 	}//End functionality of admin
 
@@ -808,33 +1483,25 @@ try{
 	System.out.println("Enter a store ID: ");
 	String storeId = in.readLine();
 	//Check if the this manager manages the store
-	query = String.format("SELECT * FROM STORE WHERE storeID = '%s' AND managerID = '%s'", storeId,uId);
-	//q = esql.executeQueryAndPrintResult(query);
-	q = esql.executeQuery(query);
 	//Keep looping until the user enter a valid storeId
-	while( q == 0)
+	while( !user.managesStore(storeId))
 {
 	System.out.println("Sorry you'are not managing this store, select another store: ");
 	storeId = in.readLine();	
-	query = String.format("SELECT * FROM STORE WHERE storeID = '%s' AND managerID = '%s'", storeId,uId);
- 
-       //q = esql.executeQueryAndPrintResult(query);
-        q = esql.executeQuery(query);
-
 }
 	System.out.println("You are managing this store!");
 	System.out.println("Select the product that you want to update: ");
 	String productName = in.readLine();
 	//Check if the product exists in the store;
-	query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
+	query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
 	//q = esql.executeQueryAndPrintResult(query);
-	q = esql.executeQuery(query);
-	while(q == 0) //Product is not inside the store, loop until get the valid product
+	found = esql.exists(query, storeId, productName);
+	while(!found) //Product is not inside the store, loop until get the valid product
 {
 	System.out.println("Your selected product does not exists, select another product: ");
 	productName = in.readLine();
-	query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'", storeId, productName);
-	q = esql.executeQuery(query);	
+	query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+	found = esql.exists(query, storeId, productName);	
 }	
 	//Get the numberOfUnits and pricePerUnit 
 	System.out.println("\tHow many units would you like to order: ");
@@ -844,14 +1511,9 @@ try{
 	String warehouseID = in.readLine();
 
 	System.out.println(" Successful!");
-	//Update the new information into the product relation
-   query = String.format("UPDATE Product SET numberOfUnits = numberOfUnits + '%s' WHERE storeID = '%s' AND productName = '%s'", numberOfUnits, storeId, productName);
-   esql.executeUpdate(query);
-	//Update the new update information into the ProductUpdates relation
-	query = String.format("INSERT INTO ProductUpdates( managerID,storeID,productName, updatedOn) VALUES('%s','%s','%s',NOW())", uId, storeId, productName );
-	esql.executeUpdate(query);
-	query = String.format("INSERT INTO ProductSupplyRequests( managerID,warehouseID,storeID,productName,unitsRequested) VALUES('%s','%s','%s','%s','%s')", uId, warehouseID,storeId, productName, numberOfUnits );
-        esql.executeUpdate(query);
+	//Restock the product and record the update and the supply request
+	esql.getOperations().placeSupplyRequest(user, Integer.parseInt(storeId.trim()), productName,
+		Integer.parseInt(numberOfUnits.trim()), Integer.parseInt(warehouseID.trim()));
 
 }
 	}catch(Exception e){
@@ -863,22 +1525,62 @@ try{
 
 
 
-public static void viewOrders(Retail esql){
+public static void viewOrders(final Retail esql){
 	try{
-	String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'", uId);
-	int q = esql.executeQuery(query);
-	if(q == 1){
-		query = "SELECT * FROM Orders";
-		q = esql.executeQueryAndPrintResult(query);
+	final Principal user = esql.getAuthorizations().get(uId);
+	if(user != null && (user.isAdmin() || user.isManager())){
+		final OrderFilter filter = readOrderFilter();
+		browse(new PageSource(){
+			public Page read(Object[] after, int size, RowHandler sink) throws SQLException {
+				return esql.getOperations().viewOrders(user, filter, after, size, sink);
+			}
+		});
+		return;
+	}	
+	System.out.println("Unauthorised user, return to main menu!");
+	return;
+	}catch(Exception e){
+		System.err.println(e.getMessage());
 		return;
 	}
-	query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'manager'", uId);
-	q = esql.executeQuery(query);
-	if(q == 1){
-		query = String.format("SELECT DISTINCT O.orderNumber as orderID, U.name as customer_name, O.storeID, O.productName, O.orderTime as date FROM Orders O,Users U WHERE O.customerID = U.userID AND O.storeID in (SELECT S.storeID FROM  Store S, Users U WHERE S.managerID = U.userID AND U.userID = '%s') ORDER BY O.orderTime DESC", uId);
-		q = esql.executeQueryAndPrintResult(query);
+};
+
+
+
+   //Optional order filters, blank answers do not filter
+   private static OrderFilter readOrderFilter() throws IOException {
+	System.out.println("Filter by store ID (blank for all): ");
+	String storeId = in.readLine().trim();
+	System.out.println("Filter by customer ID (blank for all): ");
+	String customerId = in.readLine().trim();
+	System.out.println("Orders from (e.g. 2023-01-31, blank for no limit): ");
+	String from = in.readLine().trim();
+	System.out.println("Orders before (blank for no limit): ");
+	String to = in.readLine().trim();
+	return new OrderFilter(
+		storeId.isEmpty() ? null : Integer.valueOf(storeId),
+		customerId.isEmpty() ? null : Integer.valueOf(customerId),
+		from.isEmpty() ? null : from, to.isEmpty() ? null : to);
+   }
+
+   public static void exportOrders(Retail esql){
+	try{
+	Principal user = esql.getAuthorizations().get(uId);
+	if(user != null && (user.isAdmin() || user.isManager())){
+		OrderFilter filter = readOrderFilter();
+		System.out.println("Export to file (.csv, or .jsonl for JSON Lines): ");
+		String file = in.readLine().trim();
+		long start = System.currentTimeMillis();
+		ResultExporter export = ResultExporter.open(file);
+		int rows;
+		try{
+			rows = esql.getOperations().exportOrders(user, filter, export);
+		}finally{
+			export.close();
+		}
+		System.out.println(rows + " order(s) exported in " + (System.currentTimeMillis() - start) + " ms");
 		return;
-	}	
+	}
 	System.out.println("Unauthorised user, return to main menu!");
 	return;
 	}catch(Exception e){
@@ -889,14 +1591,16 @@ public static void viewOrders(Retail esql){
 
 
 
-   public static void viewUsers(Retail esql){
+   public static void viewUsers(final Retail esql){
 	 try{
         //Check if user is an admin or not
-	String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );	
-        int q = esql.executeQuery(query);
-	if(q == 1){//User is an admin
-		 query = "Select * FROM Users";
-		q = esql.executeQueryAndPrintResult(query);
+	final Principal user = esql.getAuthorizations().get(uId);
+	if(user != null && user.isAdmin()){//User is an admin
+		browse(new PageSource(){
+			public Page read(Object[] after, int size, RowHandler sink) throws SQLException {
+				return esql.getOperations().viewUsers(user, after, size, sink);
+			}
+		});
 		return;
 	}else{
 		System.out.println("Unauthorised user, return to main menu!");
@@ -910,9 +1614,8 @@ public static void viewOrders(Retail esql){
    public static void addUsers(Retail esql){
         try{
         //Check if user is an admin or not
-	String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-        int q = esql.executeQuery(query);
-        if(q == 1){//User is an admin
+	Principal user = esql.getAuthorizations().get(uId);
+        if(user != null && user.isAdmin()){//User is an admin
                 //Enter user ID or name
                 System.out.println("Enter new user's name/ID: ");
 		String name = in.readLine();
@@ -940,9 +1643,9 @@ public static void viewOrders(Retail esql){
                 }
 		System.out.println("Select the user's type (admin,customer,manager): ");
 		String type = in.readLine();
-		query = String.format("INSERT INTO Users(name,password,latitude,longitude,type) VALUES('%s','%s','%s','%s','%s')",name,password,latitude,longitude,type);
+		esql.getOperations().addUser(user, name, password, Double.parseDouble(latitude.trim()),
+			Double.parseDouble(longitude.trim()), type);
 		System.out.println("Successful!!");
-		esql.executeUpdate(query);		
                 return;
         }else{
                 System.out.println("Unauthorised user, return to main menu!");
@@ -954,25 +1657,48 @@ public static void viewOrders(Retail esql){
         }
 
 };
+   public static void upsertProducts(Retail esql){
+	try{
+	Principal user = esql.getAuthorizations().get(uId);
+	if(user != null && (user.isAdmin() || user.isManager())){
+		System.out.println("Enter a CSV file of storeID,productName,numberOfUnits,pricePerUnit: ");
+		String file = in.readLine().trim();
+		Reader products = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try{
+			System.out.println(esql.getOperations().upsertProducts(user, products));
+		}finally{
+			products.close();
+		}
+		return;
+	}
+	System.out.println("Unauthorised user, return to main menu!");
+	return;
+	}catch(Exception e){
+		System.err.println(e.getMessage());
+		return;
+	}
+};
+
    public static void addProducts(Retail esql){
 	 try{
         //Check if user is an admin or not
-	String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-        int q = esql.executeQuery(query);
-	 if(q == 1){//User is an admin
+	Principal user = esql.getAuthorizations().get(uId);
+	String query;
+	boolean found;
+	 if(user != null && user.isAdmin()){//User is an admin
 		System.out.println("Select a storeID: ");
 		String storeId = in.readLine();
 		//Check if storeID exists
-		query = String.format("SELECT * from Store S WHERE S.storeID = '%s'", storeId);
-        	q = esql.executeQuery(query);
+		query = "SELECT * from Store S WHERE S.storeID = ?";
+        	found = esql.exists(query, storeId);
 	        //If not, ask admin to enter a new storeId
-		 while( q == 0)
+		 while(!found)
 {
         System.out.println("Selected Store does not exists, select a valid storeID: ");
         storeId = in.readLine();
 
-        query = String.format("SELECT * from Store S WHERE S.storeID = '%s'", storeId);
-        q = esql.executeQuery(query);
+        query = "SELECT * from Store S WHERE S.storeID = ?";
+        found = esql.exists(query, storeId);
 }
 	System.out.println("Enter product name: ");
 	String productName = in.readLine();
@@ -988,8 +1714,8 @@ public static void viewOrders(Retail esql){
 		System.out.println("Invalid input, enter a new number of price: ");
 		price = in.readLine();
 	}	
-	query = String.format("INSERT INTO Product(storeID, productName, numberOfUnits, pricePerUnit) VALUES('%s','%s','%s','%s')", storeId,productName,numberOfUnits,price);
-	esql.executeUpdate(query);
+	esql.getOperations().addProduct(user, Integer.parseInt(storeId.trim()), productName,
+		Integer.parseInt(numberOfUnits.trim()), Double.parseDouble(price.trim()));
 	System.out.println("Successful!!");
                 return;
         }else{
@@ -1004,24 +1730,28 @@ public static void viewOrders(Retail esql){
 };
    public static void removeUsers(Retail esql){
 	   try{
-    String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-        int q = esql.executeQuery(query);
-        if( q == 1){
+    Principal user = esql.getAuthorizations().get(uId);
+    String query;
+    boolean found;
+        if( user != null && user.isAdmin()){
                 System.out.println("Select a userID to be removed: ");
                 String id = in.readLine();
 
-                query = String.format("SELECT * FROM USERS WHERE userID = '%s'", id);
-                q = esql.executeQuery(query);
-                while(q == 0){
+                query = "SELECT * FROM USERS WHERE userID = ?";
+                found = esql.exists(query, id);
+                while(!found){
                         System.out.println("Selected user does not exists, enter another userID: ");
                         id = in.readLine();
-			query = String.format("SELECT * FROM USERS WHERE userID = '%s'", id);
-                        q = esql.executeQuery(query);
+			query = "SELECT * FROM USERS WHERE userID = ?";
+                        found = esql.exists(query, id);
                 }
-                query = String.format("DELETE FROM ORDERS WHERE customerID = '%s'", id);
-		esql.executeUpdate(query);
-		query = String.format("DELETE  FROM Users WHERE userID = '%s'", id);
-                esql.executeUpdate(query);                                                                                                                                                                    System.out.println("Successful!");
+                RemovalService.Outcome removed = esql.getOperations().removeUser(user, Integer.parseInt(id.trim()));
+		if (removed == RemovalService.Outcome.MANAGES_STORES)
+			System.out.println("This user still manages stores, assign them to another manager first!");
+		else if (removed == RemovalService.Outcome.PURGING)
+			System.out.println("This user has many orders, they are being removed in the background.");
+		else
+			System.out.println("Successful!");
                 return;
                 }else{
                 System.out.println("Unauthorised user, return to main menu!");
@@ -1033,42 +1763,39 @@ public static void viewOrders(Retail esql){
 };
    public static void removeProducts(Retail esql){
  	      try{
-    String query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-        int q = esql.executeQuery(query);
-        if( q == 1){
+    Principal user = esql.getAuthorizations().get(uId);
+    String query;
+    boolean found;
+        if( user != null && user.isAdmin()){
                 //Get storeId from user
 		System.out.println("Select a storeID: ");
                 String id = in.readLine();
 
-                query = String.format("SELECT * FROM Store WHERE storeID = '%s'", id);
-                q = esql.executeQuery(query);
-                while(q == 0){
+                query = "SELECT * FROM Store WHERE storeID = ?";
+                found = esql.exists(query, id);
+                while(!found){
                         System.out.println("Selected storeID does not exists, enter another storeID: ");
                         id = in.readLine();
-			query = String.format("SELECT * FROM Users WHERE userID = '%s' AND type = 'admin'",uId );
-                        q = esql.executeQuery(query);
+			query = "SELECT * FROM Store WHERE storeID = ?";
+                        found = esql.exists(query, id);
                 }
 		
 		System.out.println("Select a productName: ");
                 String name = in.readLine();
 
-                query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'" , id,name);
-                q = esql.executeQuery(query);
-                while(q == 0){
+                query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+                found = esql.exists(query, id,name);
+                while(!found){
                         System.out.println("Selected product does not exists in the store, enter another product name: ");
-                        id = in.readLine();
-			query = String.format("SELECT * FROM Product WHERE storeID = '%s' AND productName = '%s'" , id,name);
-                        q = esql.executeQuery(query);
+                        name = in.readLine();
+			query = "SELECT * FROM Product WHERE storeID = ? AND productName = ?";
+                        found = esql.exists(query, id,name);
                 }
-		query = String.format("DELETE FROM ProductSupplyRequests WHERE storeID = '%s' AND productName = '%s'", id, name);
-                esql.executeUpdate(query);
-		query = String.format("DELETE FROM Orders WHERE storeID = '%s' AND productName = '%s'", id, name);
-		esql.executeUpdate(query);
-		query = String.format("DELETE FROM ProductUpdates WHERE storeID = '%s' AND productName = '%s'", id, name);
-		esql.executeUpdate(query);
-                query = String.format("DELETE  FROM Product WHERE storeID = '%s' AND productName = '%s'", id, name);
-                esql.executeUpdate(query);
-		 System.out.println("Successful!");
+		RemovalService.Outcome removed = esql.getOperations().removeProduct(user, Integer.parseInt(id.trim()), name);
+		if (removed == RemovalService.Outcome.PURGING)
+			System.out.println("This product has many orders, they are being removed in the background.");
+		else
+			System.out.println("Successful!");
                 return;
                 }else{
                 System.out.println("Unauthorised user, return to main menu!");
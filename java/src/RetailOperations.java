@@ -0,0 +1,292 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The work behind each menu item, without any console input. Every method
+ * takes the acting user's Principal and already-validated values, checks the
+ * user's role, and runs the same statements as the interactive menu. Query
+ * results are handed row by row to a RowHandler, so the menu can print them
+ * while benchmarks and load drivers simply consume them.
+ *
+ * A role that may not perform an operation gets a SecurityException.
+ */
+public class RetailOperations {
+
+   private final Retail esql;
+   // rows per page of the order and user listings
+   private final int pageSize = Integer.getInteger("retail.pageSize", 20);
+   // records per statement of a bulk product upsert
+   private final int upsertBatchSize = Integer.getInteger("retail.upsert.batchSize", 1000);
+
+   public RetailOperations(Retail esql) {
+      this.esql = esql;
+   }
+
+   // 1. View Stores within 30 miles
+   public List<StoreLocator.Match> viewStores(Principal user) throws SQLException {
+      return esql.getStoreLocator().findStoresWithin(user.latitude, user.longitude, Retail.NEARBY_RADIUS);
+   }//end viewStores
+
+   // 2. View Product List
+   public int viewProducts(int storeId, RowHandler sink) throws SQLException {
+      return esql.executeQueryAndStreamResult(
+         "SELECT P.productName, P.numberOfUnits, P.pricePerUnit FROM Product P WHERE P.storeID = ?",
+         sink, storeId);
+   }//end viewProducts
+
+   // 3. Place a Order; stores outside the user's area are refused as NO_SUCH_PRODUCT
+   public OrderService.Result placeOrder(Principal user, int storeId, String productName, int units)
+      throws SQLException {
+      if (!esql.getStoreLocator().isWithin(String.valueOf(storeId), user.latitude, user.longitude,
+                                           Retail.NEARBY_RADIUS))
+         return new OrderService.Result(OrderService.Status.NO_SUCH_PRODUCT);
+      return esql.getOrderService().placeOrder(user.userId, storeId, productName, units);
+   }//end placeOrder
+
+   // 4. View 5 recent orders; a customer's come from the recent orders cache
+   public int viewRecentOrders(Principal user, RowHandler sink) throws SQLException {
+      if (user.isCustomer())
+         return esql.getRecentOrders().stream(user.userId, 5, sink);
+      if (user.isManager())
+         return esql.executeQueryAndStreamResult(
+            "SELECT DISTINCT O.orderNumber as orderID, U.name as customer_name, O.storeID, O.productName, O.orderTime as date FROM Orders O, Users U WHERE O.customerID = U.userID AND O.storeID = ANY (?::int[]) ORDER by O.orderTime DESC LIMIT 5",
+            sink, esql.getManagerScope().storeIds(user));
+      if (user.isAdmin())
+         return esql.executeQueryAndStreamResult(
+            "SELECT DISTINCT O.orderNumber as orderID, U.name as customer_name, O.storeID, O.productName, O.orderTime as date FROM Orders O, Users U WHERE O.customerID = U.userID ORDER by O.orderTime DESC LIMIT 5",
+            sink);
+      throw unauthorised();
+   }//end viewRecentOrders
+
+   // 5. Update Product; false when the store does not sell the product
+   public boolean updateProduct(Principal user, int storeId, String productName, int numberOfUnits,
+                                double pricePerUnit) throws SQLException {
+      requireStore(user, storeId);
+      int updated = esql.executeUpdate(
+         "UPDATE Product SET numberOfUnits = ?, pricePerUnit = ? WHERE storeID = ? AND productName = ?",
+         numberOfUnits, pricePerUnit, storeId, productName);
+      if (updated == 0) return false;
+      esql.executeUpdate(
+         "INSERT INTO ProductUpdates(updateNumber,managerID,storeID,productName,updatedOn) VALUES(?,?,?,?,NOW())",
+         esql.getUpdateIds().next(), user.userId, storeId, productName);
+      return true;
+   }//end updateProduct
+
+   // 6. View 5 recent Product Updates Info
+   public int viewRecentUpdates(Principal user, RowHandler sink) throws SQLException {
+      if (user.isAdmin())
+         return esql.executeQueryAndStreamResult("SELECT * FROM ProductUpdates ORDER BY updatedOn desc LIMIT 5", sink);
+      if (user.isManager())
+         return esql.executeQueryAndStreamResult(
+            "SELECT updateNumber, storeID, productName, updatedOn from ProductUpdates where storeID = ANY (?::int[]) order by updatedOn DESC LIMIT 5",
+            sink, esql.getManagerScope().storeIds(user));
+      throw unauthorised();
+   }//end viewRecentUpdates
+
+   // 7. View 5 Popular Items, summed from the per-store order counts the Orders triggers keep
+   public int viewPopularProducts(Principal user, RowHandler sink) throws SQLException {
+      if (user.isAdmin())
+         return esql.executeQueryAndStreamResult(
+            "SELECT P.productName, SUM(P.orderCount) as countOfOrders FROM StoreProductPopularity P GROUP BY P.productName ORDER BY countOfOrders desc LIMIT 5",
+            sink);
+      if (user.isManager())
+         return esql.executeQueryAndStreamResult(
+            "SELECT P.productName, SUM(P.orderCount) as countOfOrders FROM StoreProductPopularity P WHERE P.storeID = ANY (?::int[]) GROUP BY P.productName ORDER BY countOfOrders desc LIMIT 5",
+            sink, esql.getManagerScope().storeIds(user));
+      throw unauthorised();
+   }//end viewPopularProducts
+
+   // 8. View 5 Popular Customers, estimated in memory unless exact mode is on
+   public int viewPopularCustomers(Principal user, RowHandler sink) throws SQLException {
+      PopularCustomers popular = esql.getPopularCustomers();
+      if (!popular.isExact()) {
+         if (user.isAdmin())
+            return popular.stream(null, 5, sink);
+         if (user.isManager())
+            return popular.stream(user.getManagedStores(), 5, sink);
+         throw unauthorised();
+      }
+      if (user.isAdmin())
+         return esql.executeQueryAndStreamResult(
+            "Select O.storeID , O.customerID, U.name , Count(*) as NumberofOrders From Orders O, Users U where U.userID = O.customerID GROUP BY O.storeID, O.customerID, U.name ORDER BY COUNT(*) desc LIMIT 5",
+            sink);
+      if (user.isManager())
+         return esql.executeQueryAndStreamResult(
+            "Select O.storeID , O.customerID, U.name , Count(*) as NumberofOrders From Orders O, Users U where U.userID = O.customerID AND O.storeID = ANY (?::int[]) GROUP BY O.storeID, O.customerID, U.name ORDER BY COUNT(*) desc LIMIT 5",
+            sink, esql.getManagerScope().storeIds(user));
+      throw unauthorised();
+   }//end viewPopularCustomers
+
+   // 9. Place Product Supply Request to Warehouse; false when the store does not sell the product
+   public boolean placeSupplyRequest(Principal user, int storeId, String productName, int units,
+                                     int warehouseId) throws SQLException {
+      requireStore(user, storeId);
+      int updated = esql.executeUpdate(
+         "UPDATE Product SET numberOfUnits = numberOfUnits + ? WHERE storeID = ? AND productName = ?",
+         units, storeId, productName);
+      if (updated == 0) return false;
+      esql.executeUpdate(
+         "INSERT INTO ProductUpdates(updateNumber,managerID,storeID,productName,updatedOn) VALUES(?,?,?,?,NOW())",
+         esql.getUpdateIds().next(), user.userId, storeId, productName);
+      esql.executeUpdate(
+         "INSERT INTO ProductSupplyRequests(requestNumber,managerID,warehouseID,storeID,productName,unitsRequested) " +
+         "VALUES(?,?,?,?,?,?)",
+         esql.getSupplyIds().next(), user.userId, warehouseId, storeId, productName, units);
+      return true;
+   }//end placeSupplyRequest
+
+   // 10. View Orders, the first page
+   public int viewOrders(Principal user, RowHandler sink) throws SQLException {
+      return viewOrders(user, OrderFilter.NONE, null, pageSize, sink).rows;
+   }//end viewOrders
+
+   /**
+    * 10. View Orders, newest first, one page at a time. Admins see every
+    * order, managers the orders of their stores.
+    *
+    * @param filter narrows the orders listed
+    * @param after the last key of the previous page, null for the first page
+    * @param size rows per page
+    * @return the page, whose last key leads to the next one
+    */
+   public Page viewOrders(Principal user, OrderFilter filter, Object[] after, int size, RowHandler sink)
+      throws SQLException {
+      List<Object> params = new ArrayList<Object>();
+      StringBuilder sql = ordersQuery(user, filter, params);
+      if (after != null) {
+         sql.append(" AND (O.orderTime, O.orderNumber) < (?::timestamp, ?::int)");
+         params.add(after[0]);
+         params.add(after[1]);
+      }
+      sql.append(" ORDER BY O.orderTime DESC, O.orderNumber DESC LIMIT ?");
+      params.add(size + 1);
+      Page.Collector page = new Page.Collector(sink, size, "orderTime", "orderNumber");
+      esql.executeQueryAndStreamResult(sql.toString(), page, params.toArray());
+      return page.page();
+   }//end viewOrders
+
+   /**
+    * Exports every order viewOrders would list, in orderNumber order. The
+    * rows are read through a cursor and handed on as they arrive, so sink
+    * can write them out without the result ever being held in memory.
+    *
+    * @return the number of orders exported
+    */
+   public int exportOrders(Principal user, OrderFilter filter, RowHandler sink) throws SQLException {
+      List<Object> params = new ArrayList<Object>();
+      StringBuilder sql = ordersQuery(user, filter, params).append(" ORDER BY O.orderNumber");
+      return esql.executeQueryAndStreamResult(sql.toString(), sink, params.toArray());
+   }//end exportOrders
+
+   // The orders user may see that match filter, adding the parameters to params.
+   private StringBuilder ordersQuery(Principal user, OrderFilter filter, List<Object> params) {
+      if (!user.isAdmin() && !user.isManager()) throw unauthorised();
+      StringBuilder sql = new StringBuilder(
+         "SELECT O.orderNumber, O.customerID, U.name as customer_name, O.storeID, O.productName, " +
+         "O.unitsOrdered, O.orderTime FROM Orders O, Users U WHERE O.customerID = U.userID");
+      if (user.isManager()) {
+         sql.append(" AND O.storeID = ANY (?::int[])");
+         params.add(esql.getManagerScope().storeIds(user));
+      }
+      if (filter.storeId != null) {
+         sql.append(" AND O.storeID = ?");
+         params.add(filter.storeId);
+      }
+      if (filter.customerId != null) {
+         sql.append(" AND O.customerID = ?");
+         params.add(filter.customerId);
+      }
+      if (filter.from != null) {
+         sql.append(" AND O.orderTime >= ?::timestamp");
+         params.add(filter.from);
+      }
+      if (filter.to != null) {
+         sql.append(" AND O.orderTime < ?::timestamp");
+         params.add(filter.to);
+      }
+      return sql;
+   }//end ordersQuery
+
+   // 11. View Users, the first page
+   public int viewUsers(Principal user, RowHandler sink) throws SQLException {
+      return viewUsers(user, null, pageSize, sink).rows;
+   }//end viewUsers
+
+   /**
+    * 11. View Users in userID order, one page at a time.
+    *
+    * @param after the last key of the previous page, null for the first page
+    * @param size rows per page
+    * @return the page, whose last key leads to the next one
+    */
+   public Page viewUsers(Principal user, Object[] after, int size, RowHandler sink) throws SQLException {
+      requireAdmin(user);
+      Page.Collector page = new Page.Collector(sink, size, "userID");
+      if (after == null)
+         esql.executeQueryAndStreamResult("Select * FROM Users ORDER BY userID LIMIT ?", page, size + 1);
+      else
+         esql.executeQueryAndStreamResult("Select * FROM Users WHERE userID > ?::int ORDER BY userID LIMIT ?",
+                                          page, after[0], size + 1);
+      return page.page();
+   }//end viewUsers
+
+   // 12. Add A New User; returns the new userID
+   public int addUser(Principal user, String name, String password, double latitude, double longitude,
+                      String type) throws SQLException {
+      requireAdmin(user);
+      int userId = esql.getUserIds().next();
+      esql.executeUpdate("INSERT INTO Users(userID,name,password,latitude,longitude,type) VALUES(?,?,?,?,?,?)",
+                         userId, name, password, latitude, longitude, type);
+      // forget any cached role held under the new userID
+      esql.getAuthorizations().invalidate(String.valueOf(userId));
+      return userId;
+   }//end addUser
+
+   // 13. Add A New Product
+   public void addProduct(Principal user, int storeId, String productName, int numberOfUnits,
+                          double pricePerUnit) throws SQLException {
+      requireAdmin(user);
+      esql.executeUpdate("INSERT INTO Product(storeID, productName, numberOfUnits, pricePerUnit) VALUES(?,?,?,?)",
+                         storeId, productName, numberOfUnits, pricePerUnit);
+   }//end addProduct
+
+   /**
+    * 18. Upsert Products from CSV records of storeID,productName,numberOfUnits,pricePerUnit,
+    * retail.upsert.batchSize (1000) records per statement.
+    *
+    * @param in the records; not closed
+    */
+   public ProductUpserter.Result upsertProducts(Principal user, Reader in) throws SQLException, IOException {
+      return new ProductUpserter(esql, upsertBatchSize).upsert(user, in);
+   }//end upsertProducts
+
+   // 14. Remove A User, together with the rows referencing the user; managers of stores are refused
+   public RemovalService.Outcome removeUser(Principal user, int userId) throws SQLException {
+      requireAdmin(user);
+      return esql.getRemovals().removeUser(userId);
+   }//end removeUser
+
+   // 15. Remove A Product, together with the rows referencing it
+   public RemovalService.Outcome removeProduct(Principal user, int storeId, String productName) throws SQLException {
+      requireAdmin(user);
+      return esql.getRemovals().removeProduct(storeId, productName);
+   }//end removeProduct
+
+   // Admins may act on any store, managers on the stores they manage.
+   private static void requireStore(Principal user, int storeId) {
+      if (user.isAdmin()) return;
+      if (user.isManager() && user.getManagedStores().contains(storeId)) return;
+      throw unauthorised();
+   }//end requireStore
+
+   private static void requireAdmin(Principal user) {
+      if (!user.isAdmin()) throw unauthorised();
+   }//end requireAdmin
+
+   private static SecurityException unauthorised() {
+      return new SecurityException("Unauthorised user");
+   }//end unauthorised
+}//end RetailOperations
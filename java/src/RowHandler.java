@@ -0,0 +1,17 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback receiving the rows of a query one at a time, see
+ * Retail.executeQueryAndStreamResult. The ResultSet is positioned on the
+ * current row and must not be advanced or closed by the handler.
+ */
+public interface RowHandler {
+
+   /**
+    * @param rs the result set positioned on the current row
+    * @return true to keep reading, false to stop after this row
+    * @throws java.sql.SQLException when reading the row fails
+    */
+   boolean handleRow(ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,267 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Takes a consistent copy of the retail tables and puts it back, for
+ * staging refreshes and benchmark resets.
+ *
+ * export writes every table of BulkLoader.TABLES as table.csv.gz, named
+ * as BulkLoader expects. One REPEATABLE READ transaction exports its
+ * snapshot with pg_export_snapshot(); each table is then copied out with
+ * COPY ... TO STDOUT on a connection of its own that adopts that snapshot,
+ * so the tables are written in parallel yet agree with each other as of
+ * one instant. The isolation level is set with SET TRANSACTION rather than
+ * through JDBC, whose setter in the bundled driver knows only READ
+ * COMMITTED and SERIALIZABLE. Drivers without a CopyManager fall back to a
+ * cursor over SELECT * written out by ResultExporter.
+ *
+ * restore drops the secondary indexes of those tables, empties them and
+ * loads the files with BulkLoader, then builds the indexes again in
+ * parallel: building an index once over the loaded rows is far cheaper
+ * than maintaining it row by row. Primary keys and the indexes behind
+ * other constraints stay in place.
+ *
+ * Usage: java Snapshot dbname port user export|restore dir [-threads n]
+ */
+public class Snapshot {
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   private final Retail esql;
+   private final File dir;
+   private final int threads;
+
+   /**
+    * @param esql the database copied from or restored into
+    * @param dir the directory holding the snapshot files
+    * @param threads the number of tables copied, or indexes built, at once
+    */
+   public Snapshot(Retail esql, File dir, int threads) {
+      this.esql = esql;
+      this.dir = dir;
+      this.threads = Math.max(1, threads);
+   }//end Snapshot
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 5 || !(args[3].equals("export") || args[3].equals("restore"))) {
+         System.err.println("Usage: java Snapshot dbname port user export|restore dir [-threads n]");
+         return;
+      }
+      int threads = 4;
+      for (int i = 5; i < args.length; ++i) {
+         if (args[i].equals("-threads")) threads = Integer.parseInt(args[++i]);
+         else throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      try{
+         Snapshot snapshot = new Snapshot(esql, new File(args[4]), threads);
+         long began = System.currentTimeMillis();
+         long rows = args[3].equals("export") ? snapshot.export() : snapshot.restore();
+         System.out.println(args[3] + ": " + rows + " rows in " + (System.currentTimeMillis() - began) + " ms");
+      }finally{
+         esql.cleanup();
+      }//end try
+   }//end main
+
+   /**
+    * Writes every table to dir as of one snapshot.
+    *
+    * @return the number of rows written
+    */
+   public long export() throws SQLException, IOException {
+      if (!dir.isDirectory() && !dir.mkdirs())
+         throw new IOException("Cannot create " + dir);
+      // holds the snapshot open until every table has been copied
+      Connection owner = esql.openConnection();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         owner.setAutoCommit(false);
+         execute(owner, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         final String snapshotId = queryString(owner, "SELECT pg_export_snapshot()");
+         List<Future<Long>> copies = new ArrayList<Future<Long>>();
+         for (final Object[] table : BulkLoader.TABLES)
+            copies.add(pool.submit(new Callable<Long>() {
+               public Long call() throws Exception {
+                  return exportTable(snapshotId, (String) table[0], new File(dir, table[1] + ".gz"));
+               }
+            }));
+         long rows = 0;
+         for (Future<Long> copy : copies)
+            rows += BulkLoader.result(copy);
+         return rows;
+      }finally{
+         pool.shutdownNow();
+         owner.rollback();
+         owner.close();
+      }//end try
+   }//end export
+
+   // Copies one table, as of the exported snapshot, into a gzipped CSV file.
+   private long exportTable(String snapshotId, String table, File file) throws SQLException, IOException {
+      long began = System.currentTimeMillis();
+      Connection conn = esql.openConnection();
+      // speed over ratio: the files are rewritten on every export
+      OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE),
+                                              BUFFER_SIZE) {
+         { def.setLevel(Deflater.BEST_SPEED); }
+      };
+      try{
+         conn.setAutoCommit(false);
+         // both must come before the first query of the transaction
+         execute(conn, "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+         execute(conn, "SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+         long rows;
+         Object copyApi = BulkLoader.copyApi(conn);
+         if (copyApi != null) {
+            rows = copyOut(copyApi, "COPY " + table + " TO STDOUT WITH (FORMAT csv, HEADER)", out);
+         } else {
+            rows = select(conn, table, out);
+         }
+         conn.commit();
+         System.out.println(table + ": " + rows + " rows in " + (System.currentTimeMillis() - began) + " ms");
+         return rows;
+      }finally{
+         out.close();
+         conn.close();
+      }//end try
+   }//end exportTable
+
+   private static long copyOut(Object copyApi, String sql, OutputStream out) throws SQLException, IOException {
+      try{
+         Method copyOut = copyApi.getClass().getMethod("copyOut", String.class, OutputStream.class);
+         return ((Long) copyOut.invoke(copyApi, sql, out)).longValue();
+      }catch (InvocationTargetException e){
+         Throwable cause = e.getCause();
+         if (cause instanceof SQLException) throw (SQLException) cause;
+         if (cause instanceof IOException) throw (IOException) cause;
+         throw new SQLException(cause.toString());
+      }catch (ReflectiveOperationException e){
+         throw new SQLException("Cannot call CopyManager.copyOut: " + e);
+      }//end try
+   }//end copyOut
+
+   // Fallback for drivers without COPY support: a cursor over the table,
+   // declared explicitly since the bundled driver has no setFetchSize.
+   private long select(Connection conn, String table, OutputStream out) throws SQLException, IOException {
+      int fetchSize = Math.max(1000, esql.getFetchSize());
+      ResultExporter csv = new ResultExporter(new OutputStreamWriter(out, "UTF-8"), ResultExporter.Format.CSV);
+      Statement stmt = conn.createStatement();
+      try{
+         stmt.execute("DECLARE snapshot_rows NO SCROLL CURSOR FOR SELECT * FROM " + table);
+         long rows = 0;
+         int fetched;
+         do {
+            fetched = 0;
+            ResultSet rs = stmt.executeQuery("FETCH FORWARD " + fetchSize + " FROM snapshot_rows");
+            while (rs.next()) {
+               csv.handleRow(rs);
+               ++fetched;
+            }
+            rs.close();
+            rows += fetched;
+         } while (fetched == fetchSize);
+         stmt.execute("CLOSE snapshot_rows");
+         csv.close();
+         return rows;
+      }finally{
+         stmt.close();
+      }//end try
+   }//end select
+
+   /**
+    * Replaces the contents of the tables with the files in dir.
+    *
+    * @return the number of rows loaded
+    */
+   public long restore() throws SQLException, IOException {
+      List<String> indexes = secondaryIndexes();
+      BulkLoader loader = new BulkLoader(esql, dir, threads);
+      for (String index : indexes)
+         esql.executeUpdate("DROP INDEX " + index.substring(0, index.indexOf('\t')));
+      try{
+         loader.truncate();
+         return loader.load();
+      }finally{
+         createIndexes(indexes);
+      }//end try
+   }//end restore
+
+   // "name TAB definition" of every index on the tables that no constraint depends on.
+   private List<String> secondaryIndexes() throws SQLException {
+      StringBuilder tables = new StringBuilder();
+      for (Object[] table : BulkLoader.TABLES)
+         tables.append(tables.length() > 0 ? "," : "").append(((String) table[0]).toLowerCase());
+      final List<String> indexes = new ArrayList<String>();
+      esql.executeQueryAndStreamResult(
+         "SELECT quote_ident(I.schemaname) || '.' || quote_ident(I.indexname), I.indexdef FROM pg_indexes I " +
+         "WHERE I.schemaname = current_schema() AND I.tablename = ANY (?::name[]) " +
+         "AND NOT EXISTS (SELECT 1 FROM pg_constraint C " +
+         "WHERE C.conindid = (quote_ident(I.schemaname) || '.' || quote_ident(I.indexname))::regclass)",
+         new RowHandler() {
+            public boolean handleRow(ResultSet rs) throws SQLException {
+               indexes.add(rs.getString(1) + "\t" + rs.getString(2));
+               return true;
+            }
+         }, "{" + tables + "}");
+      return indexes;
+   }//end secondaryIndexes
+
+   private void createIndexes(List<String> indexes) throws SQLException, IOException {
+      long began = System.currentTimeMillis();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try{
+         List<Future<Long>> builds = new ArrayList<Future<Long>>();
+         for (final String index : indexes)
+            builds.add(pool.submit(new Callable<Long>() {
+               public Long call() throws Exception {
+                  esql.executeUpdate(index.substring(index.indexOf('\t') + 1));
+                  return 0L;
+               }
+            }));
+         for (Future<Long> build : builds)
+            BulkLoader.result(build);
+      }finally{
+         pool.shutdownNow();
+      }//end try
+      System.out.println(indexes.size() + " indexes built in " + (System.currentTimeMillis() - began) + " ms");
+   }//end createIndexes
+
+   private static void execute(Connection conn, String sql) throws SQLException {
+      Statement stmt = conn.createStatement();
+      try{
+         stmt.execute(sql);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end execute
+
+   private static String queryString(Connection conn, String sql) throws SQLException {
+      PreparedStatement stmt = conn.prepareStatement(sql);
+      try{
+         ResultSet rs = stmt.executeQuery();
+         rs.next();
+         return rs.getString(1);
+      }finally{
+         stmt.close();
+      }//end try
+   }//end queryString
+}//end Snapshot
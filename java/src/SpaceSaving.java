@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving heavy hitters sketch: counts the items of a stream in a
+ * fixed number of counters. An item without a counter takes over the
+ * smallest one and inherits its count as the possible overestimate
+ * (error), so the counts never undercount and any item seen more than
+ * total / capacity times is guaranteed to hold a counter.
+ *
+ * Counters are kept ordered by count, so adding to an item and evicting
+ * the smallest counter both cost O(log capacity). Not thread safe.
+ *
+ * @param <K> the counted items
+ */
+public class SpaceSaving<K> {
+
+   /**
+    * An item and its estimated count; the true count lies between
+    * count - error and count.
+    */
+   public static class Counter<K> implements Comparable<Counter<K>> {
+      public final K item;
+      private long count;
+      private long error;
+      private long order;    // breaks ties between equal counts
+
+      Counter(K item) {
+         this.item = item;
+      }
+
+      public long getCount() {
+         return count;
+      }
+
+      public long getError() {
+         return error;
+      }
+
+      public int compareTo(Counter<K> other) {
+         if (count != other.count) return count < other.count ? -1 : 1;
+         return order < other.order ? -1 : order > other.order ? 1 : 0;
+      }
+   }//end Counter
+
+   private final int capacity;
+   private final Map<K, Counter<K>> counters = new HashMap<K, Counter<K>>();
+   private final TreeSet<Counter<K>> byCount = new TreeSet<Counter<K>>();
+   private long total = 0;
+   private long sequence = 0;
+
+   /**
+    * @param capacity number of counters kept, at least the number of items asked for by top()
+    */
+   public SpaceSaving(int capacity) {
+      if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+      this.capacity = capacity;
+   }//end SpaceSaving
+
+   /**
+    * Counts weight occurrences of an item.
+    */
+   public void add(K item, long weight) {
+      if (weight <= 0) return;
+      total += weight;
+      Counter<K> c = counters.get(item);
+      if (c == null) {
+         if (counters.size() < capacity) {
+            c = new Counter<K>(item);
+         } else {
+            // the smallest counter is handed to the new item
+            Counter<K> smallest = byCount.pollFirst();
+            counters.remove(smallest.item);
+            c = new Counter<K>(item);
+            c.count = smallest.count;
+            c.error = smallest.count;
+         }
+         counters.put(item, c);
+      } else {
+         byCount.remove(c);
+      }
+      c.count += weight;
+      c.order = sequence++;
+      byCount.add(c);
+   }//end add
+
+   /**
+    * @return up to n counters, highest count first
+    */
+   public List<Counter<K>> top(int n) {
+      List<Counter<K>> result = new ArrayList<Counter<K>>(Math.min(n, counters.size()));
+      for (Counter<K> c : byCount.descendingSet()) {
+         if (result.size() == n) break;
+         result.add(c);
+      }
+      return result;
+   }//end top
+
+   /**
+    * @return the total weight added so far
+    */
+   public long getTotal() {
+      return total;
+   }
+
+   public int size() {
+      return counters.size();
+   }
+}//end SpaceSaving
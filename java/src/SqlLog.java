@@ -0,0 +1,103 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records every distinct SQL statement a Retail instance runs, with the
+ * parameters of its first execution, so the statements can be replayed by
+ * PlanCheck. Switched on with -Dretail.sqlLog=file. One line is appended
+ * per statement:
+ *
+ *    sql TAB parameter TAB parameter ...
+ *
+ * where each parameter is written as i:int, l:long, d:double, s:string or
+ * n: for null. Tabs, newlines and backslashes are escaped with a
+ * backslash.
+ */
+public class SqlLog {
+
+   private final Writer out;
+   private final ConcurrentMap<String, Boolean> seen = new ConcurrentHashMap<String, Boolean>();
+
+   private SqlLog(Writer out) {
+      this.out = out;
+   }
+
+   /**
+    * @param file the file appended to, or null
+    * @return the log, or null when file is null
+    * @throws java.io.IOException when the file cannot be opened
+    */
+   public static SqlLog open(String file) throws IOException {
+      if (file == null) return null;
+      return new SqlLog(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+   }//end open
+
+   /**
+    * Appends a statement the first time it is seen.
+    */
+   public void record(String sql, Object[] params) {
+      if (seen.putIfAbsent(sql, Boolean.TRUE) != null) return;
+      StringBuilder line = new StringBuilder(escape(sql));
+      for (Object p : params) {
+         line.append('\t');
+         if (p == null) line.append("n:");
+         else if (p instanceof Integer) line.append("i:").append(p);
+         else if (p instanceof Long) line.append("l:").append(p);
+         else if (p instanceof Double || p instanceof Float) line.append("d:").append(p);
+         else line.append("s:").append(escape(p.toString()));
+      }
+      synchronized (this) {
+         try{
+            out.write(line.append('\n').toString());
+            out.flush();
+         }catch (IOException e){
+            System.err.println(e.getMessage());
+         }//end try
+      }
+   }//end record
+
+   /**
+    * Splits a logged line back into the statement, at index 0, and its parameters.
+    */
+   public static Object[] parse(String line) {
+      List<String> fields = new ArrayList<String>();
+      StringBuilder field = new StringBuilder();
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (c == '\\' && i + 1 < line.length()) {
+            char e = line.charAt(++i);
+            field.append(e == 't' ? '\t' : e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+         } else if (c == '\t') {
+            fields.add(field.toString());
+            field.setLength(0);
+         } else {
+            field.append(c);
+         }
+      }
+      fields.add(field.toString());
+      Object[] result = new Object[fields.size()];
+      result[0] = fields.get(0);
+      for (int i = 1; i < fields.size(); ++i) {
+         String f = fields.get(i);
+         String value = f.length() < 2 ? "" : f.substring(2);
+         switch (f.isEmpty() ? 's' : f.charAt(0)) {
+            case 'n': result[i] = null; break;
+            case 'i': result[i] = Integer.valueOf(value); break;
+            case 'l': result[i] = Long.valueOf(value); break;
+            case 'd': result[i] = Double.valueOf(value); break;
+            default: result[i] = value;
+         }
+      }
+      return result;
+   }//end parse
+
+   private static String escape(String s) {
+      return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+   }//end escape
+}//end SqlLog
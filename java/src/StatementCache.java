@@ -0,0 +1,136 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded least-recently-used cache of PreparedStatements belonging to
+ * one physical connection. Statements handed out by prepare() stay owned by
+ * the cache: callers close their ResultSets but never the statement. When
+ * the cache is full the least recently used statement is closed.
+ *
+ * What a hit saves depends on the driver. The bundled pg73 driver prepares
+ * on the client only: a hit skips building the statement object and
+ * splitting its SQL at the placeholders, but every execution still sends
+ * the full text, so the server parses and plans it again each time.
+ * Drivers that prepare on the server also keep the parsed statement
+ * alive with the cached object.
+ *
+ * A cache is only ever used by the thread that has borrowed its connection,
+ * so it needs no locking of its own; the hit/miss counters are shared by
+ * every cache of a pool and are atomic.
+ */
+public class StatementCache {
+
+   private final Connection connection;
+   private final int capacity;
+   private final Counters counters;
+   private final LinkedHashMap<String, PreparedStatement> statements;
+
+   /**
+    * @param connection the connection the statements are prepared on
+    * @param capacity maximum number of statements kept open
+    * @param counters hit/miss counters shared by the caches of one pool
+    */
+   public StatementCache(Connection connection, int capacity, Counters counters) {
+      this.connection = connection;
+      this.capacity = capacity;
+      this.counters = counters;
+      this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+   }//end StatementCache
+
+   /**
+    * Returns the cached statement for sql, preparing it on a miss.
+    *
+    * @param sql the SQL text with ? placeholders
+    * @return an open statement whose parameters have been cleared
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt != null) {
+         counters.hits.incrementAndGet();
+         stmt.clearParameters();
+         return stmt;
+      }
+      counters.misses.incrementAndGet();
+      stmt = connection.prepareStatement(sql);
+      if (capacity <= 0)
+         return stmt;
+      statements.put(sql, stmt);
+      if (statements.size() > capacity) {
+         Iterator<Map.Entry<String, PreparedStatement>> eldest = statements.entrySet().iterator();
+         PreparedStatement evicted = eldest.next().getValue();
+         eldest.remove();
+         counters.evictions.incrementAndGet();
+         try{
+            evicted.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }
+      return stmt;
+   }//end prepare
+
+   /**
+    * Closes every cached statement. The pool calls this before closing a
+    * connection it evicts or discards.
+    */
+   public void clear() {
+      for (PreparedStatement stmt : statements.values()) {
+         try{
+            stmt.close();
+         }catch (SQLException e){
+            // ignored.
+         }//end try
+      }
+      statements.clear();
+   }//end clear
+
+   /**
+    * Hit, miss and eviction counters shared by all caches of a pool.
+    */
+   public static class Counters {
+      final AtomicLong hits = new AtomicLong();
+      final AtomicLong misses = new AtomicLong();
+      final AtomicLong evictions = new AtomicLong();
+
+      /**
+       * @return a point-in-time copy of the counters
+       */
+      public Stats snapshot() {
+         return new Stats(hits.get(), misses.get(), evictions.get());
+      }
+   }//end Counters
+
+   /**
+    * Immutable snapshot of statement cache counters.
+    */
+   public static class Stats {
+      public final long hits;
+      public final long misses;
+      public final long evictions;
+
+      Stats(long hits, long misses, long evictions) {
+         this.hits = hits;
+         this.misses = misses;
+         this.evictions = evictions;
+      }
+
+      /**
+       * @return fraction of prepare() calls served from the cache
+       */
+      public double hitRate() {
+         long total = hits + misses;
+         return total == 0 ? 0.0 : hits / (double) total;
+      }
+
+      public String toString() {
+         return String.format("statement cache: %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                              hits, misses, hitRate() * 100, evictions);
+      }
+   }//end Stats
+}//end StatementCache
@@ -0,0 +1,305 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory spatial index over the coordinates of every Store, answering
+ * "stores within a radius" and "k nearest stores" without a database round
+ * trip. Stores are bucketed into a uniform grid of square cells; a radius
+ * query only looks at the cells overlapping the query's bounding box, and
+ * a nearest query walks outwards ring by ring until no closer store can
+ * exist. Distances are Retail.calculateDistance, the same euclidean measure
+ * as the calculate_distance SQL function.
+ *
+ * The grid is rebuilt from the Store relation on first use, after
+ * invalidate(), which ManagerScope calls when a store_managers notification
+ * reports a Store change, and once it is older than the configured time
+ * to live. A rebuilt grid replaces the old one atomically, so readers
+ * never block. Each grid remembers the invalidate() count it was loaded
+ * under, so one whose rows were read before a later invalidate() counts
+ * as stale even when it is published after it.
+ *
+ * When the index is switched off every lookup is sent to the stores_within
+ * SQL function instead, whose bounding box lets the planner use the
+ * (latitude, longitude) index on Store.
+ */
+public class StoreLocator {
+
+   /**
+    * A store and its position.
+    */
+   public static class StoreLocation {
+      public final int storeId;
+      public final String name;
+      public final double latitude;
+      public final double longitude;
+
+      public StoreLocation(int storeId, String name, double latitude, double longitude) {
+         this.storeId = storeId;
+         this.name = name;
+         this.latitude = latitude;
+         this.longitude = longitude;
+      }
+
+      public double distanceTo(double lat, double lon) {
+         return Retail.calculateDistance(lat, lon, latitude, longitude);
+      }
+   }//end StoreLocation
+
+   /**
+    * A store found by a query, with its distance from the query point.
+    */
+   public static class Match {
+      public final StoreLocation store;
+      public final double distance;
+
+      Match(StoreLocation store, double distance) {
+         this.store = store;
+         this.distance = distance;
+      }
+   }//end Match
+
+   private static final Comparator<Match> NEAREST_FIRST = new Comparator<Match>() {
+      public int compare(Match a, Match b) {
+         return Double.compare(a.distance, b.distance);
+      }
+   };
+
+   private final Retail esql;
+   private final double cellSize;
+   private final long ttlMillis;
+   private final boolean inMemory;
+   private volatile Grid grid = null;
+   // bumped by invalidate(); a grid loaded under an older value is stale
+   private final AtomicLong generation = new AtomicLong();
+
+   /**
+    * @param esql the database the stores are loaded from
+    * @param cellSize side of a grid cell, ideally close to the usual query radius
+    * @param ttlMillis age after which the grid is reloaded, 0 to keep it until invalidated
+    * @param inMemory false to answer every lookup with a query instead of the grid
+    */
+   public StoreLocator(Retail esql, double cellSize, long ttlMillis, boolean inMemory) {
+      this.esql = esql;
+      this.cellSize = cellSize;
+      this.ttlMillis = ttlMillis;
+      this.inMemory = inMemory;
+   }//end StoreLocator
+
+   /**
+    * @return every store whose distance to (lat, lon) is below radius, nearest first
+    * @throws java.sql.SQLException when the stores have to be (re)loaded and that fails
+    */
+   public List<Match> findStoresWithin(double lat, double lon, double radius) throws SQLException {
+      if (!inMemory)
+         return query("SELECT storeID, name, latitude, longitude, dist " +
+                      "FROM stores_within(?::numeric, ?::numeric, ?::numeric) ORDER BY dist",
+                      lat, lon, radius);
+      Grid g = current();
+      List<Match> result = new ArrayList<Match>();
+      long minX = g.cell(lat - radius), maxX = g.cell(lat + radius);
+      long minY = g.cell(lon - radius), maxY = g.cell(lon + radius);
+      if ((maxX - minX + 1) * (maxY - minY + 1) > g.cells.size()) {
+         // the box spans more cells than are occupied: scan the occupied ones
+         for (StoreLocation[] cell : g.cells.values())
+            collectWithin(cell, lat, lon, radius, result);
+      } else {
+         for (long x = minX; x <= maxX; ++x)
+            for (long y = minY; y <= maxY; ++y)
+               collectWithin(g.cells.get(Grid.key(x, y)), lat, lon, radius, result);
+      }
+      Collections.sort(result, NEAREST_FIRST);
+      return result;
+   }//end findStoresWithin
+
+   /**
+    * @return the k stores closest to (lat, lon), nearest first
+    * @throws java.sql.SQLException when the stores have to be (re)loaded and that fails
+    */
+   public List<Match> nearestStores(double lat, double lon, int k) throws SQLException {
+      if (!inMemory)
+         return query("SELECT storeID, name, latitude, longitude, " +
+                      "calculate_distance(?::numeric, ?::numeric, latitude, longitude) AS dist " +
+                      "FROM Store ORDER BY dist LIMIT ?", lat, lon, k);
+      Grid g = current();
+      List<Match> result = new ArrayList<Match>();
+      if (k <= 0 || g.byId.isEmpty()) return result;
+
+      // max-heap of the best k seen so far
+      PriorityQueue<Match> best = new PriorityQueue<Match>(k, Collections.reverseOrder(NEAREST_FIRST));
+      // a point outside the grid starts from the nearest occupied row and
+      // column; the rings beyond it would all be empty
+      long cx = Math.max(g.minX, Math.min(g.maxX, g.cell(lat)));
+      long cy = Math.max(g.minY, Math.min(g.maxY, g.cell(lon)));
+      long maxRing = Math.max(Math.max(cx - g.minX, g.maxX - cx), Math.max(cy - g.minY, g.maxY - cy));
+      for (long ring = 0; ring <= maxRing; ++ring) {
+         for (long x = cx - ring; x <= cx + ring; ++x) {
+            // interior rows of the ring only contribute their two edge cells
+            long step = (x == cx - ring || x == cx + ring) ? 1 : Math.max(1, 2 * ring);
+            for (long y = cy - ring; y <= cy + ring; y += step) {
+               StoreLocation[] cell = g.cells.get(Grid.key(x, y));
+               if (cell == null) continue;
+               for (StoreLocation s : cell) {
+                  double d = s.distanceTo(lat, lon);
+                  if (best.size() < k) {
+                     best.add(new Match(s, d));
+                  } else if (d < best.peek().distance) {
+                     best.poll();
+                     best.add(new Match(s, d));
+                  }
+               }
+            }
+         }
+         // every store beyond this ring is at least ring * cellSize away
+         if (best.size() == k && best.peek().distance <= ring * g.cellSize) break;
+      }
+      result.addAll(best);
+      Collections.sort(result, NEAREST_FIRST);
+      return result;
+   }//end nearestStores
+
+   /**
+    * @param storeId a storeID as typed by the user
+    * @return true when the store exists and lies within radius of (lat, lon)
+    * @throws java.sql.SQLException when the stores have to be (re)loaded and that fails
+    */
+   public boolean isWithin(String storeId, double lat, double lon, double radius) throws SQLException {
+      StoreLocation store;
+      try{
+         if (!inMemory)
+            return esql.exists("SELECT 1 FROM stores_within(?::numeric, ?::numeric, ?::numeric) WHERE storeID = ?",
+                               lat, lon, radius, Integer.valueOf(storeId.trim()));
+         store = current().byId.get(Integer.valueOf(storeId.trim()));
+      }catch (NumberFormatException e){
+         return false;
+      }//end try
+      return store != null && store.distanceTo(lat, lon) < radius;
+   }//end isWithin
+
+   /**
+    * @return the store with this storeID, or null
+    * @throws java.sql.SQLException when the stores have to be (re)loaded and that fails
+    */
+   public StoreLocation getStore(int storeId) throws SQLException {
+      if (!inMemory) {
+         List<Match> found = query("SELECT storeID, name, latitude, longitude, 0 FROM Store WHERE storeID = ?", storeId);
+         return found.isEmpty() ? null : found.get(0).store;
+      }
+      return current().byId.get(storeId);
+   }//end getStore
+
+   /**
+    * Forgets the loaded stores; the next lookup reloads them. ManagerScope
+    * calls this whenever a Store row is inserted, moved or deleted.
+    */
+   public void invalidate() {
+      generation.incrementAndGet();
+      grid = null;
+   }//end invalidate
+
+   /**
+    * Reloads the stores from the database right away.
+    *
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public synchronized void refresh() throws SQLException {
+      // taken before the rows are read, so a change notified meanwhile
+      // leaves the new grid stale rather than being lost
+      long loading = generation.get();
+      final List<StoreLocation> stores = new ArrayList<StoreLocation>();
+      esql.executeQueryAndStreamResult("SELECT storeID, name, latitude, longitude FROM Store", new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            stores.add(new StoreLocation(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4)));
+            return true;
+         }
+      });
+      grid = new Grid(cellSize, loading, stores);
+   }//end refresh
+
+   // Runs a query selecting storeID, name, latitude, longitude and distance.
+   private List<Match> query(String sql, Object... params) throws SQLException {
+      final List<Match> result = new ArrayList<Match>();
+      esql.executeQueryAndStreamResult(sql, new RowHandler() {
+         public boolean handleRow(ResultSet rs) throws SQLException {
+            StoreLocation s = new StoreLocation(rs.getInt(1), rs.getString(2).trim(), rs.getDouble(3), rs.getDouble(4));
+            result.add(new Match(s, rs.getDouble(5)));
+            return true;
+         }
+      }, params);
+      return result;
+   }//end query
+
+   // Returns the current grid, loading it when missing or expired.
+   private Grid current() throws SQLException {
+      Grid g = grid;
+      if (g != null && !expired(g)) return g;
+      synchronized (this) {
+         g = grid;
+         if (g == null || expired(g)) {
+            refresh();
+            g = grid;
+         }
+      }
+      return g;
+   }//end current
+
+   private boolean expired(Grid g) {
+      return g.generation != generation.get()
+         || ttlMillis > 0 && System.currentTimeMillis() - g.loadedAt > ttlMillis;
+   }
+
+   private static void collectWithin(StoreLocation[] cell, double lat, double lon, double radius,
+                                     List<Match> result) {
+      if (cell == null) return;
+      for (StoreLocation s : cell) {
+         double d = s.distanceTo(lat, lon);
+         if (d < radius) result.add(new Match(s, d));
+      }
+   }//end collectWithin
+
+   // Immutable snapshot of the stores bucketed by cell.
+   private static class Grid {
+      final double cellSize;
+      final long generation;
+      final long loadedAt = System.currentTimeMillis();
+      final Map<Long, StoreLocation[]> cells = new HashMap<Long, StoreLocation[]>();
+      final Map<Integer, StoreLocation> byId = new HashMap<Integer, StoreLocation>();
+      long minX = Long.MAX_VALUE, maxX = Long.MIN_VALUE, minY = Long.MAX_VALUE, maxY = Long.MIN_VALUE;
+
+      Grid(double cellSize, long generation, List<StoreLocation> stores) {
+         this.cellSize = cellSize;
+         this.generation = generation;
+         Map<Long, List<StoreLocation>> buckets = new HashMap<Long, List<StoreLocation>>();
+         for (StoreLocation s : stores) {
+            long x = cell(s.latitude), y = cell(s.longitude);
+            minX = Math.min(minX, x); maxX = Math.max(maxX, x);
+            minY = Math.min(minY, y); maxY = Math.max(maxY, y);
+            Long k = key(x, y);
+            List<StoreLocation> bucket = buckets.get(k);
+            if (bucket == null) {
+               bucket = new ArrayList<StoreLocation>();
+               buckets.put(k, bucket);
+            }
+            bucket.add(s);
+            byId.put(s.storeId, s);
+         }
+         for (Map.Entry<Long, List<StoreLocation>> e : buckets.entrySet())
+            cells.put(e.getKey(), e.getValue().toArray(new StoreLocation[e.getValue().size()]));
+      }
+
+      long cell(double coordinate) {
+         return (long) Math.floor(coordinate / cellSize);
+      }
+
+      static long key(long x, long y) {
+         return (x << 32) ^ (y & 0xffffffffL);
+      }
+   }//end Grid
+}//end StoreLocator
@@ -0,0 +1,4 @@
+#!/bin/bash
+
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+psql -h localhost -p $PGPORT $USER"_DB" < $DIR/../src/explainGeo.sql
@@ -1,84 +1,130 @@
-DROP SEQUENCE IF EXISTS order_num;
+-- Key sequences. The application draws its keys in blocks, many nextval
+-- calls per round trip (see IdAllocator); inserts made without a key take
+-- the column defaults set below, one key each. CASCADE drops those
+-- defaults when the script is run again.
+DROP SEQUENCE IF EXISTS order_num CASCADE;
 CREATE SEQUENCE order_num START WITH 501;
 
-DROP SEQUENCE IF EXISTS update_num;
+DROP SEQUENCE IF EXISTS update_num CASCADE;
 CREATE SEQUENCE update_num START WITH 100;
 
-DROP SEQUENCE IF EXISTS user_num;
+DROP SEQUENCE IF EXISTS user_num CASCADE;
 CREATE SEQUENCE user_num START WITH 101;
 
-DROP SEQUENCE IF EXISTS supply_num;
+DROP SEQUENCE IF EXISTS supply_num CASCADE;
 CREATE SEQUENCE supply_num START WITH 20;
 
-CREATE OR REPLACE LANGUAGE plpgsql;
+ALTER TABLE Orders ALTER COLUMN orderNumber SET DEFAULT nextval('order_num');
+ALTER TABLE ProductUpdates ALTER COLUMN updateNumber SET DEFAULT nextval('update_num');
+ALTER TABLE Users ALTER COLUMN userID SET DEFAULT nextval('user_num');
+ALTER TABLE ProductSupplyRequests ALTER COLUMN requestNumber SET DEFAULT nextval('supply_num');
 
-CREATE OR REPLACE FUNCTION set_order_number()
-RETURNS "trigger" AS
-$BODY$
-BEGIN
-        NEW.orderNumber = nextval('order_num');
-        return NEW;
-END;
-$BODY$
-LANGUAGE plpgsql VOLATILE;
+-- continue after the rows already loaded
+SELECT setval('order_num', COALESCE(MAX(orderNumber), 0) + 1, false) FROM Orders;
+SELECT setval('update_num', COALESCE(MAX(updateNumber), 0) + 1, false) FROM ProductUpdates;
+SELECT setval('user_num', COALESCE(MAX(userID), 0) + 1, false) FROM Users;
+SELECT setval('supply_num', COALESCE(MAX(requestNumber), 0) + 1, false) FROM ProductSupplyRequests;
 
-CREATE OR REPLACE FUNCTION set_update_number()
-RETURNS "trigger" AS
-$BODY$
-BEGIN
-        NEW.updateNumber = nextval('update_num');
-        return NEW;
-END;
-$BODY$
-LANGUAGE plpgsql VOLATILE;
+CREATE OR REPLACE LANGUAGE plpgsql;
 
-CREATE OR REPLACE FUNCTION set_user_number()
+-- Keeps StoreProductPopularity equal to the number of Orders rows per
+-- product of each store. Runs once per statement over the transition
+-- tables, so a multi-row insert or delete costs one upsert per product
+-- rather than one per order. New counts are upserted in key order so
+-- concurrent inserts lock the summary rows in the same order; an order
+-- has already locked the Product row of the same key, so no two stores
+-- wait on each other's counters.
+CREATE OR REPLACE FUNCTION maintain_product_popularity()
 RETURNS "trigger" AS
 $BODY$
 BEGIN
-        NEW.userID = nextval('user_num');
-        return NEW;
+        IF TG_OP IN ('DELETE', 'UPDATE') THEN
+                UPDATE StoreProductPopularity P SET orderCount = P.orderCount - O.n
+                FROM (SELECT storeID, productName, COUNT(*) AS n FROM old_orders
+                      GROUP BY storeID, productName ORDER BY storeID, productName) O
+                WHERE P.storeID = O.storeID AND P.productName = O.productName;
+                DELETE FROM StoreProductPopularity P
+                USING (SELECT DISTINCT storeID, productName FROM old_orders) O
+                WHERE P.storeID = O.storeID AND P.productName = O.productName AND P.orderCount <= 0;
+        END IF;
+        IF TG_OP IN ('INSERT', 'UPDATE') THEN
+                INSERT INTO StoreProductPopularity AS P (storeID, productName, orderCount)
+                SELECT storeID, productName, COUNT(*) FROM new_orders
+                GROUP BY storeID, productName ORDER BY storeID, productName
+                ON CONFLICT (storeID, productName) DO UPDATE SET orderCount = P.orderCount + EXCLUDED.orderCount;
+        END IF;
+        RETURN NULL;
 END;
 $BODY$
 LANGUAGE plpgsql VOLATILE;
 
-CREATE OR REPLACE FUNCTION set_supply_number()
+-- Tells listening clients (see ManagerScope) which managers gained or lost
+-- a store, as the payload "old managerID,new managerID". A store renamed or
+-- moved without changing hands is reported with both IDs left empty.
+CREATE OR REPLACE FUNCTION notify_store_managers()
 RETURNS "trigger" AS
 $BODY$
 BEGIN
-        NEW.requestNumber = nextval('supply_num');
-        return NEW;
+        IF TG_OP = 'INSERT' THEN
+                PERFORM pg_notify('store_managers', ',' || NEW.managerID);
+        ELSIF TG_OP = 'DELETE' THEN
+                PERFORM pg_notify('store_managers', OLD.managerID || ',');
+        ELSIF OLD.managerID IS DISTINCT FROM NEW.managerID THEN
+                PERFORM pg_notify('store_managers', OLD.managerID || ',' || NEW.managerID);
+        ELSE
+                PERFORM pg_notify('store_managers', ',');
+        END IF;
+        RETURN NULL;
 END;
 $BODY$
 LANGUAGE plpgsql VOLATILE;
 
 
+-- the per-row numbering triggers of earlier versions, replaced by the
+-- column defaults above
 DROP TRIGGER IF EXISTS set_order_number_trigger ON Orders;
 DROP TRIGGER IF exists set_update_number_trigger ON ProductUpdates;
 DROP TRIGGER IF exists set_user_number_trigger ON Users;
 DROP TRIGGER IF exists set_supply_number_trigger ON ProductSupplyRequests;
+DROP FUNCTION IF EXISTS set_order_number();
+DROP FUNCTION IF EXISTS set_update_number();
+DROP FUNCTION IF EXISTS set_user_number();
+DROP FUNCTION IF EXISTS set_supply_number();
+DROP TRIGGER IF EXISTS count_inserted_orders_trigger ON Orders;
+DROP TRIGGER IF EXISTS count_deleted_orders_trigger ON Orders;
+DROP TRIGGER IF EXISTS count_updated_orders_trigger ON Orders;
+DROP TRIGGER IF EXISTS notify_store_managers_trigger ON Store;
 
-CREATE TRIGGER set_order_number_trigger
-BEFORE INSERT
+CREATE TRIGGER count_inserted_orders_trigger
+AFTER INSERT
 ON Orders
-FOR EACH ROW
-EXECUTE PROCEDURE set_order_number();
+REFERENCING NEW TABLE AS new_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE maintain_product_popularity();
 
-CREATE TRIGGER set_update_number_trigger
-BEFORE INSERT
-ON ProductUpdates
-FOR EACH ROW
-EXECUTE PROCEDURE set_update_number();
+CREATE TRIGGER count_deleted_orders_trigger
+AFTER DELETE
+ON Orders
+REFERENCING OLD TABLE AS old_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE maintain_product_popularity();
 
-CREATE TRIGGER set_user_number_trigger
-BEFORE INSERT
-ON Users
-FOR EACH ROW
-EXECUTE PROCEDURE set_user_number();
+CREATE TRIGGER count_updated_orders_trigger
+AFTER UPDATE
+ON Orders
+REFERENCING OLD TABLE AS old_orders NEW TABLE AS new_orders
+FOR EACH STATEMENT
+EXECUTE PROCEDURE maintain_product_popularity();
 
-CREATE TRIGGER set_supply_number_trigger
-BEFORE INSERT
-ON ProductSupplyRequests
+CREATE TRIGGER notify_store_managers_trigger
+AFTER INSERT OR DELETE OR UPDATE OF managerID, name, latitude, longitude
+ON Store
 FOR EACH ROW
-EXECUTE PROCEDURE set_supply_number();
+EXECUTE PROCEDURE notify_store_managers();
+
+-- Count the orders loaded before the triggers existed
+TRUNCATE StoreProductPopularity;
+
+INSERT INTO StoreProductPopularity(storeID, productName, orderCount)
+SELECT storeID, productName, COUNT(*) FROM Orders GROUP BY storeID, productName;
 
@@ -1,125 +1,128 @@
+-- Every index here serves a query of RetailOperations, OrderService or
+-- AuthorizationCache, or the foreign key checks of the deletes they run.
+-- Primary keys already have their own index and are not indexed again.
+-- Every Orders index is paid for by each placeOrder, so Orders only has the
+-- ones the order listings need.
+
+-- indexes of earlier versions of this file
 DROP INDEX IF EXISTS userIDs_users;
 DROP INDEX IF EXISTS names_users;
+DROP INDEX IF EXISTS passwords_user;
 DROP INDEX IF EXISTS passwords_users;
 DROP INDEX IF EXISTS type_users;
-
-DROP INDEX IF EXISTS managerID_store;
 DROP INDEX IF EXISTS storeID_store;
-
 DROP INDEX IF EXISTS storeIDs_product;
 DROP INDEX IF EXISTS productName_product;
 DROP INDEX IF EXISTS numberOfUnits_product;
 DROP INDEX IF EXISTS pricePerUnit_product;
-
 DROP INDEX IF EXISTS warehouseID_warehouse;
-
 DROP INDEX IF EXISTS customerID_order;
 DROP INDEX IF EXISTS productName_order;
 DROP INDEX IF EXISTS storeID_order;
 DROP INDEX IF EXISTS orderNumber_order;
-
 DROP INDEX IF EXISTS productName_supplyRequest;
 DROP INDEX IF EXISTS storeID_supplyRequest;
 DROP INDEX IF EXISTS warehouseID_supplyRequest;
-DROP INDEX IF EXISTS managerID_supplyRequest;
 DROP INDEX IF EXISTS requestNumber_suplyRequest;
-
+DROP INDEX IF EXISTS requestNumber_supplyRequest;
 DROP INDEX IF EXISTS updateNumber_productUpdates;
-DROP INDEX IF EXISTS managerID_productUpdates;
 DROP INDEX IF EXISTS storeID_productUpdates;
 DROP INDEX IF EXISTS productName_productUpdates;
 
+DROP INDEX IF EXISTS name_users;
+DROP INDEX IF EXISTS managerID_store;
+DROP INDEX IF EXISTS location_store;
+DROP INDEX IF EXISTS customerID_orderTime_order;
+DROP INDEX IF EXISTS storeID_orderTime_order;
+DROP INDEX IF EXISTS orderTime_order;
+DROP INDEX IF EXISTS orderHeaderID_order;
+DROP INDEX IF EXISTS customerID_orderHeaders;
+DROP INDEX IF EXISTS storeID_productName_supplyRequest;
+DROP INDEX IF EXISTS managerID_supplyRequest;
+DROP INDEX IF EXISTS storeID_updatedOn_productUpdates;
+DROP INDEX IF EXISTS updatedOn_productUpdates;
+DROP INDEX IF EXISTS managerID_productUpdates;
+DROP INDEX IF EXISTS orderCount_productPopularity;
+
 
-CREATE INDEX userIDs_users
-ON Users
-USING btree (UserID);
-CREATE INDEX names_users
-ON Users
-USING btree (name);
-CREATE INDEX passwords_user
-ON Users
-USING btree(password);
-CREATE INDEX type_users
+-----------------------------------
+-- Users indexes
+-- log in: WHERE name = ? AND password = ?
+CREATE INDEX name_users
 ON Users
-USING btree(type);
+USING btree(name);
 
 -----------------------------------
 -- Store indexes
-CREATE INDEX storeID_store
-ON Store
-USING btree(storeID);
+-- stores of a manager, and the Store side of deleting a user
 CREATE INDEX managerID_store
 ON Store
 USING btree(managerID);
+-- bounding box prefilter of stores_within
+CREATE INDEX location_store
+ON Store
+USING btree(latitude, longitude);
 
 -----------------------------------
 -- Product indexes
-CREATE INDEX storeIDs_product
-ON Product
-USING btree(storeID);
-CREATE INDEX productName_product
-ON Product
-USING btree(productName);
-CREATE INDEX numberOfUnits_product
-ON Product
-USING btree(numberOfUnits);
-CREATE INDEX pricePerUnit_product
-ON Product
-USING btree(pricePerUnit);
+-- The primary key (storeID, productName) serves the product list of a store
+-- and every single product lookup. numberOfUnits is deliberately left out of
+-- all indexes so the stock updates of placeOrder stay HOT updates.
+
 ----------------------------------
 -- Product updates indexes
-CREATE INDEX updateNumber_productUpdates
+-- recent updates of a manager's stores, newest first; its storeID prefix
+-- also finds the rows of a product being removed
+CREATE INDEX storeID_updatedOn_productUpdates
+ON ProductUpdates
+USING btree(storeID, updatedOn DESC);
+-- recent updates of every store
+CREATE INDEX updatedOn_productUpdates
 ON ProductUpdates
-USING btree(updateNumber);
+USING btree(updatedOn DESC);
+-- foreign key check when a user is deleted
 CREATE INDEX managerID_productUpdates
 ON ProductUpdates
 USING btree(managerID);
-CREATE INDEX storeID_productUpdates
-ON ProductUpdates
-USING btree(storeID);
-CREATE INDEX productName_productUpdates
-ON ProductUpdates
-USING btree(productName);
 
 ------------------------------------
--- Order indexes 
-CREATE INDEX storeID_order
+-- Order indexes
+-- a customer's recent orders answered from the index alone; its customerID
+-- prefix also serves deleting a user's orders
+CREATE INDEX customerID_orderTime_order
 ON Orders
-USING btree(storeID);
-CREATE INDEX productName_order
+USING btree(customerID, orderTime DESC)
+INCLUDE (storeID, productName, unitsOrdered);
+-- orders of a manager's stores, newest first; orderNumber breaks ties so a
+-- keyset page starts with an index range scan. Its storeID prefix also finds
+-- the orders of a product being removed
+CREATE INDEX storeID_orderTime_order
 ON Orders
-USING btree(productName);
-CREATE INDEX customerID_order
+USING btree(storeID, orderTime DESC, orderNumber DESC);
+-- recent orders of every store, and the pages of the admin order listing
+CREATE INDEX orderTime_order
 ON Orders
-USING btree(customerID);
-CREATE INDEX orderNumber_order
+USING btree(orderTime DESC, orderNumber DESC);
+-- lines of a checkout; single product orders have no header and are not indexed
+CREATE INDEX orderHeaderID_order
 ON Orders
-USING btree(orderNumber);
-
+USING btree(orderHeaderID)
+WHERE orderHeaderID IS NOT NULL;
 
 -----------------------------------
--- Warehouse indexes
-CREATE INDEX warehouseID_warehouse
-ON Warehouse 
-USING btree(WarehouseID);
-
-
+-- OrderHeaders indexes
+-- checkouts of a user being removed
+CREATE INDEX customerID_orderHeaders
+ON OrderHeaders
+USING btree(customerID);
 
 -----------------------------------
 -- Supply request indexes
-CREATE INDEX productName_supplyRequest
-ON ProductSupplyRequests
-using btree(productName);
-CREATE INDEX storeID_supplyRequest
+-- rows of a product being removed
+CREATE INDEX storeID_productName_supplyRequest
 ON ProductSupplyRequests
-using btree(storeID);
-CREATE INDEX warehouseID_supplyRequest
-ON ProductSupplyRequests
-using btree(warehouseID);
+USING btree(storeID, productName);
+-- foreign key check when a user is deleted
 CREATE INDEX managerID_supplyRequest
 ON ProductSupplyRequests
-using btree(managerID);
-CREATE INDEX requestNumber_supplyRequest
-ON ProductSupplyRequests
-using btree(requestNumber);
-
+USING btree(managerID);
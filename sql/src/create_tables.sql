@@ -3,8 +3,11 @@ DROP TABLE IF EXISTS Product CASCADE;
 DROP TABLE IF EXISTS Users CASCADE;
 DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
+DROP TABLE IF EXISTS OrderHeaders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS StoreProductPopularity CASCADE;
+DROP TABLE IF EXISTS ProductPopularity CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -41,6 +44,18 @@ CREATE TABLE Warehouse ( WarehouseID integer,
                          longitude decimal(9,6)  NOT NULL,
                          PRIMARY KEY(WarehouseID));
 
+-- One row per checkout of a multi-item cart; its items are the Orders rows
+-- pointing at it
+CREATE TABLE OrderHeaders (
+                     orderHeaderID serial NOT NULL,
+                     customerID integer NOT NULL,
+                     storeID integer NOT NULL,
+                     orderTime timestamp NOT NULL,
+                     PRIMARY KEY(orderHeaderID),
+                     FOREIGN KEY(customerID) REFERENCES Users(userID),
+                     FOREIGN KEY(storeID) REFERENCES Store(storeID)
+);
+
 CREATE TABLE Orders ( 
 					 orderNumber serial NOT NULL,       
 					 customerID integer NOT NULL,
@@ -48,9 +63,11 @@ CREATE TABLE Orders (
                      productName char(30) NOT NULL, 
                      unitsOrdered integer NOT NULL, 
                      orderTime timestamp NOT NULL,
+                     orderHeaderID integer,       -- NULL for single product orders
                      PRIMARY KEY(orderNumber),
                      FOREIGN KEY(customerID) REFERENCES Users(userID),
-                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                     FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName),
+                     FOREIGN KEY(orderHeaderID) REFERENCES OrderHeaders(orderHeaderID)
 );
 
 CREATE TABLE ProductSupplyRequests (  
@@ -77,8 +94,31 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
 
+-- Number of Orders rows per product of each store, kept up to date by the
+-- triggers of Triggers.sql. Counts over the whole chain are summed from it:
+-- a chain-wide counter row per product would be locked by every order of
+-- that product in every store until commit.
+CREATE TABLE StoreProductPopularity (
+                        storeID integer NOT NULL,
+                        productName char(30) NOT NULL,
+                        orderCount bigint NOT NULL,
+                        PRIMARY KEY(storeID, productName)
+);
+
+-- Plain SQL and IMMUTABLE so the planner can inline it into the calling query
 CREATE OR REPLACE FUNCTION calculate_distance(lat1 decimal, long1 decimal, lat2 decimal, long2 decimal)
 RETURNS decimal AS $dist$
-BEGIN RETURN sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
-END;
-$dist$ LANGUAGE plpgsql;
+SELECT sqrt((lat1 - lat2) * (lat1 - lat2) + (long1 - long2) * (long1 - long2));
+$dist$ LANGUAGE sql IMMUTABLE;
+
+-- Stores closer than radius to (lat, lon). The bounding box is implied by the
+-- distance test but can be answered by the (latitude, longitude) index on Store,
+-- so only the stores inside the box have their distance computed.
+CREATE OR REPLACE FUNCTION stores_within(lat decimal, lon decimal, radius decimal)
+RETURNS TABLE(storeID integer, name char(30), latitude decimal, longitude decimal, dist decimal) AS $within$
+SELECT S.storeID, S.name, S.latitude, S.longitude, calculate_distance(lat, lon, S.latitude, S.longitude)
+FROM Store S
+WHERE S.latitude BETWEEN lat - radius AND lat + radius
+  AND S.longitude BETWEEN lon - radius AND lon + radius
+  AND calculate_distance(lat, lon, S.latitude, S.longitude) < radius;
+$within$ LANGUAGE sql STABLE;
@@ -0,0 +1,29 @@
+-- Plans of the radius lookups against one million stores.
+-- The stores are added inside a transaction that is rolled back at the end,
+-- so the loaded data is left as it was.
+BEGIN;
+
+INSERT INTO Store(storeID, name, latitude, longitude, managerID, dateEstablished)
+SELECT 1000000 + g, 'Store ' || g,
+       random() * 180 - 90, random() * 360 - 180,
+       (SELECT min(userID) FROM Users), CURRENT_DATE
+FROM generate_series(1, 1000000) AS g;
+
+ANALYZE Store;
+
+-- viewStores
+EXPLAIN ANALYZE
+SELECT storeID, name, latitude, longitude, dist
+FROM stores_within(40.0, -100.0, 30) ORDER BY dist;
+
+-- placeOrder store check
+EXPLAIN ANALYZE
+SELECT EXISTS (SELECT 1 FROM stores_within(40.0, -100.0, 30) WHERE storeID = 1000001);
+
+-- the old query, for comparison
+EXPLAIN ANALYZE
+SELECT S.storeID, S.name
+FROM Store S
+WHERE calculate_distance(40.0, -100.0, S.latitude, S.longitude) < 30;
+
+ROLLBACK;
@@ -1,3 +1,7 @@
+-- Loads the sample data from server-side paths. To load from the client
+-- instead, from any data directory, use java/scripts/bulk_load.sh (BulkLoader),
+-- which also resets every sequence from the loaded IDs.
+
 COPY Users
 FROM '/extra/ttran456/RetailStore/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
@@ -15,7 +19,7 @@ COPY Warehouse
 FROM '/extra/ttran456/RetailStore/data/warehouse.csv'
 WITH DELIMITER ',' CSV HEADER;
 
-COPY Orders
+COPY Orders(orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)
 FROM '/extra/ttran456/RetailStore/data/orders.csv'
 WITH DELIMITER ',' CSV HEADER;
 ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
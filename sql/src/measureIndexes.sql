@@ -0,0 +1,140 @@
+-- Cost of the index set on the placeOrder write path and on the order and
+-- update listings, for the indexes of earlier versions of create_indexes.sql
+-- and for the current ones. Run it after create_indexes.sql; each half is
+-- rolled back, so the data and indexes are left as they were.
+\timing on
+
+-- placeOrder as OrderService runs it, n times over the first products
+CREATE OR REPLACE FUNCTION pg_temp.place_orders(n integer) RETURNS void AS $place$
+DECLARE
+   began timestamptz;
+   customers integer[];
+   stores integer[];
+   products char(30)[];
+BEGIN
+   SELECT array_agg(userID) INTO customers
+   FROM (SELECT userID FROM Users WHERE type = 'customer' ORDER BY userID LIMIT 100) C;
+   SELECT array_agg(storeID), array_agg(productName) INTO stores, products
+   FROM (SELECT storeID, productName FROM Product ORDER BY storeID, productName LIMIT 100) P;
+   UPDATE Product SET numberOfUnits = numberOfUnits + n
+   WHERE (storeID, productName) IN (SELECT storeID, productName FROM Product ORDER BY storeID, productName LIMIT 100);
+   began := clock_timestamp();
+   FOR i IN 1..n LOOP
+      WITH taken AS (
+         UPDATE Product SET numberOfUnits = numberOfUnits - 1
+         WHERE storeID = stores[1 + i % array_length(stores, 1)]
+           AND productName = products[1 + i % array_length(products, 1)] AND numberOfUnits >= 1
+         RETURNING storeID, productName)
+      INSERT INTO Orders(customerID, storeID, productName, unitsOrdered, orderTime)
+      SELECT customers[1 + i % array_length(customers, 1)], storeID, productName, 1, clock_timestamp() FROM taken;
+   END LOOP;
+   RAISE NOTICE 'placeOrder: % microseconds per order',
+      round(extract(epoch FROM clock_timestamp() - began) * 1000000 / n);
+END;
+$place$ LANGUAGE plpgsql;
+
+-- size of every index of the tables placeOrder and the listings touch
+CREATE TEMP VIEW index_sizes AS
+SELECT C.relname AS table_name, I.relname AS index_name, pg_size_pretty(pg_relation_size(I.oid)) AS size
+FROM pg_index X, pg_class C, pg_class I
+WHERE X.indrelid = C.oid AND X.indexrelid = I.oid
+  AND C.relname IN ('orders', 'product', 'productupdates', 'users', 'store', 'productsupplyrequests')
+ORDER BY 1, 2;
+
+-----------------------------------
+-- the earlier indexes
+BEGIN;
+
+DROP INDEX IF EXISTS name_users, managerID_store, customerID_orderTime_order, storeID_orderTime_order,
+   orderTime_order, orderHeaderID_order, storeID_productName_supplyRequest, managerID_supplyRequest,
+   storeID_updatedOn_productUpdates, updatedOn_productUpdates, managerID_productUpdates;
+
+CREATE INDEX userIDs_users ON Users USING btree(userID);
+CREATE INDEX names_users ON Users USING btree(name);
+CREATE INDEX passwords_user ON Users USING btree(password);
+CREATE INDEX type_users ON Users USING btree(type);
+CREATE INDEX storeID_store ON Store USING btree(storeID);
+CREATE INDEX managerID_store ON Store USING btree(managerID);
+CREATE INDEX storeIDs_product ON Product USING btree(storeID);
+CREATE INDEX productName_product ON Product USING btree(productName);
+CREATE INDEX numberOfUnits_product ON Product USING btree(numberOfUnits);
+CREATE INDEX pricePerUnit_product ON Product USING btree(pricePerUnit);
+CREATE INDEX updateNumber_productUpdates ON ProductUpdates USING btree(updateNumber);
+CREATE INDEX managerID_productUpdates ON ProductUpdates USING btree(managerID);
+CREATE INDEX storeID_productUpdates ON ProductUpdates USING btree(storeID);
+CREATE INDEX productName_productUpdates ON ProductUpdates USING btree(productName);
+CREATE INDEX storeID_order ON Orders USING btree(storeID);
+CREATE INDEX productName_order ON Orders USING btree(productName);
+CREATE INDEX customerID_order ON Orders USING btree(customerID);
+CREATE INDEX orderNumber_order ON Orders USING btree(orderNumber);
+CREATE INDEX orderHeaderID_order ON Orders USING btree(orderHeaderID);
+CREATE INDEX productName_supplyRequest ON ProductSupplyRequests USING btree(productName);
+CREATE INDEX storeID_supplyRequest ON ProductSupplyRequests USING btree(storeID);
+CREATE INDEX warehouseID_supplyRequest ON ProductSupplyRequests USING btree(warehouseID);
+CREATE INDEX managerID_supplyRequest ON ProductSupplyRequests USING btree(managerID);
+CREATE INDEX requestNumber_supplyRequest ON ProductSupplyRequests USING btree(requestNumber);
+ANALYZE Users, Store, Product, Orders, ProductUpdates, ProductSupplyRequests;
+
+\echo 'earlier indexes: placeOrder'
+SELECT pg_temp.place_orders(20000);
+
+\echo 'earlier indexes: recent orders of a customer'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime
+FROM Orders O, Store S WHERE O.storeID = S.storeID AND O.customerID = (SELECT min(userID) FROM Users WHERE type = 'customer')
+ORDER BY O.orderTime DESC LIMIT 5;
+
+\echo 'earlier indexes: recent orders of a manager''s stores'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT O.orderNumber, O.storeID, O.productName, O.orderTime
+FROM Orders O WHERE O.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = (SELECT min(managerID) FROM Store))
+ORDER BY O.orderTime DESC LIMIT 5;
+
+\echo 'earlier indexes: recent orders of every store'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT O.orderNumber, O.storeID, O.productName, O.orderTime FROM Orders O ORDER BY O.orderTime DESC LIMIT 5;
+
+\echo 'earlier indexes: recent updates of a manager''s stores'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT updateNumber, storeID, productName, updatedOn FROM ProductUpdates
+WHERE storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = (SELECT min(managerID) FROM Store))
+ORDER BY updatedOn DESC LIMIT 5;
+
+SELECT * FROM index_sizes;
+
+ROLLBACK;
+
+-----------------------------------
+-- the current indexes
+BEGIN;
+
+ANALYZE Users, Store, Product, Orders, ProductUpdates, ProductSupplyRequests;
+
+\echo 'current indexes: placeOrder'
+SELECT pg_temp.place_orders(20000);
+
+\echo 'current indexes: recent orders of a customer'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT O.storeID, S.name, O.productName, O.unitsOrdered, O.orderTime
+FROM Orders O, Store S WHERE O.storeID = S.storeID AND O.customerID = (SELECT min(userID) FROM Users WHERE type = 'customer')
+ORDER BY O.orderTime DESC LIMIT 5;
+
+\echo 'current indexes: recent orders of a manager''s stores'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT O.orderNumber, O.storeID, O.productName, O.orderTime
+FROM Orders O WHERE O.storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = (SELECT min(managerID) FROM Store))
+ORDER BY O.orderTime DESC LIMIT 5;
+
+\echo 'current indexes: recent orders of every store'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT O.orderNumber, O.storeID, O.productName, O.orderTime FROM Orders O ORDER BY O.orderTime DESC LIMIT 5;
+
+\echo 'current indexes: recent updates of a manager''s stores'
+EXPLAIN (ANALYZE, BUFFERS)
+SELECT updateNumber, storeID, productName, updatedOn FROM ProductUpdates
+WHERE storeID IN (SELECT S.storeID FROM Store S WHERE S.managerID = (SELECT min(managerID) FROM Store))
+ORDER BY updatedOn DESC LIMIT 5;
+
+SELECT * FROM index_sizes;
+
+ROLLBACK;